@@ -33,6 +33,12 @@ public class ModeConsensusListener implements ConsensusListener<Integer> {
 			IPCMode.set(IPCMode.RMI);
 		else if (aState == GIPC)
 			IPCMode.set(IPCMode.GIPC);
+		else if (aState == BLOCKING)
+			IPCMode.set(IPCMode.BLOCKING);
+		else if (aState == ASYNC)
+			IPCMode.set(IPCMode.ASYNC);
+		else if (aState == SHARED_MEMORY)
+			IPCMode.set(IPCMode.SHARED_MEMORY);
 		else if (aState == NONATOMIC_ASYNC)
 			IPCMode.set(IPCMode.NONATOMIC_ASYNC);
 		else if (aState == NONATOMIC_SYNC)
@@ -17,7 +17,7 @@ public class SimulationConsensusLauncher extends AConsensusMemberLauncher implem
 	// SimuMode
 	public static final int LOCAL = 0b00001, BASIC = 0b00010, ATOMIC = 0b00011,
 			// IPCMode
-			NIO = 0b01000, RMI = 0b01001, GIPC = 0b01011, NONATOMIC_ASYNC = 0b11000, NONATOMIC_SYNC = 0b11001,
+			NIO = 0b01000, RMI = 0b01001, BLOCKING = 0b01010, GIPC = 0b01011, ASYNC = 0b01100, SHARED_MEMORY = 0b01101, NONATOMIC_ASYNC = 0b11000, NONATOMIC_SYNC = 0b11001,
 			ATOMIC_ASYNC = 0b11010, ATOMIC_SYNC = 0b11011, PAXOS = 0b11100;
 
 	protected ConsensusMechanism<Integer> modeMechanism;
@@ -72,6 +72,9 @@ public class SimulationConsensusLauncher extends AConsensusMemberLauncher implem
 		case NIO:
 		case RMI:
 		case GIPC:
+		case BLOCKING:
+		case ASYNC:
+		case SHARED_MEMORY:
 			break;
 		case NONATOMIC_ASYNC:
 			simulateNonAtomicAsynchronous();
@@ -160,6 +163,15 @@ public class SimulationConsensusLauncher extends AConsensusMemberLauncher implem
 		case GIPC:
 			this.proposeMode(GIPC);
 			break;
+		case BLOCKING:
+			this.proposeMode(BLOCKING);
+			break;
+		case ASYNC:
+			this.proposeMode(ASYNC);
+			break;
+		case SHARED_MEMORY:
+			this.proposeMode(SHARED_MEMORY);
+			break;
 		case NONATOMIC_ASYNC:
 			this.proposeMode(NONATOMIC_ASYNC);
 			break;
@@ -0,0 +1,100 @@
+package gipc_sims;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+import gipc_sims.modes.IPCMode;
+import nio_sims.CommandCodec;
+
+/**
+ * Measures how long broadcast commands take from the replica they come from to each
+ * replica which runs them, for every IPCMode apart. A command is sent with a stamp in front
+ * of it, see CommandCodec.stamp, holding the mode it went over, a number and the time it
+ * was sent. The stamp is part of the command's text, so every mode carries it as it is,
+ * and the replica which runs the command takes it off and records the latency.
+ *
+ * Times are nanoseconds since the epoch, read from System.nanoTime and lined up with the
+ * wall clock once as the class loads. Latencies between processes on the same host are
+ * off by no more than the wall clock's precision, between hosts by however far apart
+ * their clocks are too.
+ */
+public class CommandLatency {
+	// If this replica stamps the commands it broadcasts. Stamped commands from others are
+	// measured either way.
+	public static boolean ENABLED = false;
+
+	private static final long EPOCH_NANOS;
+	private static final long START_NANOS;
+	static {
+		Instant now = Instant.now();
+		START_NANOS = System.nanoTime();
+		EPOCH_NANOS = now.getEpochSecond() * 1000000000L + now.getNano();
+	}
+
+	// Numbers the commands stamped by this process
+	private static final AtomicLong ids = new AtomicLong(0);
+
+	// A histogram for each mode, by its ordinal
+	private static final LatencyHistogram[] histograms = new LatencyHistogram[IPCMode.values().length];
+	static {
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * @return Nanoseconds since the epoch
+	 */
+	public static long now() {
+		return EPOCH_NANOS + System.nanoTime() - START_NANOS;
+	}
+
+	/**
+	 * @param cmd A command about to be broadcast
+	 * @param mode What it will go over
+	 * @return cmd with a stamp in front of it if ENABLED, otherwise cmd
+	 */
+	public static String stamp(String cmd, IPCMode mode) {
+		if (!ENABLED) return cmd;
+		return CommandCodec.stamp(cmd, mode.ordinal(), ids.incrementAndGet(), now());
+	}
+
+	/**
+	 * Called as a command is about to run, records its latency if it is stamped
+	 * @param cmd The command as it arrived
+	 * @return The command without its stamp
+	 */
+	public static String applied(String cmd) {
+		if (cmd.isEmpty() || cmd.charAt(0) != CommandCodec.STAMP_MARK) return cmd;
+
+		long[] stamp = CommandCodec.parseStamp(cmd);
+		if (stamp == null) return cmd;
+
+		if (stamp[0] < histograms.length) histograms[(int) stamp[0]].record(now() - stamp[2]);
+		return CommandCodec.unstamped(cmd);
+	}
+
+	/**
+	 * @return The latencies of commands which went over mode
+	 */
+	public static LatencyHistogram get(IPCMode mode) {
+		return histograms[mode.ordinal()];
+	}
+
+	/**
+	 * Print the latencies of every mode some command went over
+	 */
+	public static void print(PrintStream out) {
+		for (IPCMode mode: IPCMode.values()) {
+			LatencyHistogram histogram = get(mode);
+			if (histogram.getCount() > 0) out.println(String.format("%-16s %s", mode, histogram));
+		}
+	}
+
+	public static void reset() {
+		for (LatencyHistogram histogram: histograms) {
+			histogram.reset();
+		}
+	}
+}
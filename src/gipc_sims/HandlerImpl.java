@@ -1,16 +1,42 @@
 package gipc_sims;
 
 import java.rmi.RemoteException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
 
 import gipc_sims.modes.ConsensusMode;
 import gipc_sims.modes.IPCMode;
 import gipc_sims.modes.SimuMode;
+import nio_sims.CommandCodec;
 
 public class HandlerImpl implements HandlerLocal, HandlerRemote {		
+	// The most commands held back waiting for a gap to be filled, the gap is given up on
+	// beyond this
+	public static int MAX_EARLY = 4096;
+	
+	// How long a gap is waited for before it is given up on. A sequence number is taken
+	// before the server sends the command, one which never arrives, because the broadcast
+	// failed part way, would otherwise hold back every command after it for good.
+	public static long GAP_TIMEOUT_MS = 2000;
+	
+	// Gives up on gaps which were waited on too long, shared by every handler
+	private static final Timer gapTimer = new Timer("gap-timer", true);
+	
 	private Server server;
 	
 	private Simulation sim;
 	
+	// The sequence number of the next command to run, 0 until joined
+	private long expected = 0;
+	
+	// Commands which arrived ahead of their turn, by sequence number. A null command is
+	// one of our own, which isn't sent back to us but must still be passed over.
+	private TreeMap<Long, String> early = new TreeMap<Long, String>();
+	
+	// The gap a check is scheduled for, by the sequence number at its start, or 0
+	private long gapChecked = 0;
+	
 	public HandlerImpl(Simulation sim, Server server) {
 		this.server = server;
 		this.sim = sim;
@@ -19,12 +45,29 @@ public class HandlerImpl implements HandlerLocal, HandlerRemote {
 	@Override
 	public void broadcast(String msg) {
 		try {
-			this.server.broadcast(msg, this);
+			long skipped = this.server.broadcast(CommandCodec.encode(msg), this);
+			if (skipped != 0) this.receive(skipped, null);
 		} catch (RemoteException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Called once the server has added this handler, brings the simulation up to date
+	 * @param snapshot The state of the simulation as this handler joined
+	 */
+	public synchronized void joined(Snapshot snapshot) {
+		for (String cmd: snapshot.getCommands()) {
+			this.sim.executeCommand(cmd);
+		}
+		
+		this.expected = snapshot.getSequence() + 1;
+		while (!this.early.isEmpty() && this.early.firstKey() < this.expected) {
+			this.early.pollFirstEntry();
+		}
+		this.runInOrder();
+	}
+	
 	@Override
 	public void setSimuModeChanging() {
 		SimuMode.setModeChanging();
@@ -103,9 +146,62 @@ public class HandlerImpl implements HandlerLocal, HandlerRemote {
 	}
 	
 	@Override
-	public void executeCommand(String cmd) {		
+	public void executeCommand(long seq, byte[] cmd) {		
 		// Has a full command
-		this.sim.executeCommand(cmd);
+		this.receive(seq, CommandCodec.decode(cmd));
+	}
+	
+	private synchronized void receive(long seq, String cmd) {
+		if (this.expected != 0 && seq < this.expected) return;
+		this.early.put(seq, cmd);
+		this.runInOrder();
+		while (this.expected != 0 && this.early.size() > MAX_EARLY) {
+			this.skipGap();
+		}
+	}
+	
+	/**
+	 * Run every command whose turn has come, and have the gap in front of whatever is
+	 * still held checked on later
+	 */
+	private void runInOrder() {
+		if (this.expected == 0) return;
+		
+		while (!this.early.isEmpty() && this.early.firstKey() == this.expected) {
+			String cmd = this.early.pollFirstEntry().getValue();
+			if (cmd != null) this.sim.executeCommand(cmd);
+			this.expected += 1;
+		}
+		
+		if (!this.early.isEmpty() && this.gapChecked != this.expected) {
+			final long gap = this.expected;
+			this.gapChecked = gap;
+			gapTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					checkGap(gap);
+				}
+			}, GAP_TIMEOUT_MS);
+		}
+	}
+	
+	/**
+	 * Called by the gap timer, gives up on a gap if it is still open
+	 * @param gap The sequence number at the start of the gap
+	 */
+	private synchronized void checkGap(long gap) {
+		if (this.gapChecked == gap) this.gapChecked = 0;
+		if (this.expected == gap && !this.early.isEmpty()) this.skipGap();
+	}
+	
+	/**
+	 * Pass over the commands missing in front of the first one held, and run what follows
+	 */
+	private void skipGap() {
+		long first = this.early.firstKey();
+		System.err.println("Gave up on " + (first - this.expected) + " broadcasts from " + this.expected);
+		this.expected = first;
+		this.runInOrder();
 	}
 }
 
@@ -7,7 +7,10 @@ import gipc_sims.modes.IPCMode;
 import gipc_sims.modes.SimuMode;
 
 public interface HandlerRemote extends Remote {
-	void executeCommand(String cmd) throws RemoteException;
+	/**
+	 * @param cmd The command, as CommandCodec encodes it
+	 */
+	void executeCommand(long seq, byte[] cmd) throws RemoteException;
 	
 	void setSimuModeChanging() throws RemoteException;
 	boolean setSimuMode(SimuMode mode) throws RemoteException;
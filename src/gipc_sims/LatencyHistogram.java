@@ -0,0 +1,117 @@
+package gipc_sims;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies in buckets whose width grows with the value, like HdrHistogram, so the
+ * tail is kept as precisely as the middle in a fixed, small array. Values below SUB_BUCKETS
+ * nanoseconds get a bucket each. Above that every power of two is cut into SUB_BUCKETS / 2
+ * buckets, so a percentile is never off by more than 2 / SUB_BUCKETS of itself.
+ *
+ * Recording is a few atomic adds, any number of threads may record at once and read
+ * percentiles while they do. A read taken while threads are recording may be off by
+ * those threads' values.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int HALF = SUB_BUCKETS / 2;
+
+	// Values are kept up to about 18 minutes, longer ones count as that
+	private static final int MAX_BITS = 40;
+	public static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong(0);
+
+	/**
+	 * @param nanos A latency, negative ones count as 0 and ones above MAX_VALUE as MAX_VALUE
+	 */
+	public void record(long nanos) {
+		long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+		this.counts.incrementAndGet(index(value));
+		this.count.increment();
+		this.sum.add(value);
+
+		long highest;
+		while (value > (highest = this.max.get()) && !this.max.compareAndSet(highest, value));
+	}
+
+	/**
+	 * @return The bucket of value. Buckets below SUB_BUCKETS hold a value each, above that
+	 *         the top SUB_BITS bits of a value pick its bucket among the ones of its power of two.
+	 */
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+
+		int shift = 64 - SUB_BITS - Long.numberOfLeadingZeros(value);
+		return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+	}
+
+	/**
+	 * @return The highest value in bucket i
+	 */
+	private static long highest(int i) {
+		if (i < SUB_BUCKETS) return i;
+
+		int shift = (i - SUB_BUCKETS) / HALF + 1;
+		long top = (i - SUB_BUCKETS) % HALF + HALF;
+		return ((top + 1) << shift) - 1;
+	}
+
+	/**
+	 * @param percentile From 0 to 100
+	 * @return The latency which that percentile of the values are at or below, as the
+	 *         highest value of its bucket but no more than the highest value recorded
+	 */
+	public long getPercentile(double percentile) {
+		long total = this.count.sum();
+		if (total == 0) return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < this.counts.length(); i++) {
+			seen += this.counts.get(i);
+			if (seen >= rank) return Math.min(highest(i), this.getMax());
+		}
+		return this.getMax();
+	}
+
+	public long getCount() {
+		return this.count.sum();
+	}
+
+	public long getMax() {
+		return this.max.get();
+	}
+
+	public double getMean() {
+		long total = this.count.sum();
+		return (total == 0) ? 0 : (double) this.sum.sum() / total;
+	}
+
+	/**
+	 * Forget every value, values recorded at the same time may or may not be kept
+	 */
+	public void reset() {
+		for (int i = 0; i < this.counts.length(); i++) {
+			this.counts.set(i, 0);
+		}
+		this.count.reset();
+		this.sum.reset();
+		this.max.set(0);
+	}
+
+	/**
+	 * @return The count, mean, p50, p99, p99.9 and max, in microseconds
+	 */
+	@Override
+	public String toString() {
+		return String.format("n=%d mean=%.1f p50=%.1f p99=%.1f p99.9=%.1f max=%.1f us", this.getCount(), this.getMean() / 1000,
+				this.getPercentile(50) / 1000.0, this.getPercentile(99) / 1000.0, this.getPercentile(99.9) / 1000.0, this.getMax() / 1000.0);
+	}
+}
@@ -1,12 +1,23 @@
 package gipc_sims;
 
+import java.io.File;
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.Scanner;
 
 import gipc_sims.modes.ServersSynchronizedMode;
+import gipc_sims.nio.AsyncBroadcastServer;
+import gipc_sims.nio.BackpressurePolicy;
+import gipc_sims.nio.BlockingBroadcastServer;
+import gipc_sims.nio.CommandLog;
+import gipc_sims.nio.Heartbeat;
+import gipc_sims.nio.Jmx;
 import gipc_sims.nio.NioBroadcastServer;
+import gipc_sims.nio.NioClient;
+import gipc_sims.nio.SharedMemoryBroadcastServer;
+import gipc_sims.nio.WaitStrategy;
 import inputport.datacomm.simplex.buffer.nio.AScatterGatherSelectionManager;
 import inputport.rpc.GIPCLocateRegistry;
 import inputport.rpc.GIPCRegistry;
@@ -14,14 +25,36 @@ import inputport.rpc.GIPCRegistry;
 public class RegistryStarter {
 	public static final int GIPC_PORT = 15247;
 	public static final int RMI_PORT = 1099;
+	
+	// The directory each server stack logs its broadcasts under, or null for no logs
+	public static String LOG_DIR = System.getProperty("gipc.logDir");
 
 	public static void main(String[] args) {		
 		try {			
 			// Start different IPC modes, each with their own server stack
-			RegistryStarter.startGIPC(new ServerImpl());
-			RegistryStarter.startRMI(new ServerImpl());
+			RegistryStarter.startGIPC(new ServerImpl(openLog("gipc")));
+			RegistryStarter.startRMI(new ServerImpl(openLog("rmi")));
 			RegistryStarter.startObjectConsensus();
-			NioBroadcastServer.start();
+			
+			// Optionally spread NIO clients across several selector threads
+			int selectorThreads = args.length > 0 ? Integer.parseInt(args[0]) : NioBroadcastServer.DEFAULT_SELECTOR_THREADS;
+			if (LOG_DIR != null) NioBroadcastServer.LOG_DIR = new File(LOG_DIR, "nio").getPath();
+			NioClient.UNIX_SOCKET = System.getProperty("gipc.unixSocket");
+			Heartbeat.INTERVAL_MS = Long.getLong("gipc.heartbeatMs", Heartbeat.INTERVAL_MS);
+			Heartbeat.DEAD_PEER_MS = Long.getLong("gipc.deadPeerMs", Heartbeat.DEAD_PEER_MS);
+			Jmx.ENABLED = Boolean.parseBoolean(System.getProperty("gipc.jmx", "true"));
+			String backpressure = System.getProperty("gipc.backpressure");
+			if (backpressure != null) NioBroadcastServer.BACKPRESSURE = BackpressurePolicy.valueOf(backpressure.toUpperCase());
+			NioBroadcastServer.MAX_PENDING_FRAMES = Integer.getInteger("gipc.maxPendingFrames", NioBroadcastServer.MAX_PENDING_FRAMES);
+			NioBroadcastServer.MAX_PENDING_BYTES = Long.getLong("gipc.maxPendingBytes", NioBroadcastServer.MAX_PENDING_BYTES);
+			NioBroadcastServer.MAX_STALL_MS = Long.getLong("gipc.maxStallMs", NioBroadcastServer.MAX_STALL_MS);
+			NioBroadcastServer.start(selectorThreads);
+			BlockingBroadcastServer.start();
+			AsyncBroadcastServer.start(Integer.getInteger("gipc.asyncThreads", AsyncBroadcastServer.GROUP_THREADS));
+			SharedMemoryBroadcastServer.DIRECTORY = System.getProperty("gipc.shmDir", SharedMemoryBroadcastServer.DIRECTORY);
+			SharedMemoryBroadcastServer.WAIT = WaitStrategy.valueOf(System.getProperty("gipc.shmWait", SharedMemoryBroadcastServer.WAIT.name()).toUpperCase());
+			SharedMemoryBroadcastServer.MAX_STALL_MS = Long.getLong("gipc.shmMaxStallMs", SharedMemoryBroadcastServer.MAX_STALL_MS);
+			SharedMemoryBroadcastServer.start();
 			
 			System.out.println("Registries started");
 			
@@ -38,9 +71,21 @@ public class RegistryStarter {
 			s.close();
 		} catch (RemoteException e) {
 			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * @param name The server stack the log is for
+	 * @return Its command log under LOG_DIR, or null if LOG_DIR isn't set. The server
+	 *         given it replays it into its state of the simulation, see ServerImpl.
+	 */
+	private static CommandLog openLog(String name) throws IOException {
+		if (LOG_DIR == null) return null;
+		return new CommandLog(new File(LOG_DIR, name));
+	}
+	
 	public static void startObjectConsensus() {
 		port.sessionserver.ASessionServerLauncher.main(new String[] { });
 	}
@@ -7,8 +7,16 @@ import gipc_sims.modes.IPCMode;
 import gipc_sims.modes.SimuMode;
 
 public interface Server extends Remote {
-	void join(HandlerRemote r) throws RemoteException;
-	void broadcast(String msg, HandlerRemote src) throws RemoteException;
+	/**
+	 * @return The state of the simulation as r joined, r is sent every command after it
+	 */
+	Snapshot join(HandlerRemote r) throws RemoteException;
+	
+	/**
+	 * @param msg The command, as CommandCodec encodes it
+	 * @return The sequence number given to msg if it wasn't sent back to src, otherwise 0
+	 */
+	long broadcast(byte[] msg, HandlerRemote src) throws RemoteException;
 	
 	void setSimuMode(SimuMode m, HandlerRemote src) throws RemoteException;
 	void setIPCMode(IPCMode m, HandlerRemote src) throws RemoteException;
@@ -1,23 +1,64 @@
 package gipc_sims;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import gipc_sims.modes.ConsensusMode;
 import gipc_sims.modes.IPCMode;
 import gipc_sims.modes.ServersSynchronizedMode;
 import gipc_sims.modes.SimuMode;
+import gipc_sims.nio.CommandLog;
+import gipc_sims.nio.NioBroadcastServer;
+import gipc_sims.nio.ReplayListener;
+import gipc_sims.nio.SimulationState;
 import inputport.rpc.duplex.GIPCRemoteException;
 
 public class ServerImpl extends UnicastRemoteObject implements Server {
 	private static final long serialVersionUID = 8479972969340308906L;
 	private List<HandlerRemote> repository;
 	
+	// Numbers the commands broadcast, so clients can run them in the same order
+	private AtomicLong sequence = new AtomicLong(0);
+	
+	// Every command broadcast, in sequence order, or null
+	private transient CommandLog log;
+	
+	// The state of the simulation as of the last command numbered, for clients which join late.
+	// Also the lock which keeps numbering, logging and the state in step.
+	private transient SimulationState simulation = new SimulationState(NioBroadcastServer.SNAPSHOTS);
+	
 	public ServerImpl() throws RemoteException {
+		this(null);
+	}
+	
+	/**
+	 * @param log The log to add every broadcast command to, or null. Numbering carries
+	 *            on after the last command already in it, and the state of the simulation
+	 *            is rebuilt from it.
+	 */
+	public ServerImpl(CommandLog log) throws RemoteException {
 		this.repository = new ArrayList<HandlerRemote>();
+		this.log = log;
+		if (log != null) {
+			long first = log.getFirstSequence();
+			this.sequence.set(log.getLastSequence());
+			if (first > 1) {
+				System.err.println("Command log starts at " + first + ", late joiners won't see the commands before it");
+			}
+			log.replay(first, new ReplayListener() {
+				@Override
+				public void onCommand(long seq, ByteBuffer payload) {
+					simulation.apply(seq, payload);
+				}
+			});
+			log.start();
+		}
 	}
 
 	@Override
@@ -135,23 +176,37 @@ public class ServerImpl extends UnicastRemoteObject implements Server {
 	}
 	
 	@Override
-	public void join(HandlerRemote r) {
-		if (r != null)
-			this.repository.add(r);
+	public Snapshot join(HandlerRemote r) {
+		// Added under the state's lock, so r is sent every command the snapshot misses
+		List<byte[]> encoded = new ArrayList<byte[]>();
+		long last;
+		synchronized (this.simulation) {
+			if (r != null)
+				this.repository.add(r);
+			
+			last = this.simulation.snapshotEncoded(encoded);
+		}
+		
+		// Decoded once broadcasts can carry on
+		List<String> commands = new ArrayList<String>();
+		SimulationState.decode(encoded, commands);
+		return new Snapshot(last, commands.toArray(new String[commands.size()]));
 	}
 
 	@Override
-	public void broadcast(String msg, HandlerRemote src) {
+	public long broadcast(byte[] msg, HandlerRemote src) {
 		ServersSynchronizedMode.take();
 		
 		try {
+			// Unless synchronized, broadcasts run side by side and reach clients in any order
+			long seq = this.nextSequence(msg);
 			SimuMode mode = SimuMode.get();
 			Iterator<HandlerRemote> it = this.repository.listIterator();
 			while (it.hasNext()) {
 				HandlerRemote r = it.next();
 				if (mode == SimuMode.ATOMIC || !src.equals(r)) {
 					try {
-						r.executeCommand(msg);
+						r.executeCommand(seq, msg);
 					} catch (GIPCRemoteException e) {
 						it.remove();
 					} catch (RemoteException e) {
@@ -159,8 +214,28 @@ public class ServerImpl extends UnicastRemoteObject implements Server {
 					}
 				}
 			}
+			return (mode == SimuMode.ATOMIC) ? 0 : seq;
 		} finally {
 			ServersSynchronizedMode.release();
 		}
 	}
+	
+	/**
+	 * Number a command, add it to the state of the simulation and log it if there is a log
+	 */
+	private long nextSequence(byte[] msg) {
+		// Broadcasts may run side by side, the state and the log need them in sequence order
+		synchronized (this.simulation) {
+			long seq = this.sequence.incrementAndGet();
+			this.simulation.apply(seq, ByteBuffer.wrap(msg));
+			if (this.log != null) {
+				try {
+					this.log.append(seq, ByteBuffer.wrap(msg));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			return seq;
+		}
+	}
 }
@@ -18,13 +18,19 @@ import consensus.dewan.SimulationConsensusLauncher;
 import gipc_sims.modes.ConsensusMode;
 import gipc_sims.modes.IPCMode;
 import gipc_sims.modes.SimuMode;
+import gipc_sims.nio.AsyncClient;
+import gipc_sims.nio.BlockingClient;
+import gipc_sims.nio.Heartbeat;
+import gipc_sims.nio.Jmx;
 import gipc_sims.nio.NioClient;
 import gipc_sims.nio.RspHandler;
+import gipc_sims.nio.SharedMemoryBroadcastServer;
+import gipc_sims.nio.SharedMemoryClient;
+import gipc_sims.nio.Trace;
+import gipc_sims.nio.WaitStrategy;
 import inputport.rpc.GIPCLocateRegistry;
 import inputport.rpc.GIPCRegistry;
 import main.BeauAndersonFinalProject;
-import port.trace.nio.LocalCommandObserved;
-import port.trace.nio.RemoteCommandExecuted;
 import util.trace.TraceableInfo;
 import util.trace.Tracer;
 
@@ -59,6 +65,29 @@ public class Simulation implements PropertyChangeListener {
 				SIMULATION1_PREFIX, 0, SIMULATION_COMMAND_Y_OFFSET, SIMULATION_WIDTH, SIMULATION_HEIGHT, 100, 100);
 		cp.setConnectedToSimulation(false);
 		
+		// Optionally reach the NIO server over a Unix domain socket, when it is on the same host
+		NioClient.UNIX_SOCKET = System.getProperty("gipc.unixSocket");
+		
+		// Credit lets the NIO server hold back commands the handler has no room for
+		NioClient.FLOW_CONTROL = Boolean.parseBoolean(System.getProperty("gipc.flowControl", "true"));
+		
+		// How often an idle NIO connection is kept alive, and how long until a silent server is given up on
+		Heartbeat.INTERVAL_MS = Long.getLong("gipc.heartbeatMs", Heartbeat.INTERVAL_MS);
+		Heartbeat.DEAD_PEER_MS = Long.getLong("gipc.deadPeerMs", Heartbeat.DEAD_PEER_MS);
+		
+		// If the NIO client's metrics are published as MBeans
+		Jmx.ENABLED = Boolean.parseBoolean(System.getProperty("gipc.jmx", "true"));
+		
+		// If broadcast commands are stamped so other replicas can tell how long they took
+		CommandLatency.ENABLED = Boolean.getBoolean("gipc.latency");
+		
+		// Which events of the hot paths are traced, see Trace.configure
+		Trace.configure(System.getProperty("gipc.trace"));
+		
+		// Where to find the shared memory server's rings, and how to wait on them
+		SharedMemoryBroadcastServer.DIRECTORY = System.getProperty("gipc.shmDir", SharedMemoryBroadcastServer.DIRECTORY);
+		SharedMemoryBroadcastServer.WAIT = WaitStrategy.valueOf(System.getProperty("gipc.shmWait", SharedMemoryBroadcastServer.WAIT.name()).toUpperCase());
+		
 		// Command processor
 		try {
 			Simulation sim = new Simulation(cp, name, ip);
@@ -89,18 +118,29 @@ public class Simulation implements PropertyChangeListener {
 		
 		HandlerImpl gipc_handlerImpl;
 		this.handlers.put(IPCMode.GIPC, gipc_handlerImpl = new HandlerImpl(this, gipc_server));
-		gipc_server.join(gipc_handlerImpl);
+		gipc_handlerImpl.joined(gipc_server.join(gipc_handlerImpl));
 		
 		// Start NIO
 		this.handlers.put(IPCMode.NIO, NioClient.startInThread(ip, new RspHandler(this)));
 		
+		// Start blocking
+		this.handlers.put(IPCMode.BLOCKING, BlockingClient.startInThread(ip, new RspHandler(this)));
+		
+		// Start async
+		this.handlers.put(IPCMode.ASYNC, AsyncClient.startInThread(ip, new RspHandler(this)));
+		
+		// Start shared memory, only reachable on the server's host
+		if (SharedMemoryClient.isAvailable()) {
+			this.handlers.put(IPCMode.SHARED_MEMORY, SharedMemoryClient.startInThread(new RspHandler(this)));
+		}
+		
 		// Start RMI
 		Registry rmi_registry = LocateRegistry.getRegistry(ip);
 		Server rmi_server = (Server) rmi_registry.lookup(SERVER_OBJ);
 		HandlerImpl rmi_handlerImpl;
 		this.handlers.put(IPCMode.RMI, rmi_handlerImpl = new HandlerImpl(this, rmi_server));
 		Remote stub = UnicastRemoteObject.exportObject(rmi_handlerImpl, 0);
-		rmi_server.join((HandlerRemote) stub);
+		rmi_handlerImpl.joined(rmi_server.join((HandlerRemote) stub));
 		
 		// Start consensus object
 		short port = (short) ((name.hashCode() % 2000) + 7000);
@@ -133,6 +173,12 @@ public class Simulation implements PropertyChangeListener {
 						getHandler(IPCMode.RMI).sendIPCMode(IPCMode.RMI);
 					} else if (line.equalsIgnoreCase("nio")) {
 						getHandler(IPCMode.RMI).sendIPCMode(IPCMode.NIO);
+					} else if (line.equalsIgnoreCase("blocking")) {
+						getHandler(IPCMode.RMI).sendIPCMode(IPCMode.BLOCKING);
+					} else if (line.equalsIgnoreCase("async")) {
+						getHandler(IPCMode.RMI).sendIPCMode(IPCMode.ASYNC);
+					} else if (line.equalsIgnoreCase("shm")) {
+						getHandler(IPCMode.RMI).sendIPCMode(IPCMode.SHARED_MEMORY);
 					} else if (line.equalsIgnoreCase("simuconsensus")) {
 						getHandler(IPCMode.RMI).sendConsensusModes(!ConsensusMode.requireSimuConsensus, ConsensusMode.requireIPCConsensus);
 					} else if (line.equalsIgnoreCase("ipcconsensus")) {
@@ -154,6 +200,10 @@ public class Simulation implements PropertyChangeListener {
 						} else {
 							System.err.println("Timing not supported without command processor!");
 						}
+					} else if (line.equalsIgnoreCase("latency")) {
+						// What this replica has measured since last asked
+						CommandLatency.print(System.out);
+						CommandLatency.reset();
 					} else if (line.equalsIgnoreCase("showinfo")) {
 						Tracer.showInfo(true);
 					} else if (line.equalsIgnoreCase("hideinfo")) {
@@ -185,7 +235,7 @@ public class Simulation implements PropertyChangeListener {
 		if (!anEvent.getPropertyName().equals("InputString")) return;
 		
 		String cmd = (String) anEvent.getNewValue();
-		LocalCommandObserved.newCase(this, cmd);
+		if (Trace.on(Trace.LOCAL_COMMAND)) Trace.localCommand(this, cmd);
 		
 		synchronized (SimuMode.class) {
 			if (ConsensusMode.requireSimuConsensus && SimuMode.isChanging())
@@ -198,14 +248,18 @@ public class Simulation implements PropertyChangeListener {
 			}
 			
 			if (mode != SimuMode.LOCAL) {
-				getActiveHandler().broadcast(cmd);
+				IPCMode ipcMode = IPCMode.get();
+				HandlerLocal handler = this.handlers.get(ipcMode);
+				if (handler != null) handler.broadcast(CommandLatency.stamp(cmd, ipcMode));
+				else System.err.println("Not connected over " + ipcMode + ", " + cmd + " was not broadcast");
 			}
 		}
 	}
 	
 	public void executeCommand(String cmd) {
+		cmd = CommandLatency.applied(cmd);
 		// System.err.println("Executed " + cmd);
-		RemoteCommandExecuted.newCase(this, cmd);
+		if (Trace.on(Trace.REMOTE_COMMAND)) Trace.remoteCommand(this, cmd);
 		this.cp.processCommand(cmd);
 	}
 	
@@ -0,0 +1,29 @@
+package gipc_sims;
+
+import java.io.Serializable;
+
+/**
+ * The state of the simulation as a client joins, see gipc_sims.nio.SimulationState
+ */
+public class Snapshot implements Serializable {
+	private static final long serialVersionUID = -2912374560182390417L;
+
+	// The sequence number of the last command the snapshot covers
+	private long sequence;
+
+	// The commands which rebuild the state, in order
+	private String[] commands;
+
+	public Snapshot(long sequence, String[] commands) {
+		this.sequence = sequence;
+		this.commands = commands;
+	}
+
+	public long getSequence() {
+		return this.sequence;
+	}
+
+	public String[] getCommands() {
+		return this.commands;
+	}
+}
@@ -37,6 +37,7 @@ public class TimeTester {
 		try {
 //			port.trace.consensus.ConsensusTraceUtility.setTracing();
 			AScatterGatherSelectionManager.setMaxOutstandingWrites(500);
+			CommandLatency.ENABLED = true;
 			Simulation sim = new Simulation(cp, name, ip);
 			
 			int runs = 2;
@@ -61,13 +62,34 @@ public class TimeTester {
 			PAXOS.sendIPCMode(IPCMode.PAXOS);
 			sim.runTiming(runs);
 			
+			// The selector loops against a thread per connection, completion handlers and
+			// shared memory, switched through RMI since none of them can change modes itself
+			HandlerLocal RMI = sim.getHandler(IPCMode.RMI);
+			RMI.sendIPCMode(IPCMode.NIO);
+			sim.runTiming(runs);
+			
+			RMI.sendIPCMode(IPCMode.BLOCKING);
+			sim.runTiming(runs);
+			
+			RMI.sendIPCMode(IPCMode.ASYNC);
+			sim.runTiming(runs);
+			
+			RMI.sendIPCMode(IPCMode.SHARED_MEMORY);
+			sim.runTiming(runs);
+			
 			System.out.println("Finished timing");
+			
+			// What this replica measured, its own commands come back to it in ATOMIC mode
+			Thread.sleep(1000);
+			CommandLatency.print(System.out);
 		} catch (MalformedURLException e) {
 			e.printStackTrace();
 		} catch (NotBoundException e) {
 			e.printStackTrace();
 		} catch (RemoteException e) {
 			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
 		}
 	}
 	
@@ -5,6 +5,12 @@ import gipc_sims.Simulation;
 
 public enum IPCMode {
 	NIO, RMI, GIPC,
+	// A thread per connection with blocking I/O, see BlockingBroadcastServer
+	BLOCKING,
+	// Completion handlers on NIO.2 asynchronous channels, see AsyncBroadcastServer
+	ASYNC,
+	// Rings in memory-mapped files, for clients on the server's host, see SharedMemoryBroadcastServer
+	SHARED_MEMORY,
 	// Using dewan's consensus library
 	NONATOMIC_ASYNC,
 	NONATOMIC_SYNC,
@@ -23,6 +23,10 @@ public class ServersSynchronizedMode {
 		}
 	}
 	
+	public static synchronized boolean isSynchronized() {
+		return isSynchronized;
+	}
+	
 	public static synchronized void setSynchronized(boolean sync) {
 		System.out.println("ServersSynchronizedMode = " + sync);
 		ServersSynchronizedMode.isSynchronized = sync;
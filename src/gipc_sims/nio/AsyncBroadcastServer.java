@@ -0,0 +1,192 @@
+package gipc_sims.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import gipc_sims.modes.ServersSynchronizedMode;
+import gipc_sims.modes.SimuMode;
+
+/**
+ * The broadcast server on NIO.2's completion-based channels. Accepts, reads and writes are
+ * started on AsynchronousSocketChannels and finish on the threads of an
+ * AsynchronousChannelGroup, so there is no selector to wake up and no ChangeRequests to
+ * hand over: a broadcast queues its frame on every client's AsyncChannel and the first
+ * one to find a channel idle starts its write. It speaks the same wire framing as the NIO
+ * stack, HELLO, sequence numbers and the snapshot for late joiners included.
+ *
+ * Broadcasts run on the group's threads as reads complete. ServersSynchronizedMode is taken
+ * around queueing a broadcast rather than until it is written, since waiting for writes
+ * which need the same threads to complete could deadlock the group. For the same reason
+ * a client's backlog is kept within NioBroadcastServer's limits without ever waiting for
+ * room, see AsyncChannel.
+ */
+public class AsyncBroadcastServer {
+	public static final int ASYNC_PORT = 9013;
+
+	// The number of threads reads and writes complete on
+	public static int GROUP_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	private AsynchronousChannelGroup group;
+	private AsynchronousServerSocketChannel serverChannel;
+
+	private List<Connection> clients = new CopyOnWriteArrayList<Connection>();
+
+	// Numbers the frames the server broadcasts, guarded by the server's lock
+	private long sequence = 0;
+
+	// The state of the simulation as of the last broadcast, for clients which join late
+	private SimulationState simulation = new SimulationState(NioBroadcastServer.SNAPSHOTS);
+
+	public AsyncBroadcastServer(InetAddress hostAddress, int port, int groupThreads) throws IOException {
+		this.group = AsynchronousChannelGroup.withFixedThreadPool(groupThreads, newThreadFactory("async-"));
+		this.serverChannel = AsynchronousServerSocketChannel.open(this.group);
+		this.serverChannel.bind(new InetSocketAddress(hostAddress, port));
+	}
+
+	/**
+	 * Start accepting, each accept completes by starting the next
+	 */
+	public void accept() {
+		this.serverChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+			@Override
+			public void completed(AsynchronousSocketChannel socketChannel, Void attachment) {
+				serverChannel.accept(null, this);
+
+				try {
+					socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				Connection connection = new Connection(socketChannel);
+				clients.add(connection);
+				connection.startReading();
+			}
+
+			@Override
+			public void failed(Throwable e, Void attachment) {
+				if (serverChannel.isOpen()) {
+					e.printStackTrace();
+					serverChannel.accept(null, this);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Queue the frame for every client
+	 * @param src The client the frame came from
+	 * @param frame The frame, the caller's reference is released once it is queued
+	 */
+	private void broadcast(Connection src, SharedFrame frame) {
+		ServersSynchronizedMode.take();
+		try {
+			synchronized (this) {
+				frame.setSequence(++this.sequence);
+				this.simulation.apply(frame.getSequence(), frame.payload());
+
+				// If not atomic, don't send to self
+				boolean toSrc = (SimuMode.get() == SimuMode.ATOMIC);
+				for (Connection client: this.clients) {
+					if (toSrc || client != src) client.write(frame, client.framing);
+				}
+			}
+		} finally {
+			frame.release();
+			ServersSynchronizedMode.release();
+		}
+	}
+
+	/**
+	 * @return A factory of daemon threads named prefix followed by a number
+	 */
+	static ThreadFactory newThreadFactory(final String prefix) {
+		return new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task);
+				thread.setName(prefix + this.count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	public static void start() {
+		start(GROUP_THREADS);
+	}
+
+	/**
+	 * Start accepting connections
+	 * @param groupThreads The number of threads reads and writes complete on
+	 */
+	public static void start(int groupThreads) {
+		try {
+			new AsyncBroadcastServer(null, ASYNC_PORT, groupThreads).accept();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * One client
+	 */
+	private class Connection extends AsyncChannel {
+		// How frames are encoded for this client, guarded by the server's lock
+		private Framing framing = Framing.SEPARATOR;
+
+		Connection(AsynchronousSocketChannel channel) {
+			super(channel);
+			this.setLimits(NioBroadcastServer.BACKPRESSURE, NioBroadcastServer.MAX_PENDING_FRAMES, NioBroadcastServer.MAX_PENDING_BYTES);
+		}
+
+		/**
+		 * Answers HELLO and queues the snapshot ahead of the first broadcast, all under
+		 * the server's lock so no broadcast comes between them
+		 */
+		@Override
+		public void onHello(ChannelState state) {
+			synchronized (AsyncBroadcastServer.this) {
+				this.framing = Framing.LENGTH_PREFIXED;
+				this.write(Framing.hello());
+
+				List<String> commands = new ArrayList<String>();
+				long last = simulation.snapshot(commands);
+				SharedFrame frame = SharedFrame.snapshot(last + 1, commands);
+				if (frame.length() + 16 > Framing.MAX_FRAME_LENGTH) {
+					System.err.println("Snapshot of " + frame.length() + " bytes is too large to send, " + this.channel + " starts out of sync");
+					frame.release();
+					frame = SharedFrame.snapshot(last + 1, new ArrayList<String>());
+				}
+				this.write(frame, this.framing);
+				frame.release();
+			}
+		}
+
+		@Override
+		public void onFrame(ChannelState state, int type, long seq, ByteBuffer payload) {
+			if (type != Framing.TYPE_COMMAND) return;
+
+			// Copy out of the read buffer once, every client shares this frame
+			broadcast(this, SharedFrame.copyOf(payload));
+		}
+
+		@Override
+		protected void onClose() {
+			clients.remove(this);
+		}
+	}
+}
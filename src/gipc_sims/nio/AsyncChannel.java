@@ -0,0 +1,342 @@
+package gipc_sims.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One AsynchronousSocketChannel, with a read which is started again each time it
+ * completes and a queue of frames to write. Only one write may be in flight on the
+ * channel, so any thread queues frames and whichever finds the channel idle starts a
+ * gathering write of everything queued, the completion of that write starts the next.
+ * What is read is split into frames and handed to the subclass as a FrameListener.
+ *
+ * The backlog of frames queued or being written may be limited like a ChannelState's, see
+ * setLimits. Writes complete on the threads which queue frames, so nothing waits for
+ * room: BLOCK disconnects like DISCONNECT, and COALESCE drops the oldest commands like
+ * DROP_OLDEST. A length-prefixed peer is told which commands were dropped with
+ * TYPE_LOST, as there is no history to send them again from.
+ */
+abstract class AsyncChannel implements FrameListener {
+	// The size of the read buffer
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	// The most frames gathered into one write
+	private static final int MAX_GATHER = 64;
+
+	protected AsynchronousSocketChannel channel;
+
+	// Splits what is read into frames, only used by the read's completion
+	private FrameDecoder decoder = new FrameDecoder();
+	private ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+	// Frames waiting to be written, and if a write is in flight
+	private ConcurrentLinkedQueue<Write> queued = new ConcurrentLinkedQueue<Write>();
+	private AtomicBoolean writing = new AtomicBoolean(false);
+
+	// The write in flight, only touched by the thread which owns writing
+	private Write[] inFlight = new Write[MAX_GATHER];
+	private ByteBuffer[] gathered = new ByteBuffer[MAX_GATHER];
+	private int gatheredCount = 0;
+
+	private AtomicBoolean closed = new AtomicBoolean(false);
+
+	// Limits on the backlog, unbounded unless a policy is set
+	private BackpressurePolicy policy = null;
+	private int maxFrames = Integer.MAX_VALUE;
+	private long maxBytes = Long.MAX_VALUE;
+
+	// The frames and bytes queued or being written
+	private AtomicInteger pendingFrames = new AtomicInteger(0);
+	private AtomicLong pendingBytes = new AtomicLong(0);
+
+	// If the backlog went over a limit and hasn't been written out since
+	private volatile boolean lagging = false;
+	// If the client was ever reported lagging, only used by the thread which owns writing
+	private boolean reported = false;
+	private AtomicLong droppedFrames = new AtomicLong(0);
+
+	AsyncChannel(AsynchronousSocketChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * @param policy What to do once the backlog goes over a limit
+	 * @param maxFrames The most frames which may be queued or being written
+	 * @param maxBytes The most bytes which may be queued or being written
+	 */
+	void setLimits(BackpressurePolicy policy, int maxFrames, long maxBytes) {
+		this.policy = policy;
+		this.maxFrames = maxFrames;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Called once the channel is closed, by whichever thread closed it
+	 */
+	protected abstract void onClose();
+
+	/**
+	 * Start reading
+	 */
+	void startReading() {
+		this.channel.read(this.readBuffer, null, new CompletionHandler<Integer, Void>() {
+			@Override
+			public void completed(Integer count, Void attachment) {
+				if (count < 0) {
+					close();
+					return;
+				}
+
+				readBuffer.flip();
+				try {
+					decoder.decode(readBuffer, null, AsyncChannel.this);
+				} catch (IOException e) {
+					// Not a valid stream of frames
+					System.out.println(e);
+					close();
+					return;
+				}
+				readBuffer.clear();
+
+				if (!closed.get()) channel.read(readBuffer, null, this);
+			}
+
+			@Override
+			public void failed(Throwable e, Void attachment) {
+				// The remote forcibly closed the connection
+				if (!closed.get()) System.out.println(e);
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Queue a frame to be written, from any thread
+	 * @param frame The frame, the queue takes its own reference
+	 * @param framing How to encode it
+	 */
+	void write(SharedFrame frame, Framing framing) {
+		if (this.closed.get()) return;
+
+		ByteBuffer view = frame.view(framing);
+		if (this.policy != null && this.isOverLimit(1, view.remaining())) {
+			this.markLagging();
+			if (this.policy == BackpressurePolicy.DISCONNECT || this.policy == BackpressurePolicy.BLOCK ||
+					!this.dropOldest(view.remaining(), framing)) {
+				this.close();
+				return;
+			}
+		}
+
+		this.add(new Write(frame.retain(), view));
+		this.flush();
+		if (this.closed.get()) this.drop();
+	}
+
+	/**
+	 * Queue raw bytes to be written, from any thread
+	 * @param buf The bytes, owned by the queue from now on
+	 */
+	void write(ByteBuffer buf) {
+		if (this.closed.get()) return;
+
+		this.add(new Write(null, buf));
+		this.flush();
+		if (this.closed.get()) this.drop();
+	}
+
+	private void add(Write write) {
+		this.pendingFrames.incrementAndGet();
+		this.pendingBytes.addAndGet(write.length);
+		this.queued.add(write);
+	}
+
+	/**
+	 * Forget a write which was written or dropped, and release its frame
+	 */
+	private void done(Write write) {
+		if (write.frame != null) write.frame.release();
+		this.pendingBytes.addAndGet(-write.length);
+		if (this.pendingFrames.decrementAndGet() == 0) this.lagging = false;
+	}
+
+	private boolean isOverLimit(int frames, int length) {
+		return this.pendingFrames.get() + frames > this.maxFrames || this.pendingBytes.get() + length > this.maxBytes;
+	}
+
+	/**
+	 * Called by producers, so it only flags the client, see reportLagging
+	 */
+	private void markLagging() {
+		this.lagging = true;
+	}
+
+	/**
+	 * Called once a write completes to print that the client is lagging, the first time
+	 * it is found to be
+	 */
+	private void reportLagging() {
+		if (!this.lagging || this.reported) return;
+		this.reported = true;
+		System.out.println("Client " + this.channel + " is lagging, " + this.pendingFrames.get() + " frames waiting");
+	}
+
+	/**
+	 * Drop the oldest queued commands until there is room for length bytes more, and
+	 * for the TYPE_LOST frame which covers them. Frames which aren't commands, like HELLO
+	 * and the snapshot, are never dropped.
+	 * @return False if there still isn't room
+	 */
+	private boolean dropOldest(int length, Framing framing) {
+		// Commands are queued in sequence order, so what is dropped is one run of them
+		// along with any of the peer's own in between, which it passes over anyway
+		long from = 0;
+		long to = 0;
+		int frames = (framing == Framing.LENGTH_PREFIXED) ? 2 : 1;
+
+		Iterator<Write> it = this.queued.iterator();
+		while (this.isOverLimit(frames, length) && it.hasNext()) {
+			Write write = it.next();
+			if (write.frame == null) continue;
+			int type = write.frame.getType();
+			if (type != Framing.TYPE_COMMAND && type != Framing.TYPE_BATCH) continue;
+
+			// Whoever removes it owns it, the writer may have taken it first
+			if (!this.queued.remove(write)) continue;
+			long seq = write.frame.getSequence();
+			if (seq != 0) {
+				if (from == 0) from = seq;
+				to = seq + write.frame.getCommands();
+			}
+			this.droppedFrames.incrementAndGet();
+			this.done(write);
+		}
+
+		if (framing == Framing.LENGTH_PREFIXED && from != 0) {
+			SharedFrame lost = SharedFrame.range(Framing.TYPE_LOST, from, to - from);
+			this.add(new Write(lost, lost.view(framing)));
+		}
+		return !this.isOverLimit(1, length);
+	}
+
+	/**
+	 * @return The number of frames dropped to keep the backlog within its limits
+	 */
+	long getDroppedFrames() {
+		return this.droppedFrames.get();
+	}
+
+	/**
+	 * Start writing unless a write is already in flight
+	 */
+	private void flush() {
+		if (this.writing.compareAndSet(false, true)) this.writeNext();
+	}
+
+	/**
+	 * Called by the thread which owns writing, starts a write of everything queued or
+	 * gives up ownership if there is nothing
+	 */
+	private void writeNext() {
+		while (true) {
+			Write write;
+			while (this.gatheredCount < MAX_GATHER && (write = this.queued.poll()) != null) {
+				this.inFlight[this.gatheredCount] = write;
+				this.gathered[this.gatheredCount] = write.buf;
+				this.gatheredCount += 1;
+			}
+			if (this.gatheredCount > 0) break;
+
+			this.writing.set(false);
+
+			// A frame queued after the poll but before writing was cleared is ours to write
+			if (this.queued.isEmpty() || !this.writing.compareAndSet(false, true)) return;
+		}
+
+		this.channel.write(this.gathered, 0, this.gatheredCount, 0L, TimeUnit.MILLISECONDS, null, this.written);
+	}
+
+	// Completes every write, continues a partial write or moves on to the next one
+	private CompletionHandler<Long, Void> written = new CompletionHandler<Long, Void>() {
+		@Override
+		public void completed(Long count, Void attachment) {
+			int first = 0;
+			while (first < gatheredCount && !gathered[first].hasRemaining()) first++;
+			if (first < gatheredCount) {
+				channel.write(gathered, first, gatheredCount - first, 0L, TimeUnit.MILLISECONDS, null, this);
+				return;
+			}
+
+			reportLagging();
+			releaseInFlight();
+			if (closed.get()) return;
+			writeNext();
+		}
+
+		@Override
+		public void failed(Throwable e, Void attachment) {
+			releaseInFlight();
+			if (!closed.get()) System.out.println(e);
+			close();
+		}
+	};
+
+	private void releaseInFlight() {
+		for (int i = 0; i < this.gatheredCount; i++) {
+			this.done(this.inFlight[i]);
+			this.inFlight[i] = null;
+			this.gathered[i] = null;
+		}
+		this.gatheredCount = 0;
+	}
+
+	/**
+	 * Close the channel and drop whatever is still queued
+	 */
+	void close() {
+		if (!this.closed.compareAndSet(false, true)) return;
+
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		this.drop();
+		this.onClose();
+	}
+
+	/**
+	 * Release whatever is still queued, once the channel is closed. Called again by
+	 * anyone who queued a frame just as it closed.
+	 */
+	private void drop() {
+		Write write;
+		while ((write = this.queued.poll()) != null) {
+			this.done(write);
+		}
+	}
+
+	/**
+	 * A queued frame and the view of it being written
+	 */
+	private static class Write {
+		final SharedFrame frame;
+		final ByteBuffer buf;
+		final int length;
+
+		Write(SharedFrame frame, ByteBuffer buf) {
+			this.frame = frame;
+			this.buf = buf;
+			this.length = buf.remaining();
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package gipc_sims.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.concurrent.ExecutionException;
+
+import gipc_sims.HandlerLocal;
+import gipc_sims.modes.IPCMode;
+import gipc_sims.modes.SimuMode;
+import nio_sims.CommandCodec;
+
+/**
+ * A client of AsyncBroadcastServer over an AsynchronousSocketChannel. Commands are queued
+ * on the channel by whichever thread broadcasts them, what the server sends is handed to
+ * the RspHandler as reads complete. Always uses length-prefixed framing.
+ *
+ * A connection's stream is complete and in order, so like BlockingClient this only keeps
+ * the snapshot's sequence number to pass over the broadcasts the snapshot already covers.
+ */
+public class AsyncClient extends AsyncChannel implements HandlerLocal {
+	// The number of threads the client's reads and writes complete on
+	public static int GROUP_THREADS = 1;
+
+	private RspHandler handler;
+
+	// The first of the server's sequence numbers to hand on, 0 until the snapshot arrives.
+	// Only used by the read's completion.
+	private long next = 0;
+
+	// Numbers the frames sent, guarded by the client's lock
+	private long sequence = 0;
+
+	private AsyncClient(AsynchronousSocketChannel channel, RspHandler handler) {
+		super(channel);
+		this.handler = handler;
+	}
+
+	/**
+	 * Connect to the server and ask for length-prefixed framing
+	 * @throws IOException If the connection fails
+	 */
+	public static AsyncClient connect(InetAddress hostAddress, int port, RspHandler handler) throws IOException {
+		AsynchronousChannelGroup group = AsynchronousChannelGroup.withFixedThreadPool(GROUP_THREADS, AsyncBroadcastServer.newThreadFactory("async-client-"));
+		AsynchronousSocketChannel channel = AsynchronousSocketChannel.open(group);
+		try {
+			channel.connect(new InetSocketAddress(hostAddress, port)).get();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+		AsyncClient client = new AsyncClient(channel, handler);
+		client.write(Framing.hello());
+		client.startReading();
+		return client;
+	}
+
+	@Override
+	public void onHello(ChannelState state) {
+		// The server's answer, what follows is length-prefixed
+	}
+
+	@Override
+	public void onFrame(ChannelState state, int type, long seq, ByteBuffer payload) throws IOException {
+		if (type == Framing.TYPE_LOST) {
+			// Dropped by the server to keep our backlog within its limits
+			System.err.println("Lost " + Framing.readVarint(payload) + " broadcasts from " + seq + ", dropped by the server");
+			return;
+		}
+		if (type == Framing.TYPE_SNAPSHOT) {
+			if (this.next != 0) return;
+
+			while (payload.hasRemaining()) {
+				int length = Framing.getVarint(payload, payload.position());
+				payload.position(payload.position() + Framing.varintSize(length));
+
+				ByteBuffer cmd = payload.duplicate();
+				cmd.limit(cmd.position() + length);
+				this.deliver(cmd);
+				payload.position(payload.position() + length);
+			}
+			this.next = seq;
+			return;
+		}
+		if (type != Framing.TYPE_COMMAND) return;
+
+		// Sent before the server saw HELLO, or already covered by the snapshot
+		if (this.next == 0 || seq < this.next) return;
+		this.deliver(payload);
+	}
+
+	/**
+	 * Hand a command to the handler, which copies it. Waits for room, which
+	 * holds up the client's own group but never the server's.
+	 */
+	private void deliver(ByteBuffer payload) {
+		try {
+			this.handler.put(payload);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	protected void onClose() {
+		System.out.println("Connection to the async server closed");
+	}
+
+	/**
+	 * Queue a command to be written to the server
+	 * @param str The command
+	 */
+	@Override
+	public void broadcast(String str) {
+		byte[] data = CommandCodec.encode(str);
+		if (data.length == 0) return;
+
+		SharedFrame frame = SharedFrame.wrap(data);
+		synchronized (this) {
+			// Numbered and queued under the lock, so commands go out in order
+			frame.setSequence(++this.sequence);
+			this.write(frame, Framing.LENGTH_PREFIXED);
+		}
+		frame.release();
+	}
+
+	@Override
+	public void sendSimuMode(SimuMode mode) {
+		throw new RuntimeException("Async does not support SimuMode changing");
+	}
+
+	@Override
+	public void sendIPCMode(IPCMode mode) {
+		throw new RuntimeException("Async does not support IPCMode changing");
+	}
+
+	@Override
+	public void sendConsensusModes(boolean simu, boolean ipc) {
+		throw new RuntimeException("Async does not support concensus mode changing");
+	}
+
+	/**
+	 * Connect and start the handler thread
+	 * @param ip The server's address
+	 * @param handler The handler object
+	 * @return The client, to broadcast with
+	 */
+	public static AsyncClient startInThread(String ip, RspHandler handler) {
+		AsyncClient client;
+		try {
+			client = connect(InetAddress.getByName(ip), AsyncBroadcastServer.ASYNC_PORT, handler);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Failed to create sender!");
+		}
+
+		// Start handler listening in another thread
+		Thread handler_thread = new Thread(handler);
+		handler_thread.setName("rsphandler");
+		handler_thread.start();
+
+		return client;
+	}
+}
@@ -0,0 +1,202 @@
+package gipc_sims.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import gipc_sims.modes.ServersSynchronizedMode;
+import gipc_sims.modes.SimuMode;
+
+/**
+ * The broadcast server with a thread per connection and plain blocking I/O, to weigh
+ * against the selector loops of NioBroadcastServer. Each connection gets a virtual thread,
+ * see VirtualThreads, which reads the client's frames and broadcasts them itself by
+ * writing to every client in turn. It speaks the same wire framing as the NIO stack,
+ * HELLO, sequence numbers and the snapshot for late joiners included.
+ *
+ * Broadcasts are written while holding the server's lock, which keeps every client's
+ * stream in sequence order. There is no backlog to bound or drop from, a client which
+ * stops reading stalls every broadcast once its socket buffer is full.
+ */
+public class BlockingBroadcastServer implements Runnable {
+	public static final int BLOCKING_PORT = 9012;
+
+	// The size of each connection's read buffer
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	private ServerSocketChannel serverChannel;
+
+	private List<Connection> clients = new CopyOnWriteArrayList<Connection>();
+
+	// Numbers the frames the server broadcasts, guarded by the server's lock
+	private long sequence = 0;
+
+	// The state of the simulation as of the last broadcast, for clients which join late
+	private SimulationState simulation = new SimulationState(NioBroadcastServer.SNAPSHOTS);
+
+	private int connections = 0;
+
+	public BlockingBroadcastServer(InetAddress hostAddress, int port) throws IOException {
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.socket().bind(new InetSocketAddress(hostAddress, port));
+	}
+
+	/**
+	 * The acceptor thread, starts a thread for every connection
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				SocketChannel socketChannel = this.serverChannel.accept();
+				socketChannel.socket().setTcpNoDelay(true);
+
+				Connection connection = new Connection(socketChannel);
+				this.clients.add(connection);
+				VirtualThreads.start("blocking-" + (this.connections++), connection);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Write the frame to every client
+	 * @param src The client the frame came from
+	 * @param frame The frame, the caller's reference is released once it is written
+	 */
+	private void broadcast(Connection src, SharedFrame frame) {
+		ServersSynchronizedMode.take();
+		try {
+			synchronized (this) {
+				frame.setSequence(++this.sequence);
+				this.simulation.apply(frame.getSequence(), frame.payload());
+
+				// If not atomic, don't send to self
+				boolean toSrc = (SimuMode.get() == SimuMode.ATOMIC);
+				for (Connection client: this.clients) {
+					if (toSrc || client != src) client.write(frame);
+				}
+			}
+		} finally {
+			frame.release();
+
+			// Every client has been written to by now
+			ServersSynchronizedMode.release();
+		}
+	}
+
+	/**
+	 * Start the acceptor thread
+	 */
+	public static void start() {
+		try {
+			Thread server_thread = new Thread(new BlockingBroadcastServer(null, BLOCKING_PORT));
+			server_thread.setName("blocking-acceptor");
+			server_thread.start();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * One client, read by its own thread and written to by whichever thread broadcasts
+	 */
+	private class Connection implements Runnable, FrameListener {
+		private SocketChannel channel;
+
+		// Splits what is read into frames, only used by the connection's thread
+		private FrameDecoder decoder = new FrameDecoder();
+
+		// How frames are encoded for this client, guarded by the server's lock
+		private Framing framing = Framing.SEPARATOR;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public void run() {
+			ByteBuffer readBuffer = BufferPool.acquire(READ_BUFFER_SIZE);
+			try {
+				while (this.channel.read(readBuffer) >= 0) {
+					readBuffer.flip();
+					this.decoder.decode(readBuffer, null, this);
+					readBuffer.clear();
+				}
+			} catch (IOException e) {
+				// The remote forcibly closed the connection, or sent something which isn't a frame
+				System.out.println(e);
+			} finally {
+				this.close();
+				this.decoder.close();
+				BufferPool.release(readBuffer);
+			}
+		}
+
+		/**
+		 * Answers HELLO and sends the snapshot ahead of the first broadcast, all under
+		 * the server's lock so no broadcast comes between them
+		 */
+		@Override
+		public void onHello(ChannelState state) throws IOException {
+			synchronized (BlockingBroadcastServer.this) {
+				this.framing = Framing.LENGTH_PREFIXED;
+				this.writeFully(Framing.hello());
+
+				List<String> commands = new ArrayList<String>();
+				long last = simulation.snapshot(commands);
+				SharedFrame frame = SharedFrame.snapshot(last + 1, commands);
+				if (frame.length() + 16 > Framing.MAX_FRAME_LENGTH) {
+					System.err.println("Snapshot of " + frame.length() + " bytes is too large to send, " + this.channel + " starts out of sync");
+					frame.release();
+					frame = SharedFrame.snapshot(last + 1, new ArrayList<String>());
+				}
+				this.write(frame);
+				frame.release();
+			}
+		}
+
+		@Override
+		public void onFrame(ChannelState state, int type, long seq, ByteBuffer payload) {
+			if (type != Framing.TYPE_COMMAND) return;
+
+			// Copy out of the read buffer once, every client shares this frame
+			broadcast(this, SharedFrame.copyOf(payload));
+		}
+
+		/**
+		 * Called with the server's lock held, drops the client if the write fails
+		 */
+		void write(SharedFrame frame) {
+			try {
+				this.writeFully(frame.view(this.framing));
+			} catch (IOException e) {
+				System.out.println(e);
+				this.close();
+			}
+		}
+
+		private void writeFully(ByteBuffer buf) throws IOException {
+			while (buf.hasRemaining()) {
+				this.channel.write(buf);
+			}
+		}
+
+		private void close() {
+			clients.remove(this);
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package gipc_sims.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import gipc_sims.HandlerLocal;
+import gipc_sims.modes.IPCMode;
+import gipc_sims.modes.SimuMode;
+import nio_sims.CommandCodec;
+
+/**
+ * A client of BlockingBroadcastServer over a blocking SocketChannel. A virtual thread reads
+ * what the server sends and hands each command to the RspHandler, commands are written by
+ * whichever thread broadcasts them. Always uses length-prefixed framing.
+ *
+ * Nothing is dropped or reordered over a blocking connection, so unlike NioClient this
+ * needs no SequenceTracker. Only the snapshot's sequence number is kept, to pass over the
+ * broadcasts the snapshot already covers.
+ */
+public class BlockingClient implements HandlerLocal, Runnable, FrameListener {
+	// The size of the read buffer
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	private SocketChannel channel;
+	private RspHandler handler;
+
+	// Splits what is read into frames, only used by the reader thread
+	private FrameDecoder decoder = new FrameDecoder();
+
+	// The first of the server's sequence numbers to hand on, 0 until the snapshot arrives.
+	// Only used by the reader thread.
+	private long next = 0;
+
+	// Numbers the frames sent, guarded by the client's lock which also keeps frames whole
+	private long sequence = 0;
+
+	/**
+	 * Connect to the server and ask for length-prefixed framing
+	 * @throws IOException If the connection fails
+	 */
+	public BlockingClient(InetAddress hostAddress, int port, RspHandler handler) throws IOException {
+		this.handler = handler;
+		this.channel = SocketChannel.open(new InetSocketAddress(hostAddress, port));
+		this.channel.socket().setTcpNoDelay(true);
+		this.writeFully(Framing.hello());
+	}
+
+	/**
+	 * The reader thread
+	 */
+	@Override
+	public void run() {
+		ByteBuffer readBuffer = BufferPool.acquire(READ_BUFFER_SIZE);
+		try {
+			while (this.channel.read(readBuffer) >= 0) {
+				readBuffer.flip();
+				this.decoder.decode(readBuffer, null, this);
+				readBuffer.clear();
+			}
+		} catch (IOException e) {
+			// The remote forcibly closed the connection, or sent something which isn't a frame
+			System.out.println(e);
+		} finally {
+			this.decoder.close();
+			BufferPool.release(readBuffer);
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public void onHello(ChannelState state) {
+		// The server's answer, what follows is length-prefixed
+	}
+
+	@Override
+	public void onFrame(ChannelState state, int type, long seq, ByteBuffer payload) {
+		if (type == Framing.TYPE_SNAPSHOT) {
+			if (this.next != 0) return;
+
+			while (payload.hasRemaining()) {
+				int length = Framing.getVarint(payload, payload.position());
+				payload.position(payload.position() + Framing.varintSize(length));
+
+				ByteBuffer cmd = payload.duplicate();
+				cmd.limit(cmd.position() + length);
+				this.deliver(cmd);
+				payload.position(payload.position() + length);
+			}
+			this.next = seq;
+			return;
+		}
+		if (type != Framing.TYPE_COMMAND) return;
+
+		// Sent before the server saw HELLO, or already covered by the snapshot
+		if (this.next == 0 || seq < this.next) return;
+		this.deliver(payload);
+	}
+
+	/**
+	 * Hand a command to the handler, which copies it, waiting for room
+	 */
+	private void deliver(ByteBuffer payload) {
+		try {
+			this.handler.put(payload);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Write a command to the server, waiting until it is all written
+	 * @param str The command
+	 */
+	@Override
+	public void broadcast(String str) {
+		byte[] data = CommandCodec.encode(str);
+		if (data.length == 0) return;
+
+		synchronized (this) {
+			ByteBuffer frame = Framing.LENGTH_PREFIXED.encode(Framing.TYPE_COMMAND, ++this.sequence, ByteBuffer.wrap(data));
+			try {
+				this.writeFully(frame);
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				BufferPool.release(frame);
+			}
+		}
+	}
+
+	private void writeFully(ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			this.channel.write(buf);
+		}
+	}
+
+	@Override
+	public void sendSimuMode(SimuMode mode) {
+		throw new RuntimeException("Blocking does not support SimuMode changing");
+	}
+
+	@Override
+	public void sendIPCMode(IPCMode mode) {
+		throw new RuntimeException("Blocking does not support IPCMode changing");
+	}
+
+	@Override
+	public void sendConsensusModes(boolean simu, boolean ipc) {
+		throw new RuntimeException("Blocking does not support concensus mode changing");
+	}
+
+	/**
+	 * Connect and start the reader and handler threads
+	 * @param ip The server's address
+	 * @param handler The handler object
+	 * @return The client, to broadcast with
+	 */
+	public static BlockingClient startInThread(String ip, RspHandler handler) {
+		BlockingClient client;
+		try {
+			client = new BlockingClient(InetAddress.getByName(ip), BlockingBroadcastServer.BLOCKING_PORT, handler);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Failed to create sender!");
+		}
+		VirtualThreads.start("blocking-reader", client);
+
+		// Start handler listening in another thread
+		Thread handler_thread = new Thread(handler);
+		handler_thread.setName("rsphandler");
+		handler_thread.start();
+
+		return client;
+	}
+}
@@ -0,0 +1,206 @@
+package gipc_sims.nio;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffers shared by the selector, worker and handler threads, sorted into power of two
+ * size classes. Buffers are direct by default, so socket reads and writes don't go
+ * through the JDK's hidden temporary direct buffer. Every acquired buffer must be
+ * released exactly once, after which the caller must not touch it again.
+ *
+ * With LEAK_DETECTION on, the pool remembers where each buffer was acquired and reports
+ * any buffer which is garbage collected without having been released, or is released
+ * twice. This costs an allocation per acquire, so it's meant for debugging only.
+ */
+public class BufferPool {
+	// If pooled buffers are allocated off-heap
+	public static boolean DIRECT = true;
+
+	// If acquired buffers are tracked to find leaks
+	public static boolean LEAK_DETECTION = Boolean.getBoolean("nio.leakDetection");
+
+	// The largest buffers kept per size class
+	public static int MAX_POOLED_PER_CLASS = 64;
+
+	// Size classes go from 2^MIN_SHIFT to 2^MAX_SHIFT bytes, larger buffers aren't pooled
+	private static final int MIN_SHIFT = 6;
+	private static final int MAX_SHIFT = 16;
+
+	private static final SizeClass[] classes = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+	static {
+		for (int i = 0; i < classes.length; i++) {
+			classes[i] = new SizeClass(1 << (MIN_SHIFT + i));
+		}
+	}
+
+	// Buffers acquired and not yet released
+	private static final AtomicInteger outstanding = new AtomicInteger(0);
+
+	// Used by leak detection, buffers are only weakly held so a leaked buffer can be collected
+	private static final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+	private static final Map<Integer, List<Lease>> leases = new HashMap<Integer, List<Lease>>();
+
+	/**
+	 * Take a buffer of at least the given capacity
+	 * @param capacity The number of bytes needed
+	 * @return A cleared buffer with its limit set to capacity
+	 */
+	public static ByteBuffer acquire(int capacity) {
+		SizeClass sizeClass = classFor(capacity);
+
+		ByteBuffer buf = (sizeClass == null) ? null : sizeClass.poll();
+		if (buf == null) {
+			int size = (sizeClass == null) ? capacity : sizeClass.size;
+			buf = DIRECT ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		}
+		buf.clear();
+		buf.limit(capacity);
+
+		outstanding.incrementAndGet();
+		if (LEAK_DETECTION) track(buf);
+		return buf;
+	}
+
+	/**
+	 * Give back a buffer taken from acquire. Views and slices of the buffer must not be
+	 * used afterwards.
+	 * @param buf The buffer, not a view of it
+	 */
+	public static void release(ByteBuffer buf) {
+		if (LEAK_DETECTION) untrack(buf);
+		outstanding.decrementAndGet();
+
+		SizeClass sizeClass = classFor(buf.capacity());
+		if (sizeClass != null && sizeClass.size == buf.capacity() && buf.isDirect() == DIRECT) {
+			sizeClass.offer(buf);
+		}
+	}
+
+	/**
+	 * @return The number of buffers acquired and not yet released
+	 */
+	public static int outstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * Print where every buffer which hasn't been released yet was acquired. Only knows
+	 * about buffers acquired while LEAK_DETECTION was on.
+	 */
+	public static void reportOutstanding() {
+		synchronized (leases) {
+			for (List<Lease> bucket: leases.values()) {
+				for (Lease lease: bucket) {
+					System.err.println("Buffer of " + lease.capacity + " bytes not yet released, acquired:");
+					lease.site.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private static SizeClass classFor(int capacity) {
+		int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1));
+		if (shift > MAX_SHIFT) return null;
+		return classes[shift - MIN_SHIFT];
+	}
+
+	private static void track(ByteBuffer buf) {
+		reportCollected();
+
+		Lease lease = new Lease(buf);
+		synchronized (leases) {
+			List<Lease> bucket = leases.get(lease.hash);
+			if (bucket == null) {
+				bucket = new ArrayList<Lease>(1);
+				leases.put(lease.hash, bucket);
+			}
+			bucket.add(lease);
+		}
+	}
+
+	private static void untrack(ByteBuffer buf) {
+		int hash = System.identityHashCode(buf);
+		synchronized (leases) {
+			List<Lease> bucket = leases.get(hash);
+			if (bucket != null) {
+				for (int i = 0; i < bucket.size(); i++) {
+					if (bucket.get(i).get() == buf) {
+						bucket.remove(i);
+						if (bucket.isEmpty()) leases.remove(hash);
+						return;
+					}
+				}
+			}
+		}
+		throw new IllegalStateException("Buffer was released twice, or was not acquired from the pool");
+	}
+
+	/**
+	 * Report every tracked buffer which was garbage collected without being released
+	 */
+	private static void reportCollected() {
+		Lease lease;
+		while ((lease = (Lease) collected.poll()) != null) {
+			synchronized (leases) {
+				List<Lease> bucket = leases.get(lease.hash);
+				if (bucket == null || !bucket.remove(lease)) continue;
+				if (bucket.isEmpty()) leases.remove(lease.hash);
+			}
+
+			outstanding.decrementAndGet();
+			System.err.println("LEAK: buffer of " + lease.capacity + " bytes was garbage collected without being released, acquired:");
+			lease.site.printStackTrace();
+		}
+	}
+
+	private static class Lease extends WeakReference<ByteBuffer> {
+		final int hash;
+		final int capacity;
+		final Throwable site = new Throwable("Buffer acquired here");
+
+		Lease(ByteBuffer buf) {
+			super(buf, collected);
+			this.hash = System.identityHashCode(buf);
+			this.capacity = buf.capacity();
+		}
+	}
+
+	/**
+	 * The free buffers of one size. Lock held only to push or pop, so no allocation is needed.
+	 */
+	private static class SizeClass {
+		final int size;
+		private ByteBuffer[] free = new ByteBuffer[4];
+		private int count = 0;
+
+		SizeClass(int size) {
+			this.size = size;
+		}
+
+		synchronized ByteBuffer poll() {
+			if (this.count == 0) return null;
+
+			ByteBuffer buf = this.free[--this.count];
+			this.free[this.count] = null;
+			return buf;
+		}
+
+		synchronized void offer(ByteBuffer buf) {
+			if (this.count == this.free.length) {
+				if (this.count >= MAX_POOLED_PER_CLASS) return;
+
+				ByteBuffer[] free = new ByteBuffer[Math.min(this.free.length * 2, MAX_POOLED_PER_CLASS)];
+				System.arraycopy(this.free, 0, free, 0, this.count);
+				this.free = free;
+			}
+			this.free[this.count++] = buf;
+		}
+	}
+}
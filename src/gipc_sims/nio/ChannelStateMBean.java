@@ -0,0 +1,40 @@
+package gipc_sims.nio;
+
+/**
+ * What JMX sees of one connection, see ChannelState
+ */
+public interface ChannelStateMBean {
+	long getBytesRead();
+
+	long getFramesRead();
+
+	long getBytesWritten();
+
+	long getFramesWritten();
+
+	/**
+	 * @return How many writes the socket only took part of
+	 */
+	long getPartialWrites();
+
+	int getPendingFrames();
+
+	/**
+	 * @return The most frames which have waited to be written at once
+	 */
+	int getPendingFramesHighWater();
+
+	long getPendingBytes();
+
+	boolean isLagging();
+
+	long getLimitHits();
+
+	long getBlockedNanos();
+
+	long getDroppedFrames();
+
+	long getCoalescedFrames();
+
+	long getCreditStalls();
+}
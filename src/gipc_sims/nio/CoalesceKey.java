@@ -0,0 +1,16 @@
+package gipc_sims.nio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Picks which broadcasts supersede each other under BackpressurePolicy.COALESCE. A frame
+ * waiting for a lagging client is dropped once a newer frame with an equal key is queued
+ * behind it.
+ */
+public interface CoalesceKey {
+	/**
+	 * @param payload The broadcast message, from its position to its limit. Must be left unchanged.
+	 * @return The key, or null if the frame must never be coalesced
+	 */
+	Object keyOf(ByteBuffer payload);
+}
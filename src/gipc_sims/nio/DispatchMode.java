@@ -0,0 +1,14 @@
+package gipc_sims.nio;
+
+/**
+ * Which thread broadcasts the frames a selector loop reads
+ */
+public enum DispatchMode {
+	// Frames are handed to the EchoWorker thread, which broadcasts them
+	WORKER,
+	// The selector thread which read a frame broadcasts it straight away. Saves the hand-off
+	// to the worker and, for clients of the same loop, waking the selector back up. A
+	// selector thread never waits for room, so BackpressurePolicy.BLOCK then disconnects a
+	// client which goes over its limits, like DISCONNECT.
+	INLINE;
+}
@@ -1,5 +1,6 @@
 package gipc_sims.nio;
 
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.LinkedList;
 import java.util.List;
@@ -7,11 +8,11 @@ import java.util.List;
 public class EchoWorker implements Runnable {
 	private List<ServerDataEvent> queue = new LinkedList<ServerDataEvent>();
 	
-	public void processData(NioBroadcastServer server, SocketChannel socket, byte[] data, int count) {
-		byte[] dataCopy = new byte[count];
-		System.arraycopy(data, 0, dataCopy, 0, count);
+	public void processData(NioBroadcastServer server, SocketChannel socket, ByteBuffer payload) {
+		// Copy out of the read buffer once, every client shares this frame
+		SharedFrame frame = SharedFrame.copyOf(payload);
 		synchronized(queue) {
-			queue.add(new ServerDataEvent(server, socket, dataCopy));
+			queue.add(new ServerDataEvent(server, socket, frame));
 			queue.notify();
 		}
 	}
@@ -32,7 +33,7 @@ public class EchoWorker implements Runnable {
 			}
 			
 			// Broadcast to others
-			dataEvent.server.broadcast(dataEvent.socket, dataEvent.data);
+			dataEvent.server.broadcast(dataEvent.socket, dataEvent.frame);
 		}
 	}
 }
@@ -0,0 +1,253 @@
+package gipc_sims.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits one channel's input into frames. Complete frames are handed to the listener
+ * straight out of the read buffer, only a frame which is cut off by the end of a read
+ * is copied aside until the rest of it arrives. That copy is a BufferPool buffer which
+ * grows to fit the frame, so frames may be longer than the read buffer.
+ */
+public class FrameDecoder {
+	private static final int INITIAL_PARTIAL_CAPACITY = 256;
+
+	// How the peer frames what it sends, switched by HELLO
+	private Framing framing = Framing.SEPARATOR;
+
+	// The start of a frame which did not fit in earlier reads, in write mode. Only
+	// borrowed from the pool while there is such a frame.
+	private ByteBuffer partial;
+
+	public Framing getFraming() {
+		return this.framing;
+	}
+
+	/**
+	 * Called by the selector thread with everything it has just read
+	 * @param in The data, from its position to its limit. Consumed completely.
+	 * @param state The channel the data came from
+	 * @param listener Told about every complete frame
+	 * @return The number of complete frames, a batch counting as one
+	 * @throws IOException If the input is not a valid stream of frames
+	 */
+	public int decode(ByteBuffer in, ChannelState state, FrameListener listener) throws IOException {
+		int frames = 0;
+
+		// Finish the frame left over from the last read first
+		if (this.partial != null) {
+			if (!this.fillPartial(in)) return frames;
+
+			int total = this.partial.position();
+			this.partial.flip();
+			this.dispatch(this.partial, 0, total, state, listener);
+			frames += 1;
+
+			this.close();
+		}
+
+		// Hand out every complete frame in place
+		int limit = in.limit();
+		while (in.hasRemaining()) {
+			int start = in.position();
+			int total = this.frameLength(in, start, limit);
+			if (total < 0 || total > limit - start) {
+				// Keep the start of the frame for the next read
+				this.append(in, in.remaining(), total);
+				return frames;
+			}
+
+			this.dispatch(in, start, total, state, listener);
+			frames += 1;
+			in.limit(limit);
+			in.position(start + total);
+		}
+		return frames;
+	}
+
+	/**
+	 * Hand back the start of any frame still waiting for the rest of its data
+	 */
+	public void close() {
+		if (this.partial == null) return;
+
+		BufferPool.release(this.partial);
+		this.partial = null;
+	}
+
+	/**
+	 * Copy from in until the partial frame is complete
+	 * @return True if the partial frame is complete
+	 */
+	private boolean fillPartial(ByteBuffer in) throws IOException {
+		while (true) {
+			if (this.framing == Framing.SEPARATOR && this.partial.get(0) != Framing.HELLO) {
+				// Copy up to and including the next separator
+				int end = indexOfSeparator(in, in.position(), in.limit());
+				this.append(in, end < 0 ? in.remaining() : end + 1 - in.position(), -1);
+				return end >= 0;
+			}
+
+			int total = this.frameLength(this.partial, 0, this.partial.position());
+			if (total >= 0) {
+				int need = total - this.partial.position();
+				this.append(in, Math.min(need, in.remaining()), total);
+				return this.partial.position() == total;
+			}
+
+			// The length prefix isn't complete yet, take it one byte at a time
+			if (!in.hasRemaining()) return false;
+			this.append(in, 1, -1);
+		}
+	}
+
+	/**
+	 * Copy the next count bytes of in onto the end of the partial frame
+	 * @param total The length of the whole frame if it is known, otherwise -1
+	 */
+	private void append(ByteBuffer in, int count, int total) throws IOException {
+		int size = (this.partial == null ? 0 : this.partial.position()) + count;
+		if (size > Framing.MAX_FRAME_LENGTH) {
+			throw new IOException("Frame is longer than " + Framing.MAX_FRAME_LENGTH + " bytes");
+		}
+
+		int capacity = this.partial == null ? 0 : this.partial.limit();
+		if (size > capacity) {
+			capacity = Math.max(Math.max(size, total), Math.max(capacity * 2, INITIAL_PARTIAL_CAPACITY));
+			ByteBuffer grown = BufferPool.acquire(Math.min(capacity, Framing.MAX_FRAME_LENGTH));
+			if (this.partial != null) {
+				this.partial.flip();
+				grown.put(this.partial);
+				BufferPool.release(this.partial);
+			}
+			this.partial = grown;
+		}
+
+		int limit = in.limit();
+		in.limit(in.position() + count);
+		this.partial.put(in);
+		in.limit(limit);
+	}
+
+	/**
+	 * @return The length of the frame starting at from, or -1 if buf ends before that is known
+	 * @throws IOException If the frame is too long or its length is malformed
+	 */
+	private int frameLength(ByteBuffer buf, int from, int to) throws IOException {
+		if (to <= from) return -1;
+
+		// Neither framing has a frame starting with a zero byte
+		if (buf.get(from) == Framing.HELLO) {
+			return to - from >= Framing.HELLO_LENGTH ? Framing.HELLO_LENGTH : -1;
+		}
+
+		if (this.framing == Framing.SEPARATOR) {
+			int end = indexOfSeparator(buf, from, to);
+			if (end >= 0) return end + 1 - from;
+
+			if (to - from > Framing.MAX_FRAME_LENGTH) {
+				throw new IOException("Frame is longer than " + Framing.MAX_FRAME_LENGTH + " bytes");
+			}
+			return -1;
+		}
+
+		// An int takes at most 5 varint bytes
+		long length = 0;
+		for (int i = 0; i < 5; i++) {
+			if (from + i >= to) return -1;
+
+			byte b = buf.get(from + i);
+			length |= (long) (b & 0x7F) << (7 * i);
+			if ((b & 0x80) == 0) {
+				if (i + 1 + length > Framing.MAX_FRAME_LENGTH) {
+					throw new IOException("Frame is longer than " + Framing.MAX_FRAME_LENGTH + " bytes");
+				}
+				return i + 1 + (int) length;
+			}
+		}
+		throw new IOException("Malformed frame length");
+	}
+
+	/**
+	 * Hand the complete frame in buf to the listener. Leaves buf's position and limit
+	 * anywhere within the frame.
+	 */
+	private void dispatch(ByteBuffer buf, int from, int total, ChannelState state, FrameListener listener) throws IOException {
+		int end = from + total;
+
+		if (buf.get(from) == Framing.HELLO) {
+			byte version = buf.get(from + 1);
+			if (version != Framing.VERSION) throw new IOException("Unsupported framing version " + version);
+
+			this.framing = Framing.LENGTH_PREFIXED;
+			listener.onHello(state);
+			return;
+		}
+
+		if (this.framing == Framing.SEPARATOR) {
+			// Everything but the separator
+			buf.limit(end - 1);
+			buf.position(from);
+			listener.onFrame(state, Framing.TYPE_COMMAND, 0, buf);
+			return;
+		}
+
+		// Skip the length, frameLength already checked it
+		int pos = from;
+		while ((buf.get(pos++) & 0x80) != 0);
+
+		if (pos >= end) throw new IOException("Frame is missing its type");
+		int type = buf.get(pos++) & 0xFF;
+
+		long seq = 0;
+		int shift = 0;
+		byte b;
+		do {
+			if (pos >= end || shift > 63) throw new IOException("Malformed sequence number");
+			b = buf.get(pos++);
+			seq |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+
+		if (type == Framing.TYPE_BATCH) {
+			this.dispatchBatch(buf, pos, end, seq, state, listener);
+			return;
+		}
+
+		buf.limit(end);
+		buf.position(pos);
+		listener.onFrame(state, type, seq, buf);
+	}
+
+	/**
+	 * Hand every command in a batch to the listener as if it had been sent on its own
+	 */
+	private void dispatchBatch(ByteBuffer buf, int pos, int end, long seq, ChannelState state, FrameListener listener) throws IOException {
+		while (pos < end) {
+			// The listener may move position and limit, so the next entry is found from pos
+			buf.limit(end);
+			int length = 0;
+			int shift = 0;
+			byte b;
+			do {
+				if (pos >= end || shift > 28) throw new IOException("Malformed batch entry length");
+				b = buf.get(pos++);
+				length |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			if (length < 0 || length > end - pos) throw new IOException("Batch entry overruns its frame");
+
+			buf.limit(pos + length);
+			buf.position(pos);
+			listener.onFrame(state, Framing.TYPE_COMMAND, seq++, buf);
+			pos += length;
+		}
+	}
+
+	private static int indexOfSeparator(ByteBuffer buf, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (buf.get(i) == NioClient.SEPERATOR) return i;
+		}
+		return -1;
+	}
+}
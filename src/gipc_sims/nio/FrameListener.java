@@ -0,0 +1,25 @@
+package gipc_sims.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives what a FrameDecoder finds in a channel's input, on the selector thread
+ */
+public interface FrameListener {
+	/**
+	 * Called when the peer switched to length-prefixed framing
+	 * @param state The channel the peer sent HELLO on
+	 */
+	void onHello(ChannelState state) throws IOException;
+
+	/**
+	 * Called once for every complete message
+	 * @param state The channel the message came from
+	 * @param type The message type, TYPE_COMMAND for separated messages
+	 * @param seq The sender's sequence number, 0 for separated messages
+	 * @param payload The message from its position to its limit. Only valid until
+	 *                this returns, copy anything which needs to be kept.
+	 */
+	void onFrame(ChannelState state, int type, long seq, ByteBuffer payload) throws IOException;
+}
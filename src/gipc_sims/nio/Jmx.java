@@ -0,0 +1,70 @@
+package gipc_sims.nio;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Registers the NIO server's and clients' MBeans with the platform MBean server, with
+ * this package's name as their domain, so a lagging client can be spotted from JConsole
+ * or any other JMX client without turning on tracing. An MBean which can't be registered
+ * only costs a message, monitoring never stops a server or a client.
+ */
+public class Jmx {
+	// Off to register nothing
+	public static boolean ENABLED = true;
+
+	private static final String DOMAIN = Jmx.class.getPackage().getName();
+
+	// Numbers connections, whose addresses alone may not tell them apart
+	private static final AtomicLong connections = new AtomicLong(0);
+
+	/**
+	 * @param mbean The MBean
+	 * @param type The kind of thing it watches
+	 * @param name Which one of those it watches
+	 * @return The name it was registered under, or null if it wasn't
+	 */
+	static ObjectName register(Object mbean, String type, String name) {
+		if (!ENABLED) return null;
+
+		try {
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+			return objectName;
+		} catch (JMException e) {
+			System.err.println("Couldn't register " + type + " " + name + " with JMX: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * @param objectName The name from register, or null
+	 */
+	static void unregister(ObjectName objectName) {
+		if (objectName == null) return;
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			// Already gone
+		}
+	}
+
+	/**
+	 * @return A name for a connected channel, from a number of its own and both of its
+	 *         ends. Over a Unix domain socket every connection has the same ends.
+	 */
+	static String connectionName(SocketChannel channel) {
+		String id = connections.incrementAndGet() + ": ";
+		try {
+			return id + channel.getLocalAddress() + " -> " + channel.getRemoteAddress();
+		} catch (IOException e) {
+			return id + channel;
+		}
+	}
+}
@@ -0,0 +1,388 @@
+package gipc_sims.nio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A ring of frames in a memory-mapped file, written by one producer and read by up to as
+ * many readers as it has slots, each of them in any process which maps the file. A frame
+ * is written once however many readers there are.
+ *
+ * The file starts with a header holding the capacity, the number of slots, the count of
+ * bytes ever written (the tail) and, for each slot, the count of bytes its reader has read
+ * (its cursor) and the reader's session. The tail and each slot are on a cache line of
+ * their own. The frames follow the header, each a 16 byte header of payload length, type,
+ * origin and sequence number then the payload, padded to 8 bytes. A frame which doesn't
+ * fit before the end of the ring goes at the start, after a marker telling readers to skip
+ * the rest.
+ *
+ * Frames are written with plain stores and published by storing the tail with release
+ * semantics, which readers load with acquire semantics before reading the frames. Cursors
+ * are published the same way in the other direction, and the producer never writes over
+ * what an active reader hasn't read yet.
+ */
+public class MappedRing {
+	private static final int MAGIC = 0x52494e47;
+
+	// The layout of the header
+	private static final int CACHE_LINE = 64;
+	private static final int MAGIC_OFFSET = 0;
+	private static final int CAPACITY_OFFSET = 4;
+	private static final int SLOTS_OFFSET = 8;
+	private static final int TAIL_OFFSET = CACHE_LINE;
+	private static final int SLOTS_START = 2 * CACHE_LINE;
+	private static final int SESSION_OFFSET = 8;
+
+	// The layout of a frame
+	private static final int FRAME_HEADER = 16;
+	private static final int PADDING = -1;
+
+	// A slot's cursor while nobody holds it, while a reader is taking it, and once the
+	// producer has given up on its reader
+	public static final long FREE = -1;
+	private static final long CLAIMING = -2;
+	public static final long EVICTED = -3;
+
+	// Ordered access to the longs of the header, the file is only ever shared on one host
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private File file;
+	private MappedByteBuffer buf;
+
+	// Where frames are copied in or read from, a view of buf
+	private ByteBuffer frames;
+
+	// The bytes frames may take up, a multiple of 8
+	private int capacity;
+	private int slots;
+	private int dataStart;
+
+	// The producer's tail, and how far it may go before it has to look at the cursors again
+	private long tail = 0;
+	private long limit = 0;
+
+	// Each slot's cursor when the producer last saw it move, and when that was, for evictStalled
+	private long[] lastCursor;
+	private long[] lastProgress;
+
+	// The reader's slot, or -1, and its cursor as it last published it
+	private int slot = -1;
+	private long cursor;
+
+	private MappedRing(File file, MappedByteBuffer buf) throws IOException {
+		this.file = file;
+		this.buf = buf;
+		this.frames = buf.duplicate();
+		this.frames.order(ByteOrder.nativeOrder());
+
+		if (buf.getInt(MAGIC_OFFSET) != MAGIC) throw new IOException(file + " is not a ring");
+		this.capacity = buf.getInt(CAPACITY_OFFSET);
+		this.slots = buf.getInt(SLOTS_OFFSET);
+		this.dataStart = SLOTS_START + this.slots * CACHE_LINE;
+
+		this.lastCursor = new long[this.slots];
+		this.lastProgress = new long[this.slots];
+	}
+
+	/**
+	 * Create the ring as its producer, replacing any file already there. The ring is set up
+	 * in a file of its own and then moved into place, so readers never map half of it.
+	 * @param file Where the ring goes
+	 * @param capacity The bytes frames may take up
+	 * @param slots The most readers it may have at once
+	 * @return The ring
+	 * @throws IOException If the file can't be created
+	 */
+	public static MappedRing create(File file, int capacity, int slots) throws IOException {
+		capacity = align(capacity);
+		File tmp = new File(file.getPath() + ".tmp");
+		MappedByteBuffer buf = map(tmp, SLOTS_START + slots * CACHE_LINE + capacity, true);
+
+		buf.putInt(CAPACITY_OFFSET, capacity);
+		buf.putInt(SLOTS_OFFSET, slots);
+		for (int i = 0; i < slots; i++) {
+			buf.putLong(slotOffset(i), FREE);
+		}
+		buf.putInt(MAGIC_OFFSET, MAGIC);
+
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return new MappedRing(file, buf);
+	}
+
+	/**
+	 * Map a ring some other process created
+	 * @param file Where the ring is
+	 * @return The ring, to claim a slot of
+	 * @throws IOException If there is no ring there
+	 */
+	public static MappedRing open(File file) throws IOException {
+		return new MappedRing(file, map(file, file.length(), false));
+	}
+
+	private static MappedByteBuffer map(File file, long size, boolean create) throws IOException {
+		if (!create && !file.exists()) throw new IOException(file + " does not exist");
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (create) {
+				// Start from zeroes
+				raf.setLength(0);
+				raf.setLength(size);
+			}
+			MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buf.order(ByteOrder.nativeOrder());
+			return buf;
+		} finally {
+			// The mapping outlives the channel
+			raf.close();
+		}
+	}
+
+	private static int slotOffset(int slot) {
+		return SLOTS_START + slot * CACHE_LINE;
+	}
+
+	private static int align(int size) {
+		return (size + 7) & ~7;
+	}
+
+	public File getFile() {
+		return this.file;
+	}
+
+	public int getSlots() {
+		return this.slots;
+	}
+
+	/**
+	 * @return The longest payload a frame may have
+	 */
+	public int getMaxPayload() {
+		return this.capacity - FRAME_HEADER;
+	}
+
+	/**
+	 * Called by the producer to write a frame, if there is room for it
+	 * @param type The frame's type
+	 * @param seq The frame's sequence number
+	 * @param origin The slot whose reader passes over the frame, or -1 for none
+	 * @param payload The payload, from its position to its limit. Left as it is.
+	 * @return False if some reader still has to read what the frame would be written over
+	 */
+	public boolean offer(int type, long seq, int origin, ByteBuffer payload) {
+		int length = payload.remaining();
+		int size = align(FRAME_HEADER + length);
+		if (size > this.capacity) throw new IllegalArgumentException("A payload of " + length + " bytes doesn't fit in " + this.file);
+
+		this.frames.clear();
+		int pos = (int) (this.tail % this.capacity);
+		int skip = (this.capacity - pos < size) ? this.capacity - pos : 0;
+		long end = this.tail + skip + size;
+		if (end > this.limit) {
+			// Only look at the cursors again once the room seen last time is used up
+			this.limit = this.minCursor() + this.capacity;
+			if (end > this.limit) return false;
+		}
+
+		if (skip > 0) {
+			this.frames.putInt(this.dataStart + pos, PADDING);
+			pos = 0;
+		}
+
+		int at = this.dataStart + pos;
+		this.frames.putInt(at, length);
+		this.frames.putShort(at + 4, (short) type);
+		this.frames.putShort(at + 6, (short) origin);
+		this.frames.putLong(at + 8, seq);
+
+		int start = payload.position();
+		this.frames.limit(at + FRAME_HEADER + length);
+		this.frames.position(at + FRAME_HEADER);
+		this.frames.put(payload);
+		payload.position(start);
+
+		this.tail = end;
+		LONGS.setRelease(this.buf, TAIL_OFFSET, end);
+		return true;
+	}
+
+	/**
+	 * @return The cursor of the reader furthest behind, or the tail if there are no readers
+	 */
+	private long minCursor() {
+		long min = this.tail;
+		for (int i = 0; i < this.slots; i++) {
+			long cursor = (long) LONGS.getAcquire(this.buf, slotOffset(i));
+			if (cursor >= 0 && cursor < min) min = cursor;
+		}
+		return min;
+	}
+
+	/**
+	 * Called by the producer while there is no room, gives up on every reader which has
+	 * something left to read but hasn't read anything for maxStall. Its slot is EVICTED
+	 * until the producer frees it.
+	 * @param maxStall In nanoseconds
+	 * @return The number of readers given up on
+	 */
+	public int evictStalled(long maxStall) {
+		long now = System.nanoTime();
+		int evicted = 0;
+		for (int i = 0; i < this.slots; i++) {
+			long cursor = (long) LONGS.getAcquire(this.buf, slotOffset(i));
+			if (cursor < 0 || cursor == this.tail || cursor != this.lastCursor[i]) {
+				this.lastCursor[i] = cursor;
+				this.lastProgress[i] = now;
+			} else if (now - this.lastProgress[i] > maxStall && LONGS.compareAndSet(this.buf, slotOffset(i), cursor, EVICTED)) {
+				evicted += 1;
+			}
+		}
+
+		if (evicted > 0) this.limit = 0;
+		return evicted;
+	}
+
+	/**
+	 * @return The slot's cursor, or FREE or EVICTED
+	 */
+	public long getCursor(int slot) {
+		return (long) LONGS.getAcquire(this.buf, slotOffset(slot));
+	}
+
+	/**
+	 * @return The session of the slot's reader, only meaningful while it has a cursor
+	 */
+	public long getSession(int slot) {
+		return (long) LONGS.getAcquire(this.buf, slotOffset(slot) + SESSION_OFFSET);
+	}
+
+	/**
+	 * Called by the producer to let another reader have an EVICTED slot
+	 */
+	public void free(int slot) {
+		LONGS.compareAndSet(this.buf, slotOffset(slot), EVICTED, FREE);
+	}
+
+	/**
+	 * Take a free slot, to read every frame written from now on
+	 * @param session Tells this reader apart from earlier ones in the same slot
+	 * @return The slot, or -1 if every slot is taken
+	 */
+	public int claim(long session) {
+		for (int i = 0; i < this.slots; i++) {
+			int offset = slotOffset(i);
+			if (!LONGS.compareAndSet(this.buf, offset, FREE, CLAIMING)) continue;
+
+			// The producer only looks at the session once there is a cursor
+			LONGS.setRelease(this.buf, offset + SESSION_OFFSET, session);
+			this.cursor = (long) LONGS.getAcquire(this.buf, TAIL_OFFSET);
+			LONGS.setRelease(this.buf, offset, this.cursor);
+			this.slot = i;
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Called by the producer before any reader can see the ring, to hold a slot for a
+	 * reader which takes it over later with resume. Nothing written in the meantime is
+	 * written over, the producer waits for room instead.
+	 * @param slot The slot to hold
+	 */
+	public void reserve(int slot) {
+		LONGS.setRelease(this.buf, slotOffset(slot), this.tail);
+	}
+
+	/**
+	 * Take over a slot the producer reserved, to read every frame written since
+	 * @param slot The slot
+	 * @return The slot, or -1 if it isn't held
+	 */
+	public int resume(int slot) {
+		long cursor = (long) LONGS.getAcquire(this.buf, slotOffset(slot));
+		if (cursor < 0) return -1;
+
+		this.cursor = cursor;
+		this.slot = slot;
+		return slot;
+	}
+
+	/**
+	 * Give back the reader's slot
+	 */
+	public void release() {
+		if (this.slot < 0) return;
+
+		LONGS.compareAndSet(this.buf, slotOffset(this.slot), this.cursor, FREE);
+		this.slot = -1;
+	}
+
+	/**
+	 * Called by the reader to read every frame written since it last polled, passing over
+	 * those whose origin is its slot
+	 * @param listener Told about each frame. The payload is part of the ring, so it must be
+	 *                 copied during the call, and the copy is only good if isHeld is still
+	 *                 true afterwards.
+	 * @return The number of frames read or passed over, or -1 if the producer gave up on
+	 *         this reader
+	 * @throws IOException If the listener throws
+	 */
+	public int poll(FrameListener listener) throws IOException {
+		long tail = (long) LONGS.getAcquire(this.buf, TAIL_OFFSET);
+		if (tail == this.cursor) return 0;
+
+		long cursor = this.cursor;
+		int count = 0;
+		while (cursor < tail) {
+			this.frames.clear();
+			int pos = (int) (cursor % this.capacity);
+			int at = this.dataStart + pos;
+			int length = this.frames.getInt(at);
+			if (length == PADDING) {
+				cursor += this.capacity - pos;
+				continue;
+			}
+
+			if (this.frames.getShort(at + 6) != this.slot) {
+				int type = this.frames.getShort(at + 4);
+				long seq = this.frames.getLong(at + 8);
+				this.frames.limit(at + FRAME_HEADER + length);
+				this.frames.position(at + FRAME_HEADER);
+				listener.onFrame(null, type, seq, this.frames);
+			}
+			cursor += align(FRAME_HEADER + length);
+			count += 1;
+		}
+
+		// Hands the frames back to the producer, unless it has taken the slot away
+		if (!LONGS.compareAndSet(this.buf, slotOffset(this.slot), this.cursor, cursor)) return -1;
+		this.cursor = cursor;
+		return count;
+	}
+
+	/**
+	 * @return True if the reader still holds its slot, so nothing it read during the
+	 *         current poll has been written over
+	 */
+	public boolean isHeld() {
+		// Whatever was read from the ring before this is done with
+		VarHandle.acquireFence();
+		return this.slot >= 0 && (long) LONGS.getAcquire(this.buf, slotOffset(this.slot)) == this.cursor;
+	}
+
+	/**
+	 * Delete the ring's file, the mapping stays until it is garbage collected
+	 */
+	public void delete() {
+		this.file.delete();
+	}
+}
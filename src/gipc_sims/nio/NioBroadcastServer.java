@@ -1,254 +1,511 @@
 package gipc_sims.nio;
+import java.io.File;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.channels.spi.SelectorProvider;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import gipc_sims.modes.ServersSynchronizedMode;
 import gipc_sims.modes.SimuMode;
 
-public class NioBroadcastServer implements Runnable {
-	// The host:port combination to listen on
-	private InetAddress hostAddress;
-	private int port;
+public class NioBroadcastServer implements NioBroadcastServerMBean {
+	// Number of selector loops to run behind the acceptor. 0 runs accept, read
+	// and write on a single selector thread.
+	public static final int DEFAULT_SELECTOR_THREADS = 0;
+	
+	// Which thread broadcasts what the selector loops read. INLINE is opt-in, under it a
+	// BLOCK policy can't wait and disconnects instead, see DispatchMode. INLINE falls back
+	// to WORKER while ServersSynchronizedMode is on since a selector thread can't wait for
+	// its own writes.
+	public static DispatchMode DISPATCH = DispatchMode.WORKER;
+	
+	// Limits on the backlog waiting to be written to one client, and what happens
+	// to a client which goes over them. Null leaves the backlog unbounded and never
+	// gives up on a client, a policy has to be chosen to apply the limits.
+	public static int MAX_PENDING_FRAMES = 10000;
+	public static long MAX_PENDING_BYTES = 4 << 20;
+	public static BackpressurePolicy BACKPRESSURE = null;
+	
+	// How long a client may go without taking any of its backlog before it is
+	// treated as lagging, even if it is within its limits. Only with a BACKPRESSURE
+	// policy, under DISCONNECT and BLOCK a lagging client is disconnected.
+	public static long MAX_STALL_MS = 2000;
+	
+	// Picks the frames which supersede each other under COALESCE, or null
+	public static CoalesceKey COALESCE_KEY = null;
+	
+	// If broadcasts arriving close together are packed into batch frames, see CommandBatcher,
+	// off while ServersSynchronizedMode is on since each broadcast waits for the last
+	public static boolean BATCHING = false;
+	
+	// How many of the latest broadcasts are kept to be sent again to clients which missed them
+	public static int HISTORY_SIZE = 4096;
+	
+	// The directory broadcasts are logged to, see CommandLog, or null for no log
+	public static String LOG_DIR = null;
+	
+	// If the server keeps a copy of the simulation's state for clients which join late,
+	// see SimulationState. Otherwise late joiners only see what is broadcast after they join.
+	public static boolean SNAPSHOTS = true;
+	
+	// Where to listen, a host:port combination or a Unix domain socket, see UnixSockets
+	private SocketAddress address;
 
 	// The channel on which we'll accept connections
 	private ServerSocketChannel serverChannel;
 
-	// The selector we'll be monitoring
-	private Selector selector;
-
-	// The buffer into which we'll read data when it's available
-	private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+	// The loop which accepts new connections
+	private SelectorLoop acceptor;
+	
+	// The loops which accepted connections are handed to
+	private SelectorLoop[] loops;
+	private int nextLoop = 0;
 
 	private EchoWorker worker;
-
-	private Set<SocketChannel> clients = new HashSet<SocketChannel>();
 	
-	// A list of PendingChange instances
-	private List<ChangeRequest> pendingChanges = new LinkedList<ChangeRequest>();
-
-	// Maps a SocketChannel to a list of ByteBuffer instances
-	private Map<SocketChannel, List<ByteBuffer>> pendingData = new HashMap<SocketChannel, List<ByteBuffer>>();
+	// Numbers the frames the server broadcasts, in the order they are broadcast
+	private AtomicLong sequence = new AtomicLong(0);
+	
+	// Packs broadcasts into batches if BATCHING is on, or null
+	private CommandBatcher batcher;
+	
+	// The latest broadcasts, each at its sequence number modulo HISTORY_SIZE, and the
+	// client each one wasn't sent to. Guarded by history's own lock, so selector threads
+	// never wait on a broadcast.
+	private SharedFrame[] history;
+	private SocketChannel[] historySkipped;
+	
+	// Every broadcast, in sequence order, if LOG_DIR is set
+	private CommandLog log;
+	
+	// The state of the simulation as of the last broadcast
+	private SimulationState simulation;
 
-	private NioBroadcastServer(InetAddress hostAddress, int port, EchoWorker worker) throws IOException {
-		this.hostAddress = hostAddress;
-		this.port = port;
-		this.selector = this.initSelector();
+	private NioBroadcastServer(SocketAddress address, EchoWorker worker, int selectorThreads) throws IOException {
+		this.address = address;
 		this.worker = worker;
+		
+		this.acceptor = new SelectorLoop(this);
+		if (selectorThreads <= 0) {
+			// Single reactor, the acceptor also serves every client
+			this.loops = new SelectorLoop[] { this.acceptor };
+		} else {
+			this.loops = new SelectorLoop[selectorThreads];
+			for (int i = 0; i < selectorThreads; i++) {
+				this.loops[i] = new SelectorLoop(this);
+			}
+		}
+		
+		this.history = new SharedFrame[HISTORY_SIZE];
+		this.historySkipped = new SocketChannel[HISTORY_SIZE];
+		
+		this.simulation = new SimulationState(SNAPSHOTS);
+		if (LOG_DIR != null) this.openLog(new File(LOG_DIR));
+		
+		if (BATCHING) {
+			this.batcher = new CommandBatcher() {
+				@Override
+				protected void send(SharedFrame frame, Object src) {
+					// Commands from different sources are only batched when they all go to every client
+					fanOut((SocketChannel) src, frame, src == null);
+					frame.release();
+				}
+			};
+		}
+		
+		this.initServerChannel();
+		Jmx.register(this, "NioBroadcastServer", String.valueOf(address));
 	}
 	
-	public void broadcast(SocketChannel src, byte[] data) {
+	/**
+	 * Queue the frame for every client. Every client's queue holds a view of the same
+	 * frame, the frame is released after the last client has written it.
+	 * @param src The client the frame came from
+	 * @param frame The frame, the caller's reference is released once it is queued
+	 */
+	public synchronized void broadcast(SocketChannel src, SharedFrame frame) {
+		// Synchronized so every client sees broadcasts in sequence order, even when
+		// several selector threads broadcast inline
 		ServersSynchronizedMode.take();
 		
-		synchronized (this.clients) {
-			Iterator<SocketChannel> clients = this.clients.iterator();
-			while (clients.hasNext()) {
-				SocketChannel socket = clients.next();
-				
-				// If not atomic, don't send to self
-				if (SimuMode.get() != SimuMode.ATOMIC && socket == src) continue;
+		boolean batched = false;
+		try {
+			frame.setSequence(this.sequence.incrementAndGet());
+			if (COALESCE_KEY != null) frame.setCoalesceKey(COALESCE_KEY.keyOf(frame.payload()));
+			this.append(frame);
+			this.simulation.apply(frame.getSequence(), frame.payload());
+			
+			// If not atomic, don't send to self
+			boolean toSrc = (SimuMode.get() == SimuMode.ATOMIC);
+			this.remember(frame, toSrc ? null : src);
+			if (this.batcher != null) {
+				if (!ServersSynchronizedMode.isSynchronized()) {
+					this.batcher.add(frame, toSrc ? null : src);
+					batched = true;
+					return;
+				}
 				
-				synchronized (this.pendingChanges) {
-					// Indicate we want the interest ops set changed
-					this.pendingChanges.add(new ChangeRequest(socket, ChangeRequest.CHANGEOPS, SelectionKey.OP_WRITE));
+				// Anything batched before synchronizing goes out first
+				this.batcher.flush();
+			}
+			
+			this.fanOut(src, frame, toSrc);
+		} finally {
+			if (!batched) frame.release();
+		}
+	}
+	
+	/**
+	 * Add a broadcast to the command log, if there is one. The append is a copy into
+	 * mapped memory, the log's flusher thread puts it on disk.
+	 */
+	private void append(SharedFrame frame) {
+		if (this.log == null) return;
 		
-					// And queue the data we want written
-					synchronized (this.pendingData) {
-						List<ByteBuffer> queue = this.pendingData.get(socket);
-						if (queue == null) {
-							queue = new ArrayList<ByteBuffer>();
-							this.pendingData.put(socket, queue);
-						}
-						queue.add(ByteBuffer.wrap(data));
-					}
-				}
+		try {
+			this.log.append(frame.getSequence(), frame.payload());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Open the command log, carry on numbering broadcasts after the last one logged and
+	 * rebuild the simulation's state and the history from the log
+	 */
+	private void openLog(File dir) throws IOException {
+		this.log = new CommandLog(dir);
+		long first = this.log.getFirstSequence();
+		final long last = this.log.getLastSequence();
+		this.sequence.set(last);
+		
+		if (first > 1) {
+			System.err.println("Command log starts at " + first + ", late joiners won't see the commands before it");
+		}
+		this.log.replay(first, new ReplayListener() {
+			@Override
+			public void onCommand(long seq, ByteBuffer payload) {
+				simulation.apply(seq, payload);
+				if (seq <= last - history.length) return;
+				
+				SharedFrame frame = SharedFrame.copyOf(payload);
+				frame.setSequence(seq);
+				remember(frame, null);
+				frame.release();
 			}
+		});
+	}
+	
+	/**
+	 * Keep a broadcast in the history, in place of the one HISTORY_SIZE broadcasts before it
+	 * @param frame The broadcast, the history takes its own reference
+	 * @param skipped The client it isn't sent to, or null
+	 */
+	private void remember(SharedFrame frame, SocketChannel skipped) {
+		synchronized (this.history) {
+			int slot = (int) (frame.getSequence() % this.history.length);
+			if (this.history[slot] != null) this.history[slot].release();
+			this.history[slot] = frame.retain();
+			this.historySkipped[slot] = skipped;
 		}
-
-		// Finally, wake up our selecting thread so it can make the required changes
-		this.selector.wakeup();
 	}
-
-	public void run() {
-		while (true) {
-			try {
-				// Process any pending changes
-				synchronized (this.pendingChanges) {
-					Iterator<ChangeRequest> changes = this.pendingChanges.iterator();
-					while (changes.hasNext()) {
-						ChangeRequest change = changes.next();
-						switch (change.type) {
-						case ChangeRequest.CHANGEOPS:
-							SelectionKey key = change.socket.keyFor(this.selector);
-							key.interestOps(change.ops);
-						}
-					}
-					this.pendingChanges.clear();
+	
+	/**
+	 * Called by a selector loop once a client has switched to length-prefixed framing, to
+	 * send it the state of the simulation so far. Broadcasts already numbered may still
+	 * reach the client after the snapshot, it passes over those the snapshot covers.
+	 * @param loop The loop the client belongs to
+	 * @param state The client
+	 */
+	void sendSnapshot(SelectorLoop loop, ChannelState state) {
+		// Only the state's own lock, a selector thread never waits on a broadcast
+		List<String> commands = new ArrayList<String>();
+		long last = this.simulation.snapshot(commands);
+		
+		SharedFrame frame = SharedFrame.snapshot(last + 1, commands);
+		// Leaving room for the longest header
+		if (frame.length() + 16 > Framing.MAX_FRAME_LENGTH) {
+			System.err.println("Snapshot of " + frame.length() + " bytes is too large to send, " + state.getChannel() + " starts out of sync");
+			frame.release();
+			frame = SharedFrame.snapshot(last + 1, new ArrayList<String>());
+		}
+		loop.send(state, frame);
+		frame.release();
+	}
+	
+	/**
+	 * Called by a selector loop when a client asks for broadcasts it missed. Whatever is
+	 * still in the history is sent again, the rest is reported as lost.
+	 * @param loop The loop the client belongs to
+	 * @param state The client
+	 * @param from The first sequence number asked for
+	 * @param count The number of broadcasts asked for
+	 */
+	void retransmit(SelectorLoop loop, ChannelState state, long from, long count) {
+		synchronized (this.history) {
+			long to = Math.min(from + count, this.sequence.get() + 1);
+			from = Math.max(from, 1);
+			if (from >= to) return;
+			
+			// Anything older than the history is gone
+			long oldest = Math.max(from, to - this.history.length);
+			long lostFrom = (oldest > from) ? from : 0;
+			
+			// Send no more than half the room left in the client's backlog, so the
+			// retransmission isn't dropped again. The client asks for the rest once
+			// this has arrived.
+			to = Math.min(to, oldest + Math.max(1, state.getFrameRoom() / 2));
+			
+			for (long seq = oldest; seq < to; seq++) {
+				int slot = (int) (seq % this.history.length);
+				SharedFrame frame = this.history[slot];
+				if (frame == null || frame.getSequence() != seq) {
+					if (lostFrom == 0) lostFrom = seq;
+					continue;
 				}
-
-				// Wait for an event one of the registered channels
-				this.selector.select();
-
-				// Iterate over the set of keys for which events are available
-				Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
-				while (selectedKeys.hasNext()) {
-					SelectionKey key = selectedKeys.next();
-					selectedKeys.remove();
-
-					if (!key.isValid()) {
-						continue;
-					}
-
-					// Check what event is available and deal with it
-					if (key.isAcceptable()) {
-						this.accept(key);
-					} else if (key.isReadable()) {
-						this.read(key);
-					} else if (key.isWritable()) {
-						this.write(key);
-					}
+				
+				if (lostFrom != 0) {
+					this.sendRange(loop, state, Framing.TYPE_LOST, lostFrom, seq - lostFrom);
+					lostFrom = 0;
+				}
+				
+				if (this.historySkipped[slot] == state.getChannel()) {
+					// The client's own command, which it has already run
+					this.sendRange(loop, state, Framing.TYPE_SKIP, seq, 1);
+				} else {
+					loop.send(state, frame);
 				}
-			} catch (Exception e) {
-				e.printStackTrace();
 			}
+			if (lostFrom != 0) this.sendRange(loop, state, Framing.TYPE_LOST, lostFrom, to - lostFrom);
 		}
 	}
-
-	private void accept(SelectionKey key) throws IOException {
-		// For an accept to be pending the channel must be a server socket channel.
-		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
-
-		// Accept the connection and make it non-blocking
-		SocketChannel socketChannel = serverSocketChannel.accept();
-		socketChannel.configureBlocking(false);
-
-		// Register the new SocketChannel with our Selector, indicating
-		// we'd like to be notified when there's data waiting to be read
-		socketChannel.register(this.selector, SelectionKey.OP_READ);
-		
-		synchronized(this.clients) {
-			this.clients.add(socketChannel);
+	
+	private void sendRange(SelectorLoop loop, ChannelState state, int type, long seq, long count) {
+		SharedFrame frame = SharedFrame.range(type, seq, count);
+		loop.send(state, frame);
+		frame.release();
+	}
+	
+	/**
+	 * Queue a frame for every client on every loop
+	 */
+	private void fanOut(SocketChannel src, SharedFrame frame, boolean toSrc) {
+		for (SelectorLoop loop: this.loops) {
+			loop.broadcast(src, frame, toSrc);
 		}
 	}
-
-	private void read(SelectionKey key) throws IOException {
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-
-		// Clear out our read buffer so it's ready for new data
-		this.readBuffer.clear();
-
-		// Attempt to read off the channel
-		int numRead;
-		try {
-			numRead = socketChannel.read(this.readBuffer);
-		} catch (IOException e) {
-			// The remote forcibly closed the connection, cancel
-			// the selection key and close the channel.
-			synchronized(this.clients) {
-				this.clients.remove(socketChannel);
-			}
-			key.cancel();
-			socketChannel.close();
-			System.out.println("Connection forcibly closed by remote");
-			return;
+	
+	/**
+	 * Called by a selector loop for every frame a client sent, broadcasts it or hands
+	 * it off to the worker thread
+	 */
+	void processData(SocketChannel socket, ByteBuffer payload) {
+		if (DISPATCH == DispatchMode.INLINE && !ServersSynchronizedMode.isSynchronized()) {
+			// Copy out of the read buffer once, every client shares this frame
+			this.broadcast(socket, SharedFrame.copyOf(payload));
+		} else {
+			this.worker.processData(this, socket, payload);
 		}
-
-		if (numRead == -1) {
-			// Remote entity shut the socket down cleanly. Do the
-			// same from our end and cancel the channel.
-			synchronized(this.clients) {
-				this.clients.remove(socketChannel);
-			}
-			key.channel().close();
-			key.cancel();
-			System.out.println("Client disconnected");
-			return;
+	}
+	
+	boolean hasPendingData() {
+		for (SelectorLoop loop: this.loops) {
+			if (loop.hasPendingData()) return true;
 		}
-
-		// Hand the data off to our worker thread
-		this.worker.processData(this, socketChannel, this.readBuffer.array(), numRead);
+		return false;
 	}
 
-	private void write(SelectionKey key) throws IOException {
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-
-		boolean noPendingData = true;
-		synchronized (this.pendingData) {
-			List<ByteBuffer> queue = (List<ByteBuffer>) this.pendingData.get(socketChannel);
-
-			// Write until there's not more data ...
-			while (!queue.isEmpty()) {
-				ByteBuffer buf = (ByteBuffer) queue.get(0);
-				socketChannel.write(buf);
-				if (buf.remaining() > 0) {
-					// ... or the socket's buffer fills up
-					break;
-				}
-				queue.remove(0);
-			}
-
-			if (queue.isEmpty()) {
-				// We wrote away all data, so we're no longer interested
-				// in writing on this socket. Switch back to waiting for
-				// data.
-				key.interestOps(SelectionKey.OP_READ);
-			}
-			
-			// Check if pendingData is empty
-			for (List<ByteBuffer> bb: this.pendingData.values()) {
-				if (bb != null && !bb.isEmpty()) {
-					noPendingData = false;
-					break;
-				}
-			}
+	/**
+	 * @return Every client whose backlog went over its limits and hasn't been written out since
+	 */
+	public List<ChannelState> getLaggingClients() {
+		List<ChannelState> lagging = new ArrayList<ChannelState>();
+		for (SelectorLoop loop: this.loops) {
+			loop.collectLagging(lagging);
 		}
+		return lagging;
+	}
+	
+	/**
+	 * @return The acceptor and every loop behind it, once each
+	 */
+	private SelectorLoop[] selectorLoops() {
+		if (this.loops[0] == this.acceptor) return this.loops;
 		
-		if (noPendingData) ServersSynchronizedMode.release();
+		SelectorLoop[] all = new SelectorLoop[this.loops.length + 1];
+		all[0] = this.acceptor;
+		System.arraycopy(this.loops, 0, all, 1, this.loops.length);
+		return all;
+	}
+	
+	/**
+	 * @return What went through every client the server ever had
+	 */
+	private Traffic traffic() {
+		Traffic total = new Traffic();
+		for (SelectorLoop loop: this.loops) {
+			loop.addTraffic(total);
+		}
+		return total;
+	}
+	
+	public int getClients() {
+		int clients = 0;
+		for (SelectorLoop loop: this.loops) {
+			clients += loop.getClientCount();
+		}
+		return clients;
+	}
+	
+	public int getLaggingClientCount() {
+		return this.getLaggingClients().size();
 	}
+	
+	public long getBroadcasts() {
+		return this.sequence.get();
+	}
+	
+	public long getBytesRead() {
+		return this.traffic().getBytesRead();
+	}
+	
+	public long getFramesRead() {
+		return this.traffic().getFramesRead();
+	}
+	
+	public long getBytesWritten() {
+		return this.traffic().getBytesWritten();
+	}
+	
+	public long getFramesWritten() {
+		return this.traffic().getFramesWritten();
+	}
+	
+	public long getPartialWrites() {
+		return this.traffic().getPartialWrites();
+	}
+	
+	public long getSelectorIterations() {
+		long iterations = 0;
+		for (SelectorLoop loop: this.selectorLoops()) {
+			iterations += loop.getStats().getIterations();
+		}
+		return iterations;
+	}
+	
+	public long getSelectorBusyNanos() {
+		long nanos = 0;
+		for (SelectorLoop loop: this.selectorLoops()) {
+			nanos += loop.getStats().getBusyNanos();
+		}
+		return nanos;
+	}
+	
+	public long getSelectorMaxIterationNanos() {
+		long max = 0;
+		for (SelectorLoop loop: this.selectorLoops()) {
+			max = Math.max(max, loop.getStats().getMaxNanos());
+		}
+		return max;
+	}
+	
+	/**
+	 * @return How many times producers asked the selector threads to wake up
+	 */
+	public long getWakeupRequests() {
+		long requests = 0;
+		for (SelectorLoop loop: this.selectorLoops()) {
+			requests += loop.getWaker().getRequests();
+		}
+		return requests;
+	}
+	
+	/**
+	 * @return How many of those requests woke a selector, the rest found it awake already
+	 */
+	public long getWakeups() {
+		long wakeups = 0;
+		for (SelectorLoop loop: this.selectorLoops()) {
+			wakeups += loop.getWaker().getWakeups();
+		}
+		return wakeups;
+	}
+	
+	/**
+	 * Called by a selector loop after writing or dropping a client, lets the next
+	 * broadcast start once every client which is keeping up has been written to
+	 */
+	void releaseIfWritten() {
+		if (!this.hasPendingData()) ServersSynchronizedMode.release();
+	}
+	
+	/**
+	 * Called by the acceptor thread when a connection is pending
+	 */
+	void accept(SelectionKey key) throws IOException {
+		// For an accept to be pending the channel must be a server socket channel.
+		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
 
-	private Selector initSelector() throws IOException {
-		// Create a new selector
-		Selector socketSelector = SelectorProvider.provider().openSelector();
+		// Accept the connection and make it non-blocking
+		SocketChannel socketChannel = serverSocketChannel.accept();
+		if (socketChannel == null) return;
+		socketChannel.configureBlocking(false);
 
-		// Create a new non-blocking server socket channel
-		this.serverChannel = ServerSocketChannel.open();
-		serverChannel.configureBlocking(false);
+		// Hand the new SocketChannel to the next loop, indicating
+		// we'd like to be notified when there's data waiting to be read
+		SelectorLoop loop = this.loops[this.nextLoop];
+		this.nextLoop = (this.nextLoop + 1) % this.loops.length;
+		loop.register(socketChannel);
+	}
 
-		// Bind the server socket to the specified address and port
-		InetSocketAddress isa = new InetSocketAddress(this.hostAddress, this.port);
-		serverChannel.socket().bind(isa);
+	private void initServerChannel() throws IOException {
+		// Create a server socket channel bound to the address, and make it non-blocking
+		this.serverChannel = UnixSockets.openServer(this.address);
+		serverChannel.configureBlocking(false);
 
 		// Register the server socket channel, indicating an interest in 
 		// accepting new connections
-		serverChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
-
-		return socketSelector;
+		serverChannel.register(this.acceptor.getSelector(), SelectionKey.OP_ACCEPT);
+	}
+	
+	private void startLoops() {
+		Thread server_thread = new Thread(this.acceptor);
+		server_thread.setName("server");
+		server_thread.start();
+		
+		if (this.batcher != null) this.batcher.start("batcher");
+		if (this.log != null) this.log.start();
+		
+		if (this.loops[0] == this.acceptor) return;
+		for (int i = 0; i < this.loops.length; i++) {
+			Thread loop_thread = new Thread(this.loops[i]);
+			loop_thread.setName("selector-" + i);
+			loop_thread.start();
+		}
 	}
 
 	public static void start() {
+		start(DEFAULT_SELECTOR_THREADS);
+	}
+	
+	/**
+	 * Start the worker, acceptor and selector threads
+	 * @param selectorThreads The number of selector loops to hand accepted connections to, 
+	 *                        or 0 to serve every connection from the acceptor thread
+	 */
+	public static void start(int selectorThreads) {
 		try {
 			EchoWorker worker = new EchoWorker();
 			Thread worker_thread = new Thread(worker);
 			worker_thread.setName("worker");
 			worker_thread.start();
 			
-			Thread server_thread = new Thread(new NioBroadcastServer(null, NioClient.NIO_PORT, worker));
-			server_thread.setName("server");
-			server_thread.start();
+			new NioBroadcastServer(NioClient.endpoint(null), worker, selectorThreads).startLoops();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
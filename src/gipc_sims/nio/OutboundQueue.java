@@ -0,0 +1,374 @@
+package gipc_sims.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The frames waiting to be written to one channel, kept in a ring so the whole
+ * backlog can go out in a single gathering write. Each entry is a view with its own
+ * position, so a partially written frame simply stays at the head of the ring.
+ * Entries backed by a shared frame release it once they have been written.
+ *
+ * Control frames, TYPE_RETRANSMIT, TYPE_CREDIT and TYPE_HEARTBEAT, are urgent. They go
+ * ahead of everything queued apart from other urgent frames and a partly written head,
+ * so a peer waiting on them isn't kept waiting behind a backlog which may itself be
+ * waiting on them. They never pass a buffer which isn't shared, like HELLO, since frames
+ * before and after it are framed differently.
+ */
+public class OutboundQueue {
+	private static final int INITIAL_CAPACITY = 16;
+
+	private ByteBuffer[] views = new ByteBuffer[INITIAL_CAPACITY];
+	private SharedFrame[] frames = new SharedFrame[INITIAL_CAPACITY];
+	private int[] costs = new int[INITIAL_CAPACITY];
+	// Where each view started, a view which has moved on from it was partly written
+	private int[] starts = new int[INITIAL_CAPACITY];
+	private boolean[] urgent = new boolean[INITIAL_CAPACITY];
+
+	// Used to unroll the ring when it wraps around the end of the arrays
+	private ByteBuffer[] unrolled;
+
+	private int head = 0;
+	private int size = 0;
+
+	// Bytes left to write across every entry
+	private long bytes = 0;
+
+	// Commands across every entry, what they cost a client which gives credit
+	private long commands = 0;
+
+	// Entries which aren't backed by a shared frame
+	private int unshared = 0;
+
+	/**
+	 * Queue a view of the frame. Takes a new reference to the frame.
+	 * @param frame The frame to queue
+	 * @param framing How the frame should be encoded
+	 */
+	public void add(SharedFrame frame, Framing framing) {
+		this.add(frame.retain().view(framing), frame, framing);
+	}
+
+	/**
+	 * Queue a buffer which is not shared with any other channel
+	 * @param buf The buffer to queue
+	 */
+	public void add(ByteBuffer buf) {
+		this.add(buf, null, null);
+	}
+
+	/**
+	 * Queue a view of a frame the caller already holds a reference for
+	 * @param view The view to write
+	 * @param frame The frame to release once the view is written, or null
+	 * @param framing How the view was encoded
+	 */
+	public void add(ByteBuffer view, SharedFrame frame, Framing framing) {
+		if (this.size == this.views.length) this.grow();
+
+		int mask = this.views.length - 1;
+		int slot = (this.head + this.size) & mask;
+		boolean urgent = isUrgent(frame) && this.unshared == 0;
+		if (urgent) {
+			// Move whatever has to stay in front of it down a slot, then take the slot after
+			int first = this.isHeadStarted() ? 1 : 0;
+			while (first < this.size && this.urgent[(this.head + first) & mask]) first++;
+			this.head = (this.head - 1) & mask;
+			for (int i = 0; i < first; i++) {
+				this.move((this.head + i + 1) & mask, (this.head + i) & mask);
+			}
+			slot = (this.head + first) & mask;
+		}
+
+		this.views[slot] = view;
+		this.frames[slot] = frame;
+		this.costs[slot] = cost(frame, framing);
+		this.starts[slot] = view.position();
+		this.urgent[slot] = urgent;
+		this.size += 1;
+		this.bytes += view.remaining();
+		this.commands += this.costs[slot];
+		if (frame == null) this.unshared += 1;
+	}
+
+	/**
+	 * @param frame A frame to queue, or null
+	 * @param framing How it is encoded
+	 * @return The credit writing the frame takes, see Framing.TYPE_CREDIT. Only frames
+	 *         sent with their sequence number are charged, the peer can't tell which others
+	 *         were, so it would never give their credit back.
+	 */
+	private static int cost(SharedFrame frame, Framing framing) {
+		if (frame == null || framing != Framing.LENGTH_PREFIXED || frame.getSequence() == 0) return 0;
+		if (frame.getType() == Framing.TYPE_COMMAND) return 1;
+		if (frame.getType() == Framing.TYPE_BATCH) return frame.getCommands();
+		return 0;
+	}
+
+	/**
+	 * @param frame A frame to queue, or null
+	 * @return True if the frame goes ahead of the backlog
+	 */
+	private static boolean isUrgent(SharedFrame frame) {
+		if (frame == null) return false;
+		int type = frame.getType();
+		return type == Framing.TYPE_RETRANSMIT || type == Framing.TYPE_CREDIT || type == Framing.TYPE_HEARTBEAT;
+	}
+
+	/**
+	 * Move an entry from one slot to another, leaving the first as it was
+	 */
+	private void move(int from, int to) {
+		this.views[to] = this.views[from];
+		this.frames[to] = this.frames[from];
+		this.costs[to] = this.costs[from];
+		this.starts[to] = this.starts[from];
+		this.urgent[to] = this.urgent[from];
+	}
+
+	/**
+	 * @return True if the head has been partly written, it then has to go out whole
+	 */
+	private boolean isHeadStarted() {
+		return this.size > 0 && this.views[this.head].position() != this.starts[this.head];
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return The number of bytes left to write
+	 */
+	public long bytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * @return The number of commands left to write
+	 */
+	public long commands() {
+		return this.commands;
+	}
+
+	/**
+	 * @param credit The commands the channel has room for
+	 * @return How many entries from the head can be written within the credit
+	 */
+	public int countWithin(long credit) {
+		if (this.commands <= credit) return this.size;
+
+		int mask = this.views.length - 1;
+		int count = 0;
+		for (; count < this.size; count++) {
+			credit -= this.costs[(this.head + count) & mask];
+			if (credit < 0) break;
+		}
+		return count;
+	}
+
+	/**
+	 * @param i The index from the head of the queue
+	 * @return The view at that index
+	 */
+	public ByteBuffer get(int i) {
+		return this.views[(this.head + i) & (this.views.length - 1)];
+	}
+
+	/**
+	 * Write as much of the queue as the channel will take in one gathering write, then
+	 * drop every entry which was fully written
+	 * @param channel The channel to write to
+	 * @return The number of bytes written
+	 * @throws IOException If the write failed
+	 */
+	public long write(GatheringByteChannel channel) throws IOException {
+		return this.write(channel, this.size);
+	}
+
+	/**
+	 * Write as much of the first entries as the channel will take in one gathering write,
+	 * then drop every entry which was fully written
+	 * @param channel The channel to write to
+	 * @param count The most entries to write, from the head
+	 * @return The number of bytes written
+	 * @throws IOException If the write failed
+	 */
+	public long write(GatheringByteChannel channel, int count) throws IOException {
+		count = Math.min(count, this.size);
+		if (count == 0) return 0;
+
+		long written;
+		int capacity = this.views.length;
+		if (this.head + count <= capacity) {
+			written = channel.write(this.views, this.head, count);
+		} else {
+			// The ring wraps, line it up so it still takes one write
+			if (this.unrolled == null || this.unrolled.length < capacity) {
+				this.unrolled = new ByteBuffer[capacity];
+			}
+			int first = capacity - this.head;
+			System.arraycopy(this.views, this.head, this.unrolled, 0, first);
+			System.arraycopy(this.views, 0, this.unrolled, first, count - first);
+			written = channel.write(this.unrolled, 0, count);
+
+			// Don't hold on to views after they are removed from the ring
+			for (int i = 0; i < count; i++) this.unrolled[i] = null;
+		}
+
+		// Drop everything that went out completely
+		this.bytes -= written;
+		while (this.size > 0 && !this.views[this.head].hasRemaining()) {
+			this.remove();
+		}
+
+		return written;
+	}
+
+	/**
+	 * Remove the head of the queue and release its frame
+	 */
+	public void remove() {
+		SharedFrame frame = this.frames[this.head];
+		this.bytes -= this.views[this.head].remaining();
+		this.commands -= this.costs[this.head];
+		this.views[this.head] = null;
+		this.frames[this.head] = null;
+		this.head = (this.head + 1) & (this.views.length - 1);
+		this.size -= 1;
+
+		if (frame != null) frame.release();
+		else this.unshared -= 1;
+	}
+
+	/**
+	 * Release every frame still in the queue
+	 */
+	public void clear() {
+		while (this.size > 0) {
+			this.remove();
+		}
+		this.head = 0;
+		this.bytes = 0;
+		this.commands = 0;
+	}
+
+	/**
+	 * Drop the oldest frame which hasn't started to be written. Entries which aren't
+	 * backed by a shared frame, like HELLO, and urgent frames are never dropped.
+	 * @return False if there was no such frame
+	 */
+	public boolean dropOldest() {
+		int mask = this.views.length - 1;
+		for (int i = this.isHeadStarted() ? 1 : 0; i < this.size; i++) {
+			int slot = (this.head + i) & mask;
+			if (this.frames[slot] == null || this.urgent[slot]) continue;
+
+			// Shift everything before it up by one, then drop the head
+			ByteBuffer view = this.views[slot];
+			SharedFrame frame = this.frames[slot];
+			int cost = this.costs[slot];
+			for (int j = i; j > 0; j--) {
+				this.move((this.head + j - 1) & mask, (this.head + j) & mask);
+			}
+			this.views[this.head] = null;
+			this.frames[this.head] = null;
+			this.head = (this.head + 1) & mask;
+			this.size -= 1;
+			this.bytes -= view.remaining();
+			this.commands -= cost;
+
+			frame.release();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Drop every frame which hasn't started to be written and has the same coalescing key
+	 * as a frame queued after it
+	 * @return The number of frames dropped
+	 */
+	public int coalesce() {
+		int mask = this.views.length - 1;
+		int first = this.isHeadStarted() ? 1 : 0;
+		Set<Object> seen = new HashSet<Object>();
+
+		// Walk from the newest entry back, packing the ones kept against the tail
+		int kept = this.size;
+		for (int i = this.size - 1; i >= first; i--) {
+			int slot = (this.head + i) & mask;
+			SharedFrame frame = this.frames[slot];
+			Object key = (frame == null) ? null : frame.getCoalesceKey();
+
+			if (key != null && !seen.add(key)) {
+				this.bytes -= this.views[slot].remaining();
+				this.commands -= this.costs[slot];
+				this.views[slot] = null;
+				this.frames[slot] = null;
+				frame.release();
+			} else {
+				// Walking back, the slot it moves to was either its own or already emptied
+				kept -= 1;
+				int to = (this.head + kept) & mask;
+				if (to != slot) {
+					this.move(slot, to);
+					this.views[slot] = null;
+					this.frames[slot] = null;
+				}
+			}
+		}
+
+		// Keep a partly written head in front
+		if (first == 1) {
+			kept -= 1;
+			int to = (this.head + kept) & mask;
+			this.move(this.head, to);
+			if (kept > 0) {
+				this.views[this.head] = null;
+				this.frames[this.head] = null;
+			}
+		}
+
+		int dropped = kept;
+		this.head = (this.head + kept) & mask;
+		this.size -= dropped;
+		return dropped;
+	}
+
+	private void grow() {
+		int capacity = this.views.length;
+		ByteBuffer[] views = new ByteBuffer[capacity * 2];
+		SharedFrame[] frames = new SharedFrame[capacity * 2];
+		int[] costs = new int[capacity * 2];
+		int[] starts = new int[capacity * 2];
+		boolean[] urgent = new boolean[capacity * 2];
+
+		// Copy so the head ends up back at index 0
+		int first = capacity - this.head;
+		System.arraycopy(this.views, this.head, views, 0, first);
+		System.arraycopy(this.views, 0, views, first, this.head);
+		System.arraycopy(this.frames, this.head, frames, 0, first);
+		System.arraycopy(this.frames, 0, frames, first, this.head);
+		System.arraycopy(this.costs, this.head, costs, 0, first);
+		System.arraycopy(this.costs, 0, costs, first, this.head);
+		System.arraycopy(this.starts, this.head, starts, 0, first);
+		System.arraycopy(this.starts, 0, starts, first, this.head);
+		System.arraycopy(this.urgent, this.head, urgent, 0, first);
+		System.arraycopy(this.urgent, 0, urgent, first, this.head);
+
+		this.views = views;
+		this.frames = frames;
+		this.costs = costs;
+		this.starts = starts;
+		this.urgent = urgent;
+		this.head = 0;
+	}
+}
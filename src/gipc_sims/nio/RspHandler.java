@@ -1,50 +1,131 @@
 package gipc_sims.nio;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import gipc_sims.Simulation;
-import port.trace.nio.RemoteCommandExecuted;
+import nio_sims.CommandCodec;
 
 public class RspHandler implements Runnable {	
-	private BlockingQueue<byte[]> rsp;
+	// How many commands can wait for the handler, and the bytes each slot starts out with
+	public static int SLOTS = 512;
+	public static int SLOT_SIZE = 256;
+	
+	// How many charged commands are run or passed over before credit for them is given
+	// back, see Framing.TYPE_CREDIT
+	public static int CREDIT_BATCH = 64;
+	
+	// Commands copied in by the client's reader
+	private SlotRing rsp;
+	
+	// Charged commands run or passed over since credit was last given back, and who to
+	// tell once there are CREDIT_BATCH of them, or null
+	private AtomicInteger credit = new AtomicInteger(0);
+	private volatile Runnable creditListener;
 	private Simulation sim;
-	private String partial_cmd;
+	
+	// Commands are decoded out of their slot into here, only used by the handler thread
+	private StringBuilder text = new StringBuilder(256);
 	
 	public RspHandler(Simulation sim) {
 		this.sim = sim;
-		this.rsp = new LinkedBlockingQueue<byte[]>(501);
-		this.partial_cmd = "";
+		this.rsp = new SlotRing(SLOTS, SLOT_SIZE);
 	}
 	
-	public boolean handleResponse(byte[] rsp) {
-		boolean accepted = this.rsp.offer(rsp);
+	/**
+	 * Called by the selector thread with each command the server sent
+	 * @param rsp The command, without any framing, from its position to its limit. Copied,
+	 *            and left unchanged.
+	 * @return True if the connection should be closed
+	 */
+	public boolean handleResponse(ByteBuffer rsp) {
+		boolean accepted = this.offer(rsp);
 		if (!accepted) System.err.println("Dropped message!");
 		return false;
 	}
 	
+	/**
+	 * Called by the selector thread with a command which must not be dropped
+	 * @param rsp The command, without any framing, from its position to its limit. Copied,
+	 *            and left unchanged.
+	 * @return False if the handler is full, the caller tries again later
+	 */
+	public boolean offer(ByteBuffer rsp) {
+		return this.rsp.offer(rsp, true);
+	}
+	
+	/**
+	 * Called by the selector thread with a command which must not be dropped
+	 * @param rsp The command, without any framing, from its position to its limit. Copied,
+	 *            and left unchanged.
+	 * @param charged If the server took credit for the command, only those give it back
+	 *                once run. The commands of a snapshot are free.
+	 * @return False if the handler is full, the caller tries again later
+	 */
+	public boolean offer(ByteBuffer rsp, boolean charged) {
+		return this.rsp.offer(rsp, charged);
+	}
+	
+	/**
+	 * Called by the selector thread for charged commands which will never be run, because
+	 * they were duplicates or already part of the snapshot, so their credit isn't lost
+	 * @param count The number of commands
+	 */
+	public void passedOver(int count) {
+		this.addCredit(count);
+	}
+	
+	/**
+	 * Called by a blocking reader with a command which must not be dropped, waits for room
+	 * @param rsp The command, without any framing, from its position to its limit. Copied,
+	 *            and left unchanged.
+	 * @throws InterruptedException If interrupted while waiting, nothing is copied
+	 */
+	public void put(ByteBuffer rsp) throws InterruptedException {
+		this.rsp.put(rsp);
+	}
+	
+	/**
+	 * Called by a client which gives the server credit
+	 * @param listener Run by the handler or the selector thread once CREDIT_BATCH charged
+	 *                 commands have been run or passed over since credit was last taken
+	 */
+	public void setCreditListener(Runnable listener) {
+		this.creditListener = listener;
+	}
+	
+	/**
+	 * @return The number of charged commands run or passed over since credit was last taken
+	 */
+	public int takeCredit() {
+		return this.credit.getAndSet(0);
+	}
+	
+	/**
+	 * Called by the handler thread and the selector thread, tells the listener once
+	 * CREDIT_BATCH commands have added up
+	 */
+	private void addCredit(int count) {
+		Runnable listener = this.creditListener;
+		if (listener != null && this.credit.addAndGet(count) >= CREDIT_BATCH) listener.run();
+	}
+	
 	@Override
 	public void run() {
 		while (true) {
 			try {
-				String rsp_str = this.partial_cmd + new String(this.rsp.take());
+				// The selector thread hands over one whole command at a time
+				ByteBuffer buf = this.rsp.take();
+				this.text.setLength(0);
+				CommandCodec.decode(buf, this.text);
+				boolean charged = this.rsp.isFlagged();
+				this.rsp.release();
 				
-				int start = 0;
-				int end = rsp_str.indexOf(NioClient.SEPERATOR, start);
-				while (end >= 0) {
-					// Has a full command
-					String cmd = rsp_str.substring(start, end);
-					RemoteCommandExecuted.newCase(this, cmd);
-					this.sim.executeCommand(cmd);
-					
-					// Look for next command
-					start = end+1;
-					end = rsp_str.indexOf(NioClient.SEPERATOR, start);
-				}
+				if (charged) this.addCredit(1);
 				
-				// Save any partial command
-				if (start >= rsp_str.length() - 1) this.partial_cmd = "";
-				else this.partial_cmd = rsp_str.substring(start);
+				String cmd = this.text.toString();
+				if (Trace.on(Trace.REMOTE_COMMAND)) Trace.remoteCommand(this, cmd);
+				this.sim.executeCommand(cmd);
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
@@ -0,0 +1,432 @@
+package gipc_sims.nio;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * One reactor of the broadcast server. Owns a selector, the clients registered with it
+ * and their outbound queues. Every select, read and write for those clients happens on
+ * the thread running this loop.
+ */
+public class SelectorLoop implements Runnable, FrameListener {
+	private NioBroadcastServer server;
+
+	// The thread running this loop
+	private volatile Thread thread;
+
+	// The loop each selector thread runs, so a producer knows if it is one
+	private static final ThreadLocal<SelectorLoop> running = new ThreadLocal<SelectorLoop>();
+
+	// The selector we'll be monitoring, and how producers wake it
+	private Selector selector;
+	private SelectorWakeup waker;
+
+	// The buffer into which we'll read data when it's available, a direct
+	// buffer borrowed from the pool for as long as this selector runs
+	private ByteBuffer readBuffer = BufferPool.acquire(8192);
+
+	// The clients whose channels are registered with this loop's selector. Each
+	// client's state is also attached to its SelectionKey.
+	private List<ChannelState> clients = new CopyOnWriteArrayList<ChannelState>();
+
+	// Channels waiting to be registered with the selector, low volume
+	private Queue<ChangeRequest> pendingRegistrations = new ConcurrentLinkedQueue<ChangeRequest>();
+
+	// Channels with newly queued data, waiting to be switched to write mode
+	private DirtySet dirty = new DirtySet();
+
+	// Set while some client may have data waiting, the loop then wakes up
+	// now and then to look for clients which stopped reading
+	private boolean watching = false;
+	private long nextStallCheck = 0;
+
+	// Every client's Heartbeat, only touched by this loop's thread
+	private TimerWheel timers = new TimerWheel(TimerWheel.TICK_MS, TimerWheel.BUCKETS);
+
+	// How long each pass of the loop takes, and what went through clients which are gone
+	private SelectorStats stats = new SelectorStats();
+	private Traffic closed = new Traffic();
+
+	SelectorLoop(NioBroadcastServer server) throws IOException {
+		this.server = server;
+		this.selector = SelectorProvider.provider().openSelector();
+		this.waker = new SelectorWakeup(this.selector);
+	}
+
+	Selector getSelector() {
+		return this.selector;
+	}
+
+	SelectorWakeup getWaker() {
+		return this.waker;
+	}
+
+	/**
+	 * Called by the acceptor to hand a newly accepted channel to this loop
+	 * @param socketChannel The accepted, non-blocking channel
+	 */
+	void register(SocketChannel socketChannel) {
+		ChannelState state = new ChannelState(socketChannel);
+		state.setLimits(NioBroadcastServer.BACKPRESSURE, NioBroadcastServer.MAX_PENDING_FRAMES, NioBroadcastServer.MAX_PENDING_BYTES);
+		this.pendingRegistrations.add(new ChangeRequest(socketChannel, ChangeRequest.REGISTER, SelectionKey.OP_READ, state));
+
+		this.clients.add(state);
+		this.waker.wakeup();
+	}
+
+	/**
+	 * Queue a view of the frame for one of this loop's clients
+	 * @param state The client to send to
+	 * @param frame The frame to send, the queued view takes its own reference
+	 */
+	void send(ChannelState state, SharedFrame frame) {
+		// Queue the data we want written, and indicate we want the interest
+		// ops set changed unless the selector has yet to see an earlier request
+		boolean onLoop = Thread.currentThread() == this.thread;
+		if (state.offer(frame, mayBlock()) && this.dirty.add(state) && !onLoop) {
+			// Finally, wake up our selecting thread so it can make the required changes
+			this.waker.wakeup();
+		}
+	}
+
+	/**
+	 * @return False on any selector thread. One waiting for room under BLOCK would stop
+	 *         its own clients being written, and under INLINE dispatch would hold the
+	 *         server's broadcast lock which other loops' threads wait on to broadcast what
+	 *         they read, the client it waits for among them.
+	 */
+	private static boolean mayBlock() {
+		return running.get() == null;
+	}
+
+	/**
+	 * Queue a view of the frame for every client of this loop
+	 * @param src The client the data came from
+	 * @param frame The frame to send, each queued view takes its own reference
+	 * @param toSrc If the data should also be sent back to src
+	 */
+	void broadcast(SocketChannel src, SharedFrame frame, boolean toSrc) {
+		// Broadcasting inline from this loop's own thread, the changes are picked up
+		// before the next select without a wakeup
+		boolean onLoop = Thread.currentThread() == this.thread;
+		boolean mayBlock = mayBlock();
+
+		boolean wakeup = false;
+		SharedFrame skip = null;
+		for (ChannelState state: this.clients) {
+			SharedFrame queued = frame;
+			if (!toSrc && state.getChannel() == src) {
+				// Sequence numbers are only sent with length-prefixed framing. The source
+				// is told to pass over its own commands, so it doesn't take them as lost.
+				if (state.getFraming() != Framing.LENGTH_PREFIXED) continue;
+				if (skip == null) skip = SharedFrame.range(Framing.TYPE_SKIP, frame.getSequence(), frame.getCommands());
+				queued = skip;
+			}
+
+			// Queue the data we want written
+			if (!state.offer(queued, mayBlock)) continue;
+
+			// Indicate we want the interest ops set changed, unless
+			// the selector has yet to see an earlier request
+			if (this.dirty.add(state)) wakeup = true;
+		}
+
+		if (skip != null) skip.release();
+
+		// Finally, wake up our selecting thread so it can make the required changes
+		if (wakeup && !onLoop) this.waker.wakeup();
+	}
+
+	/**
+	 * @return True if some client which is keeping up still has data to write
+	 */
+	boolean hasPendingData() {
+		for (ChannelState state: this.clients) {
+			if (state.hasPending() && !state.isLagging()) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param total Where to add what went through every client this loop ever had
+	 */
+	void addTraffic(Traffic total) {
+		total.add(this.closed);
+		for (ChannelState state: this.clients) {
+			total.add(state.getTraffic());
+		}
+	}
+
+	int getClientCount() {
+		return this.clients.size();
+	}
+
+	SelectorStats getStats() {
+		return this.stats;
+	}
+
+	/**
+	 * @param lagging Where to add every client of this loop which is lagging
+	 */
+	void collectLagging(List<ChannelState> lagging) {
+		for (ChannelState state: this.clients) {
+			if (state.isLagging()) lagging.add(state);
+		}
+	}
+
+	public void run() {
+		this.thread = Thread.currentThread();
+		running.set(this);
+		while (true) {
+			try {
+				// Process any pending changes, anything queued from here on wakes the selector
+				this.waker.prepareToSelect();
+				this.processChanges();
+
+				// Wait for an event one of the registered channels, or the next tick of the timers
+				this.selector.select(this.timers.selectTimeout(this.watching ? Math.max(1, NioBroadcastServer.MAX_STALL_MS / 2) : 0));
+				this.waker.selected();
+				long start = System.nanoTime();
+
+				// Iterate over the set of keys for which events are available
+				Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+				while (selectedKeys.hasNext()) {
+					SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
+
+					if (!key.isValid()) {
+						continue;
+					}
+
+					// Check what event is available and deal with it
+					if (key.isAcceptable()) {
+						this.server.accept(key);
+					} else {
+						// Keep reading while a backlog is written, or a peer which is
+						// also writing could fill both sockets' buffers and stall
+						if (key.isReadable()) this.read(key);
+						if (key.isValid() && key.isWritable()) this.write(key);
+					}
+				}
+
+				this.checkStalled();
+				this.timers.advance(System.nanoTime());
+				this.stats.record(System.nanoTime() - start);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void processChanges() throws IOException {
+		// Register any newly accepted channels
+		ChangeRequest change;
+		while ((change = this.pendingRegistrations.poll()) != null) {
+			if (!change.socket.isOpen()) continue;
+
+			// Data may have been queued before the channel was registered
+			ChannelState state = (ChannelState) change.attachment;
+			int ops = state.hasPending() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : change.ops;
+			state.setKey(change.socket.register(this.selector, ops, state));
+			state.setObjectName(Jmx.register(state, "Connection", Jmx.connectionName(change.socket)));
+			this.startHeartbeat(state);
+		}
+
+		// Switch every channel with newly queued data to write mode,
+		// once no matter how many frames were queued
+		ChannelState state = this.dirty.takeAll();
+		if (state != null) this.watching = true;
+		while (state != null) {
+			SelectionKey key = state.getKey();
+			ChannelState next = state.takeNextDirty();
+			if (key != null && key.isValid()) {
+				if (state.isDisconnecting()) {
+					// Over its backlog limits, and the policy gives up on it
+					this.close(key);
+					System.out.println("Disconnected lagging client");
+				} else {
+					// Drop or coalesce frames as they arrive, rather than once the client reads again
+					state.reportLagging();
+					if (state.isBounded()) state.drain();
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			}
+			state = next;
+		}
+
+		// Lagging clients don't hold up the next broadcast
+		this.server.releaseIfWritten();
+	}
+
+	/**
+	 * Look for clients whose backlog hasn't shrunk for MAX_STALL_MS, at most twice every MAX_STALL_MS
+	 */
+	private void checkStalled() throws IOException {
+		long now = System.nanoTime();
+		if (!this.watching || now < this.nextStallCheck) return;
+		long maxStall = NioBroadcastServer.MAX_STALL_MS * 1000000;
+		this.nextStallCheck = now + maxStall / 2;
+
+		boolean pending = false;
+		for (ChannelState state: this.clients) {
+			if (!state.hasPending()) continue;
+			pending = true;
+
+			if (state.checkStalled(now, maxStall) && state.getKey() != null) {
+				this.close(state.getKey());
+				System.out.println("Disconnected lagging client");
+			} else {
+				state.reportLagging();
+			}
+		}
+		this.watching = pending;
+
+		// Lagging clients don't hold up the next broadcast
+		this.server.releaseIfWritten();
+	}
+
+	/**
+	 * Keep a newly registered client's connection alive, and give up on the client if it
+	 * goes silent
+	 */
+	private void startHeartbeat(final ChannelState state) {
+		new Heartbeat(this.timers, state) {
+			@Override
+			protected void send(ChannelState state, SharedFrame frame) {
+				SelectorLoop.this.send(state, frame);
+			}
+
+			@Override
+			protected void dead(long silent) {
+				SelectionKey key = state.getKey();
+				if (key == null || !key.isValid()) return;
+
+				try {
+					close(key);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				System.out.println("Gave up on a client silent for " + silent + " ms");
+			}
+		}.start();
+	}
+
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel socketChannel = (SocketChannel) key.channel();
+
+		// Clear out our read buffer so it's ready for new data
+		this.readBuffer.clear();
+
+		// Attempt to read off the channel
+		int numRead;
+		try {
+			numRead = socketChannel.read(this.readBuffer);
+		} catch (IOException e) {
+			// The remote forcibly closed the connection, cancel
+			// the selection key and close the channel.
+			this.close(key);
+			System.out.println("Connection forcibly closed by remote");
+			return;
+		}
+
+		if (numRead == -1) {
+			// Remote entity shut the socket down cleanly. Do the
+			// same from our end and cancel the channel.
+			this.close(key);
+			System.out.println("Client disconnected");
+			return;
+		}
+
+		this.readBuffer.flip();
+
+		// Split the data into frames, which are handed off to our worker thread
+		ChannelState state = (ChannelState) key.attachment();
+		try {
+			state.decode(this.readBuffer, this);
+		} catch (IOException e) {
+			this.close(key);
+			System.out.println("Closed connection sending malformed frames: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Called while decoding when a client switches to length-prefixed framing. Answers
+	 * with HELLO ahead of the first length-prefixed frame the client will be sent, which
+	 * is a snapshot of the simulation so far.
+	 */
+	@Override
+	public void onHello(ChannelState state) {
+		state.setFraming(Framing.LENGTH_PREFIXED, true);
+		
+		// Already on the selector thread, the next cycle picks it up
+		this.dirty.add(state);
+		this.server.sendSnapshot(this, state);
+	}
+
+	/**
+	 * Called while decoding for every complete frame a client sent
+	 */
+	@Override
+	public void onFrame(ChannelState state, int type, long seq, ByteBuffer payload) throws IOException {
+		if (type == Framing.TYPE_RETRANSMIT) {
+			// A client found a gap in what it was sent
+			this.server.retransmit(this, state, seq, Framing.readVarint(payload));
+			return;
+		}
+		if (type == Framing.TYPE_CREDIT) {
+			// The client made room, whatever waited for it goes out on the next cycle
+			state.addCredit(Framing.readVarint(payload));
+			if (state.hasPending()) this.dirty.add(state);
+			return;
+		}
+		if (type == Framing.TYPE_HEARTBEAT) {
+			state.markHeartbeats();
+			return;
+		}
+		if (type != Framing.TYPE_COMMAND) return;
+		
+		// Hand the data off to our worker thread
+		this.server.processData(state.getChannel(), payload);
+	}
+
+	private void write(SelectionKey key) throws IOException {
+		ChannelState state = (ChannelState) key.attachment();
+
+		// Write the whole backlog in one gathering write, whatever
+		// the socket's buffer could not take stays queued
+		state.write();
+
+		if (!state.canWrite()) {
+			// We wrote away all data, or the rest waits for the client's
+			// credit, so we're no longer interested in writing on this
+			// socket. Switch back to waiting for data.
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		// Pending data is tracked across every loop of the server
+		this.server.releaseIfWritten();
+	}
+
+	private void close(SelectionKey key) throws IOException {
+		ChannelState state = (ChannelState) key.attachment();
+		this.clients.remove(state);
+		this.closed.add(state.getTraffic());
+		Jmx.unregister(state.getObjectName());
+
+		// Drop our references to any frames still waiting
+		state.close();
+		key.cancel();
+		state.getChannel().close();
+		
+		// The client may have been the last one holding up the next broadcast
+		this.server.releaseIfWritten();
+	}
+}
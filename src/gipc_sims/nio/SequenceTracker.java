@@ -0,0 +1,334 @@
+package gipc_sims.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Puts one length-prefixed connection's broadcasts back into the server's sequence order.
+ * Each command is delivered exactly once, in order. A command which arrives early is
+ * held back until the commands before it arrive, and the gap in front of it is requested
+ * from the server again. The server keeps a bounded history of broadcasts, commands
+ * which dropped out of it are reported as lost and skipped.
+ *
+ * Nothing is delivered until the server's snapshot arrives. Its commands are delivered
+ * first and its sequence number becomes the start of the stream, commands before that
+ * are already part of the snapshot. If no snapshot turns up within SNAPSHOT_TIMEOUT_MS
+ * the first command seen becomes the start instead.
+ *
+ * Every command the server sends has been charged against the client's credit, see
+ * Framing.TYPE_CREDIT, and the client gives the credit back once the command is run. One
+ * this passes over, a duplicate or one from before the snapshot or dropped to stay within
+ * MAX_HELD, is handed to passedOver instead so its credit isn't lost. The snapshot's
+ * commands are free.
+ *
+ * Only used by the selector thread.
+ */
+public abstract class SequenceTracker {
+	// The most commands held back waiting for a gap to be filled, the gap is given up on
+	// beyond this
+	public static int MAX_HELD = 4096;
+
+	// How long to wait before asking for the same gap again
+	public static long RETRANSMIT_TIMEOUT_MS = 500;
+
+	// How long to hold commands waiting for the snapshot before starting without it
+	public static long SNAPSHOT_TIMEOUT_MS = 2000;
+
+	// The next sequence number to deliver, 0 until the snapshot arrives
+	private long expected = 0;
+
+	// The snapshot's commands in pooled buffers, delivered ahead of everything else
+	private ArrayDeque<ByteBuffer> snapshot = new ArrayDeque<ByteBuffer>();
+
+	// When the first frame held waiting for the snapshot arrived
+	private long waitingSince = 0;
+
+	// The highest sequence number seen so far
+	private long highest = 0;
+
+	// Early commands in pooled buffers, by sequence number. A null value is a sequence
+	// number which won't be delivered but must still be passed over in order.
+	private TreeMap<Long, ByteBuffer> held = new TreeMap<Long, ByteBuffer>();
+
+	// The last gap asked for
+	private long requestedFrom = 0;
+	private long requestedAt = 0;
+
+	private long duplicates = 0;
+	private long lost = 0;
+	private long retransmitRequests = 0;
+
+	/**
+	 * Hand a command on, in sequence order
+	 * @param payload The command, only valid until this returns
+	 * @param charged False for the snapshot's commands, which the server took no credit for
+	 * @return False if the command couldn't be taken yet, it is offered again later
+	 */
+	protected abstract boolean deliver(ByteBuffer payload, boolean charged);
+
+	/**
+	 * Called for commands the server charged for which won't be delivered
+	 * @param count The number of commands
+	 */
+	protected abstract void passedOver(int count);
+
+	/**
+	 * Ask the server for a range of broadcasts again
+	 * @param from The first sequence number of the range
+	 * @param count The number of broadcasts in the range
+	 */
+	protected abstract void requestRetransmit(long from, long count);
+
+	/**
+	 * Called for every command the server sends
+	 * @param seq The command's sequence number
+	 * @param payload The command, only valid until this returns
+	 */
+	public void onCommand(long seq, ByteBuffer payload) {
+		if (this.expected == 0 && this.waitingSince == 0) this.waitingSince = System.currentTimeMillis();
+		this.highest = Math.max(this.highest, seq);
+
+		if (seq < this.expected || this.held.containsKey(seq)) {
+			// Already delivered or held, a retransmission crossed with the original
+			this.duplicates += 1;
+			this.passedOver(1);
+			return;
+		}
+
+		if (seq == this.expected && this.held.isEmpty() && this.snapshot.isEmpty() && this.deliver(payload, true)) {
+			this.expected += 1;
+			return;
+		}
+
+		// Early, or couldn't be delivered yet, keep a copy until its turn
+		ByteBuffer copy = BufferPool.acquire(payload.remaining());
+		copy.put(payload);
+		copy.flip();
+		this.held.put(seq, copy);
+
+		this.release();
+		this.checkHeld();
+	}
+
+	/**
+	 * Called when the server says a range of sequence numbers won't be sent
+	 * @param seq The first sequence number of the range
+	 * @param count The number of sequence numbers in the range
+	 * @param lost If the range was lost rather than never meant for this client
+	 */
+	public void onSkip(long seq, long count, boolean lost) {
+		if (this.expected == 0) {
+			// Held like the commands they stand in for until the snapshot arrives
+			if (count > MAX_HELD) return;
+			if (this.waitingSince == 0) this.waitingSince = System.currentTimeMillis();
+		}
+		if (lost) {
+			this.lost += count;
+			System.err.println("Lost " + count + " broadcasts from " + seq + ", no longer held by the server");
+		}
+
+		long end = seq + count;
+		this.highest = Math.max(this.highest, end - 1);
+		if (end <= this.expected) return;
+
+		if (this.expected != 0 && seq <= this.expected) {
+			// Pass straight over the range, along with anything held within it
+			this.dropBelow(end);
+			this.expected = end;
+		} else {
+			for (long s = seq; s < end; s++) {
+				if (!this.held.containsKey(s)) this.held.put(s, null);
+			}
+		}
+
+		this.release();
+		this.checkHeld();
+	}
+
+	/**
+	 * Called once with the snapshot of the server's state, before any commands are delivered
+	 * @param next The sequence number of the first broadcast not in the snapshot
+	 * @param payload The snapshot's commands, each as [varint length][command]
+	 */
+	public void onSnapshot(long next, ByteBuffer payload) {
+		if (this.expected != 0) return;
+
+		while (payload.hasRemaining()) {
+			int length = Framing.getVarint(payload, payload.position());
+			payload.position(payload.position() + Framing.varintSize(length));
+
+			ByteBuffer cmd = payload.duplicate();
+			cmd.limit(cmd.position() + length);
+			ByteBuffer copy = BufferPool.acquire(length);
+			copy.put(cmd);
+			copy.flip();
+			this.snapshot.add(copy);
+			payload.position(payload.position() + length);
+		}
+		this.start(next);
+	}
+
+	/**
+	 * Called now and then while isWaiting, retries delivery and asks for the
+	 * gap again once the last request timed out
+	 */
+	public void tick() {
+		if (this.expected == 0) {
+			if (this.waitingSince == 0 || System.currentTimeMillis() - this.waitingSince < SNAPSHOT_TIMEOUT_MS) return;
+
+			System.err.println("No snapshot from the server, starting from the first broadcast seen");
+			this.start(this.held.isEmpty() ? this.highest + 1 : this.held.firstKey());
+			return;
+		}
+
+		this.release();
+		this.requestGap();
+	}
+
+	/**
+	 * @return True if commands are held back or missing, so tick should be called
+	 */
+	public boolean isWaiting() {
+		if (this.expected == 0) return this.waitingSince != 0;
+		return !this.snapshot.isEmpty() || this.expected <= this.highest;
+	}
+
+	/**
+	 * Hand back every held buffer, when the connection closes
+	 */
+	public void close() {
+		for (ByteBuffer buf: this.snapshot) {
+			BufferPool.release(buf);
+		}
+		this.snapshot.clear();
+		for (ByteBuffer buf: this.held.values()) {
+			if (buf != null) BufferPool.release(buf);
+		}
+		this.held.clear();
+	}
+
+	public long getExpected() {
+		return this.expected;
+	}
+
+	public long getDuplicates() {
+		return this.duplicates;
+	}
+
+	public long getLost() {
+		return this.lost;
+	}
+
+	public long getRetransmitRequests() {
+		return this.retransmitRequests;
+	}
+
+	/**
+	 * Start the stream at a sequence number, passing over anything held from before it
+	 */
+	private void start(long next) {
+		this.expected = next;
+		this.dropBelow(next);
+
+		this.release();
+		this.checkHeld();
+	}
+
+	/**
+	 * Deliver what is left of the snapshot, then held commands for as long as they follow
+	 * on from the last one delivered
+	 */
+	private void release() {
+		if (this.expected == 0) return;
+
+		while (!this.snapshot.isEmpty()) {
+			if (!this.deliver(this.snapshot.peekFirst().duplicate(), false)) return;
+			BufferPool.release(this.snapshot.pollFirst());
+		}
+
+		while (!this.held.isEmpty() && this.held.firstKey() == this.expected) {
+			ByteBuffer buf = this.held.firstEntry().getValue();
+			if (buf != null) {
+				if (!this.deliver(buf.duplicate(), true)) return;
+				BufferPool.release(buf);
+			}
+			this.held.pollFirstEntry();
+			this.expected += 1;
+		}
+	}
+
+	/**
+	 * Ask for the gap in front of the first held command, or after the last delivered one
+	 * if nothing is held, unless that was just done
+	 */
+	private void requestGap() {
+		long first = this.held.isEmpty() ? this.highest + 1 : this.held.firstKey();
+		if (first <= this.expected) return;
+
+		long now = System.currentTimeMillis();
+		if (this.requestedFrom == this.expected && now - this.requestedAt < RETRANSMIT_TIMEOUT_MS) return;
+
+		this.requestedFrom = this.expected;
+		this.requestedAt = now;
+		this.retransmitRequests += 1;
+		this.requestRetransmit(this.expected, first - this.expected);
+	}
+
+	/**
+	 * Ask for the current gap, or give up on it if too much is held behind it
+	 */
+	private void checkHeld() {
+		if (this.expected == 0) {
+			// Still waiting for the snapshot, there is no gap to ask for yet
+			this.dropNewest();
+			return;
+		}
+
+		if (this.held.size() > MAX_HELD) {
+			Map.Entry<Long, ByteBuffer> first = this.held.firstEntry();
+			long missing = first.getKey() - this.expected;
+			if (missing > 0) {
+				this.lost += missing;
+				System.err.println("Gave up on " + missing + " broadcasts from " + this.expected);
+				this.expected = first.getKey();
+				this.release();
+			}
+
+			// Whatever is still held over the limit is waiting on the handler, drop the newest
+			// and ask for them again once the handler has caught up
+			this.dropNewest();
+		}
+
+		this.requestGap();
+	}
+
+	/**
+	 * Pass over everything held before a sequence number
+	 */
+	private void dropBelow(long end) {
+		int dropped = 0;
+		while (!this.held.isEmpty() && this.held.firstKey() < end) {
+			ByteBuffer buf = this.held.pollFirstEntry().getValue();
+			if (buf == null) continue;
+			BufferPool.release(buf);
+			dropped += 1;
+		}
+		if (dropped > 0) this.passedOver(dropped);
+	}
+
+	/**
+	 * Drop the newest held commands until no more than MAX_HELD are held
+	 */
+	private void dropNewest() {
+		int dropped = 0;
+		while (this.held.size() > MAX_HELD) {
+			ByteBuffer buf = this.held.pollLastEntry().getValue();
+			if (buf == null) continue;
+			BufferPool.release(buf);
+			dropped += 1;
+		}
+		if (dropped > 0) this.passedOver(dropped);
+	}
+}
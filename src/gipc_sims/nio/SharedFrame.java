@@ -0,0 +1,236 @@
+package gipc_sims.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import nio_sims.CommandCodec;
+
+/**
+ * A message that is stored once and written to many clients. The message is encoded
+ * at most once for each framing in use, the first time a channel using that framing
+ * asks for it. Each client gets its own read-only view of the encoded frame with an
+ * independent position, and the frame is released once the last view has been written
+ * or dropped. Copied messages and encoded frames live in BufferPool buffers, which go
+ * back to the pool on release.
+ */
+public class SharedFrame {
+	private int type = Framing.TYPE_COMMAND;
+	private long seq = 0;
+	private ByteBuffer data;
+	private AtomicInteger refs;
+
+	// The number of commands in the frame, and so of sequence numbers it uses
+	private int commands = 1;
+
+	// If data was taken from the BufferPool
+	private boolean pooled;
+
+	// Frames with equal keys supersede each other for lagging clients, or null
+	private Object coalesceKey;
+
+	// The encoded frames, built on first use
+	private AtomicReference<ByteBuffer> separated = new AtomicReference<ByteBuffer>();
+	private AtomicReference<ByteBuffer> prefixed = new AtomicReference<ByteBuffer>();
+
+	private SharedFrame(ByteBuffer data, boolean pooled) {
+		this.data = data;
+		this.pooled = pooled;
+		this.refs = new AtomicInteger(1);
+	}
+
+	/**
+	 * Copy a message into a new frame, the caller holds the only reference
+	 * @param src The message, from its position to its limit. Left unchanged.
+	 * @return The new frame
+	 */
+	public static SharedFrame copyOf(ByteBuffer src) {
+		ByteBuffer data = BufferPool.acquire(src.remaining());
+		data.put(src.duplicate());
+		data.flip();
+		return new SharedFrame(data, true);
+	}
+
+	/**
+	 * Wrap a message in a new frame without copying it, the caller holds the only reference
+	 * and must not modify data afterwards
+	 * @param data The message
+	 * @return The new frame
+	 */
+	public static SharedFrame wrap(byte[] data) {
+		return new SharedFrame(ByteBuffer.wrap(data), false);
+	}
+
+	/**
+	 * Make a TYPE_BATCH frame, the caller holds the only reference
+	 * @param data A BufferPool buffer holding the batch's entries, owned by the frame from now on
+	 * @param commands The number of entries
+	 * @return The new frame
+	 */
+	static SharedFrame batch(ByteBuffer data, int commands) {
+		SharedFrame frame = new SharedFrame(data, true);
+		frame.type = Framing.TYPE_BATCH;
+		frame.commands = commands;
+		return frame;
+	}
+
+	/**
+	 * Make a control frame of a range of sequence numbers, the caller holds the only reference
+	 * @param type TYPE_SKIP, TYPE_RETRANSMIT or TYPE_LOST
+	 * @param seq The first sequence number of the range
+	 * @param count The number of sequence numbers in the range
+	 * @return The new frame
+	 */
+	static SharedFrame range(int type, long seq, long count) {
+		ByteBuffer data = ByteBuffer.allocate(Framing.varintSize(count));
+		Framing.putVarint(data, count);
+		data.flip();
+
+		SharedFrame frame = new SharedFrame(data, false);
+		frame.type = type;
+		frame.seq = seq;
+		return frame;
+	}
+
+	/**
+	 * Make a TYPE_HEARTBEAT frame, the caller holds the only reference
+	 * @return The new frame
+	 */
+	static SharedFrame heartbeat() {
+		SharedFrame frame = new SharedFrame(ByteBuffer.allocate(0), false);
+		frame.type = Framing.TYPE_HEARTBEAT;
+		return frame;
+	}
+
+	/**
+	 * Make a TYPE_SNAPSHOT frame, the caller holds the only reference
+	 * @param next The sequence number of the first broadcast not in the snapshot
+	 * @param commands The commands which rebuild the state, in order
+	 * @return The new frame
+	 */
+	static SharedFrame snapshot(long next, List<String> commands) {
+		List<byte[]> encoded = new ArrayList<byte[]>(commands.size());
+		int size = 0;
+		for (String cmd: commands) {
+			byte[] bytes = CommandCodec.encode(cmd);
+			encoded.add(bytes);
+			size += Framing.varintSize(bytes.length) + bytes.length;
+		}
+
+		ByteBuffer data = BufferPool.acquire(size);
+		for (byte[] bytes: encoded) {
+			Framing.putVarint(data, bytes.length);
+			data.put(bytes);
+		}
+		data.flip();
+
+		SharedFrame frame = new SharedFrame(data, true);
+		frame.type = Framing.TYPE_SNAPSHOT;
+		frame.seq = next;
+		return frame;
+	}
+
+	public int getType() {
+		return this.type;
+	}
+
+	public long getSequence() {
+		return this.seq;
+	}
+
+	public int getCommands() {
+		return this.commands;
+	}
+
+	/**
+	 * Set the sequence number sent with the frame. Must be called before the frame is
+	 * handed to any channel.
+	 */
+	public void setSequence(long seq) {
+		this.seq = seq;
+	}
+
+	public Object getCoalesceKey() {
+		return this.coalesceKey;
+	}
+
+	/**
+	 * Set the key used to coalesce the frame for lagging clients. Must be called before
+	 * the frame is handed to any channel.
+	 */
+	public void setCoalesceKey(Object coalesceKey) {
+		this.coalesceKey = coalesceKey;
+	}
+
+	/**
+	 * @return A read-only view of the message, without any framing
+	 */
+	public ByteBuffer payload() {
+		ByteBuffer data = this.data;
+		if (data == null) throw new IllegalStateException("Frame was already released");
+		return data.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Take another reference to this frame
+	 * @return This frame
+	 */
+	public SharedFrame retain() {
+		if (this.refs.getAndIncrement() <= 0) {
+			throw new IllegalStateException("Frame was already released");
+		}
+		return this;
+	}
+
+	/**
+	 * Drop a reference to this frame
+	 * @return True if this was the last reference
+	 */
+	public boolean release() {
+		int refs = this.refs.decrementAndGet();
+		if (refs < 0) throw new IllegalStateException("Frame was released too many times");
+		if (refs > 0) return false;
+
+		// Nobody else can see the frame any more, hand its buffers back
+		if (this.pooled) BufferPool.release(this.data);
+		this.data = null;
+
+		ByteBuffer encoded = this.separated.getAndSet(null);
+		if (encoded != null) BufferPool.release(encoded);
+		encoded = this.prefixed.getAndSet(null);
+		if (encoded != null) BufferPool.release(encoded);
+		return true;
+	}
+
+	/**
+	 * @param framing How the channel the view is for frames its messages
+	 * @return A read-only view of the encoded frame with its own position and limit
+	 */
+	public ByteBuffer view(Framing framing) {
+		ByteBuffer data = this.data;
+		if (data == null) throw new IllegalStateException("Frame was already released");
+
+		AtomicReference<ByteBuffer> cached = (framing == Framing.SEPARATOR) ? this.separated : this.prefixed;
+		ByteBuffer encoded = cached.get();
+		if (encoded == null) {
+			encoded = framing.encode(this.type, this.seq, data);
+
+			// Two channels may race to encode the frame, the loser hands its copy back
+			if (!cached.compareAndSet(null, encoded)) {
+				BufferPool.release(encoded);
+				encoded = cached.get();
+			}
+		}
+		return encoded.asReadOnlyBuffer();
+	}
+
+	public int length() {
+		return this.data.limit();
+	}
+
+	public int refCount() {
+		return this.refs.get();
+	}
+}
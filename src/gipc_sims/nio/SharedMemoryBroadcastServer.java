@@ -0,0 +1,227 @@
+package gipc_sims.nio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import gipc_sims.modes.ServersSynchronizedMode;
+import gipc_sims.modes.SimuMode;
+
+/**
+ * The broadcast server for clients on the same host, without any sockets. Every client
+ * maps the server's broadcast ring, a MappedRing with a slot for each client, and writes
+ * its own commands to an inbound ring the server maps in turn. The server's thread polls
+ * the inbound rings and writes each command once into the broadcast ring, where every
+ * client reads it. A client which is left out of a broadcast passes over it by its slot.
+ *
+ * Clients which join late get a snapshot, see SimulationState, written into the broadcast
+ * ring once the server sees their slot taken, at most SLOT_CHECK_MS later however busy it
+ * is. Commands a client sends before then wait in its inbound ring. Every client reads it but only the ones
+ * which have no snapshot yet use it. A client which holds the broadcast ring full for
+ * MAX_STALL_MS is given up on, as every other client waits on it.
+ *
+ * ServersSynchronizedMode is taken around writing a broadcast into the ring, there is no
+ * telling from here when the clients have read it.
+ */
+public class SharedMemoryBroadcastServer implements Runnable {
+	// The directory the rings' files are in, the server and its clients must agree on it
+	public static String DIRECTORY = new File(System.getProperty("java.io.tmpdir"), "gipc-shm").getPath();
+	public static final String BROADCAST_RING = "broadcast.ring";
+
+	// The bytes of frames the broadcast ring and each inbound ring hold
+	public static int BROADCAST_CAPACITY = 8 << 20;
+	public static int INBOUND_CAPACITY = 1 << 20;
+
+	// The most clients at once
+	public static int MAX_CLIENTS = 64;
+
+	// How often the server looks for clients which came or went while it is kept busy
+	public static long SLOT_CHECK_MS = 10;
+
+	// How the server and its clients wait for frames, or for room
+	public static WaitStrategy WAIT = WaitStrategy.PARK;
+
+	// How long a client may hold the broadcast ring full before it is given up on, and
+	// how long a client waits for room in its inbound ring before dropping a command
+	public static long MAX_STALL_MS = 2000;
+
+	private MappedRing broadcast;
+
+	// Each slot's inbound ring, or null, and the session of the client it belongs to
+	private MappedRing[] inbound;
+	private long[] sessions;
+
+	// The slot of the inbound ring being polled, while it is polled
+	private int polling;
+
+	// Numbers the frames the server broadcasts, only used by the server's thread
+	private long sequence = 0;
+
+	// The state of the simulation as of the last broadcast, for clients which join late
+	private SimulationState simulation = new SimulationState(NioBroadcastServer.SNAPSHOTS);
+
+	public SharedMemoryBroadcastServer(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Can't create " + directory);
+
+		// Whatever an earlier server left behind
+		File[] stale = directory.listFiles();
+		for (File file: stale) {
+			if (file.getName().endsWith(".ring")) file.delete();
+		}
+
+		this.broadcast = MappedRing.create(new File(directory, BROADCAST_RING), BROADCAST_CAPACITY, MAX_CLIENTS);
+		this.inbound = new MappedRing[MAX_CLIENTS];
+		this.sessions = new long[MAX_CLIENTS];
+	}
+
+	/**
+	 * @param directory Where the rings are
+	 * @param session The client's session
+	 * @return The file of the client's inbound ring
+	 */
+	static File inboundFile(File directory, long session) {
+		return new File(directory, "in-" + Long.toHexString(session) + ".ring");
+	}
+
+	/**
+	 * The server's thread
+	 */
+	@Override
+	public void run() {
+		final FrameListener commands = new FrameListener() {
+			@Override
+			public void onHello(ChannelState state) {
+			}
+
+			@Override
+			public void onFrame(ChannelState state, int type, long seq, ByteBuffer payload) {
+				if (type == Framing.TYPE_COMMAND) broadcast(polling, payload);
+			}
+		};
+
+		int idle = 0;
+		long lastCheck = System.nanoTime();
+		while (true) {
+			int read = 0;
+			for (int i = 0; i < this.inbound.length; i++) {
+				if (this.inbound[i] == null) continue;
+
+				this.polling = i;
+				try {
+					read += Math.max(0, this.inbound[i].poll(commands));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			if (read > 0) idle = 0;
+
+			// Look for clients which came or went while there is nothing to broadcast, and
+			// every SLOT_CHECK_MS while there is, since their slots are on lines the clients
+			// keep writing to
+			long now = System.nanoTime();
+			if (read > 0 && now - lastCheck < SLOT_CHECK_MS * 1000000) continue;
+			lastCheck = now;
+			if (this.checkSlots() || read > 0) continue;
+			WAIT.idle(idle);
+			if (idle < WaitStrategy.SPIN_TRIES) idle++;
+		}
+	}
+
+	/**
+	 * Open the inbound rings of clients which joined, and close those of clients which
+	 * left or were given up on. A snapshot follows if anyone joined.
+	 * @return True if anyone joined
+	 */
+	private boolean checkSlots() {
+		File directory = this.broadcast.getFile().getParentFile();
+		boolean joined = false;
+		for (int i = 0; i < this.inbound.length; i++) {
+			long cursor = this.broadcast.getCursor(i);
+			long session = (cursor >= 0) ? this.broadcast.getSession(i) : 0;
+			if (this.inbound[i] != null && (cursor < 0 || session != this.sessions[i])) {
+				this.inbound[i].delete();
+				this.inbound[i] = null;
+			}
+			if (cursor == MappedRing.EVICTED) this.broadcast.free(i);
+			if (cursor < 0 || this.inbound[i] != null) continue;
+
+			try {
+				// Read from what the client sent while it waited to be seen
+				MappedRing ring = MappedRing.open(inboundFile(directory, session));
+				if (ring.resume(0) < 0) throw new IOException("its slot isn't held");
+				this.inbound[i] = ring;
+				this.sessions[i] = session;
+				joined = true;
+			} catch (IOException e) {
+				System.err.println("Shared memory client in slot " + i + " has no inbound ring: " + e);
+			}
+		}
+
+		if (joined) this.sendSnapshot();
+		return joined;
+	}
+
+	/**
+	 * Write a command into the broadcast ring
+	 * @param src The slot of the client it came from
+	 * @param payload The command, in the client's inbound ring
+	 */
+	private void broadcast(int src, ByteBuffer payload) {
+		ServersSynchronizedMode.take();
+		try {
+			long seq = ++this.sequence;
+			this.simulation.apply(seq, payload);
+
+			// If not atomic, don't send to self
+			boolean toSrc = (SimuMode.get() == SimuMode.ATOMIC);
+			this.write(Framing.TYPE_COMMAND, seq, toSrc ? -1 : src, payload);
+		} finally {
+			ServersSynchronizedMode.release();
+		}
+	}
+
+	/**
+	 * Write the state as of the last broadcast, ahead of any broadcast after it
+	 */
+	private void sendSnapshot() {
+		List<String> commands = new ArrayList<String>();
+		long last = this.simulation.snapshot(commands);
+		SharedFrame frame = SharedFrame.snapshot(last + 1, commands);
+		if (frame.length() > Math.min(this.broadcast.getMaxPayload(), Framing.MAX_FRAME_LENGTH)) {
+			System.err.println("Snapshot of " + frame.length() + " bytes is too large to send, new shared memory clients start out of sync");
+			frame.release();
+			frame = SharedFrame.snapshot(last + 1, new ArrayList<String>());
+		}
+		this.write(Framing.TYPE_SNAPSHOT, last + 1, -1, frame.payload());
+		frame.release();
+	}
+
+	/**
+	 * Wait for room in the broadcast ring and write a frame, giving up on clients which
+	 * hold it full for too long
+	 */
+	private void write(int type, long seq, int origin, ByteBuffer payload) {
+		long maxStall = MAX_STALL_MS * 1000000;
+		int idle = 0;
+		while (!this.broadcast.offer(type, seq, origin, payload)) {
+			if (this.broadcast.evictStalled(maxStall) > 0) System.out.println("Gave up on a lagging shared memory client");
+			WAIT.idle(idle);
+			if (idle < WaitStrategy.SPIN_TRIES) idle++;
+		}
+	}
+
+	/**
+	 * Create the broadcast ring and start the server's thread
+	 */
+	public static void start() {
+		try {
+			Thread server_thread = new Thread(new SharedMemoryBroadcastServer(new File(DIRECTORY)));
+			server_thread.setName("shm-server");
+			server_thread.start();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
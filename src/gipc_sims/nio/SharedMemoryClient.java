@@ -0,0 +1,207 @@
+package gipc_sims.nio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+import gipc_sims.HandlerLocal;
+import gipc_sims.modes.IPCMode;
+import gipc_sims.modes.SimuMode;
+import nio_sims.CommandCodec;
+
+/**
+ * A client of SharedMemoryBroadcastServer, on the same host. Takes a slot of the server's
+ * broadcast ring and creates an inbound ring for its own commands, which are written by
+ * whichever thread broadcasts them. A reader thread polls the broadcast ring and hands
+ * every command to the RspHandler.
+ *
+ * The ring is read in order and nothing is dropped from it, so like AsyncClient this only
+ * keeps the snapshot's sequence number to pass over the broadcasts the snapshot covers.
+ */
+public class SharedMemoryClient implements HandlerLocal, Runnable, FrameListener {
+	private MappedRing broadcast;
+	private MappedRing outbound;
+	private RspHandler handler;
+
+	// The first of the server's sequence numbers to hand on, 0 until the snapshot arrives.
+	// Only used by the reader thread.
+	private long next = 0;
+
+	// Commands are copied out of the ring into here before they are known to be whole,
+	// only used by the reader thread
+	private ByteBuffer scratch = ByteBuffer.allocate(256);
+
+	// Numbers the frames sent, guarded by the client's lock which also keeps outbound to
+	// a single producer
+	private long sequence = 0;
+
+	/**
+	 * Take a slot of the server's broadcast ring
+	 * @param directory Where the server's rings are
+	 * @throws IOException If there is no server, or it has no free slot
+	 */
+	public SharedMemoryClient(File directory, RspHandler handler) throws IOException {
+		this.handler = handler;
+		this.broadcast = MappedRing.open(new File(directory, SharedMemoryBroadcastServer.BROADCAST_RING));
+
+		// The inbound ring is in place before the server can see the slot, and holds what
+		// is sent before the server takes it over
+		long session = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+		this.outbound = MappedRing.create(SharedMemoryBroadcastServer.inboundFile(directory, session), SharedMemoryBroadcastServer.INBOUND_CAPACITY, 1);
+		this.outbound.reserve(0);
+		if (this.broadcast.claim(session) < 0) {
+			this.outbound.delete();
+			throw new IOException("All " + this.broadcast.getSlots() + " shared memory slots are taken");
+		}
+	}
+
+	/**
+	 * The reader thread
+	 */
+	@Override
+	public void run() {
+		int idle = 0;
+		try {
+			while (true) {
+				int read = this.broadcast.poll(this);
+				if (read < 0) {
+					System.out.println("Shared memory server gave up on this client");
+					return;
+				}
+
+				if (read > 0) {
+					idle = 0;
+				} else {
+					SharedMemoryBroadcastServer.WAIT.idle(idle);
+					if (idle < WaitStrategy.SPIN_TRIES) idle++;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			this.broadcast.release();
+		}
+	}
+
+	@Override
+	public void onHello(ChannelState state) {
+	}
+
+	@Override
+	public void onFrame(ChannelState state, int type, long seq, ByteBuffer payload) {
+		if (type == Framing.TYPE_SNAPSHOT) {
+			if (this.next != 0) return;
+
+			while (payload.hasRemaining()) {
+				int length = Framing.getVarint(payload, payload.position());
+				payload.position(payload.position() + Framing.varintSize(length));
+
+				ByteBuffer cmd = payload.duplicate();
+				cmd.limit(cmd.position() + length);
+				this.deliver(cmd);
+				payload.position(payload.position() + length);
+			}
+			this.next = seq;
+			return;
+		}
+		if (type != Framing.TYPE_COMMAND) return;
+
+		// Written before the snapshot, or already covered by it
+		if (this.next == 0 || seq < this.next) return;
+		this.deliver(payload);
+	}
+
+	/**
+	 * Copy a command out of the ring and hand it to the handler, waiting for room
+	 */
+	private void deliver(ByteBuffer payload) {
+		if (this.scratch.capacity() < payload.remaining()) this.scratch = ByteBuffer.allocate(Math.max(payload.remaining(), this.scratch.capacity() * 2));
+		this.scratch.clear();
+		this.scratch.put(payload);
+		this.scratch.flip();
+
+		// The server may have given up on this client and written over the command
+		if (!this.broadcast.isHeld()) return;
+
+		try {
+			this.handler.put(this.scratch);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Write a command into the inbound ring, waiting for room
+	 * @param str The command
+	 */
+	@Override
+	public void broadcast(String str) {
+		byte[] data = CommandCodec.encode(str);
+		if (data.length == 0) return;
+
+		ByteBuffer payload = ByteBuffer.wrap(data);
+		synchronized (this) {
+			long seq = ++this.sequence;
+			long deadline = System.nanoTime() + SharedMemoryBroadcastServer.MAX_STALL_MS * 1000000;
+			int idle = 0;
+			while (!this.outbound.offer(Framing.TYPE_COMMAND, seq, -1, payload)) {
+				if (System.nanoTime() > deadline) {
+					System.err.println("Shared memory server isn't reading, dropped " + str);
+					return;
+				}
+				SharedMemoryBroadcastServer.WAIT.idle(idle);
+				if (idle < WaitStrategy.SPIN_TRIES) idle++;
+			}
+		}
+	}
+
+	@Override
+	public void sendSimuMode(SimuMode mode) {
+		throw new RuntimeException("Shared memory does not support SimuMode changing");
+	}
+
+	@Override
+	public void sendIPCMode(IPCMode mode) {
+		throw new RuntimeException("Shared memory does not support IPCMode changing");
+	}
+
+	@Override
+	public void sendConsensusModes(boolean simu, boolean ipc) {
+		throw new RuntimeException("Shared memory does not support concensus mode changing");
+	}
+
+	/**
+	 * @return True if a server's broadcast ring is where clients look for it, which only
+	 *         happens on the server's host
+	 */
+	public static boolean isAvailable() {
+		return new File(SharedMemoryBroadcastServer.DIRECTORY, SharedMemoryBroadcastServer.BROADCAST_RING).exists();
+	}
+
+	/**
+	 * Take a slot and start the reader and handler threads
+	 * @param handler The handler object
+	 * @return The client, to broadcast with
+	 */
+	public static SharedMemoryClient startInThread(RspHandler handler) {
+		SharedMemoryClient client;
+		try {
+			client = new SharedMemoryClient(new File(SharedMemoryBroadcastServer.DIRECTORY), handler);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Failed to create sender!");
+		}
+		Thread reader_thread = new Thread(client);
+		reader_thread.setName("shm-reader");
+		reader_thread.setDaemon(true);
+		reader_thread.start();
+
+		// Start handler listening in another thread
+		Thread handler_thread = new Thread(handler);
+		handler_thread.setName("rsphandler");
+		handler_thread.start();
+
+		return client;
+	}
+}
@@ -0,0 +1,279 @@
+package gipc_sims.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nio_sims.CommandCodec;
+
+/**
+ * A headless copy of the Halloween simulation, kept by the server so a client which joins
+ * late can be brought up to date with a snapshot instead of every command since the server
+ * started. The simulation can't run without its window, so its state is kept as a model
+ * of each object, from which the shortest list of commands known to rebuild it is taken.
+ *
+ * The model knows two kinds of command. RELATIVE verbs like move add their numbers to a
+ * target's, `move arthur 1 0` then `move arthur 2 0` leave arthur moved by 3 0, a verb
+ * without a target moves the simulation's own avatar. SETTERS like say set a property, only
+ * the last one counts. Every other command is kept in order as it was, and taken not to
+ * depend on where the objects are. The state is then as large as the number of objects
+ * and properties, whatever the session's age, plus the commands the model doesn't know.
+ *
+ * Commands are added as they are broadcast, and kept as they were encoded. Moves are read
+ * straight from the binary form, other commands are decoded once as they are added. The
+ * snapshot is only decoded outside the state's lock, so adding a command under the
+ * broadcast's lock is a copy and a lookup at most.
+ *
+ * If the state goes over MAX_BYTES the oldest commands the model doesn't know are dropped,
+ * then the oldest objects. Late joiners then start a little out of sync rather than with a
+ * snapshot too large to send.
+ */
+public class SimulationState {
+	// The most bytes of commands kept, a snapshot's text is a few times this at most
+	public static int MAX_BYTES = Framing.MAX_FRAME_LENGTH / 4;
+
+	// Verbs whose numbers add up per target, and verbs which set a property
+	private static final String[] RELATIVE = { "move", "rotateLeftArm", "rotateRightArm" };
+	private static final String[] SETTERS = { "say" };
+
+	private static final String MOVE = "move";
+
+	// If commands are kept at all, otherwise only the sequence number is
+	private boolean keepCommands;
+
+	// The sequence number of the last command added
+	private long sequence = 0;
+
+	// The model, in the order each object or command was first seen
+	private Map<Object, Entry> entries = new LinkedHashMap<Object, Entry>();
+	private long bytes = 0;
+
+	// The plain move of the simulation's own avatar, so most commands need no lookup
+	private Entry move;
+
+	// If commands were ever dropped, which is only reported once
+	private boolean overflowed = false;
+
+	// The move being read, only used under the lock
+	private int[] moved = new int[2];
+
+	/**
+	 * An object's total of a RELATIVE verb, the last of a SETTER or a command kept as it is
+	 */
+	private static class Entry {
+		// Set for a RELATIVE verb or a SETTER, not for a command kept as it is
+		String verb;
+
+		// Set for a RELATIVE verb only
+		String target;
+		long[] totals;
+
+		// Set otherwise
+		byte[] cmd;
+
+		// What the entry was counted as
+		int bytes;
+
+		boolean isRelative() {
+			return this.totals != null;
+		}
+
+		byte[] encode() {
+			if (!this.isRelative()) return this.cmd;
+
+			StringBuilder text = new StringBuilder(this.verb);
+			if (!this.target.isEmpty()) text.append(' ').append(this.target);
+			for (long total: this.totals) {
+				text.append(' ').append(total);
+			}
+			return CommandCodec.encode(text.toString());
+		}
+
+		boolean isNothing() {
+			if (!this.isRelative()) return false;
+			for (long total: this.totals) {
+				if (total != 0) return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * @param keepCommands False to only keep track of the sequence number, snapshots then
+	 *                     hold no commands
+	 */
+	public SimulationState(boolean keepCommands) {
+		this.keepCommands = keepCommands;
+	}
+
+	/**
+	 * Add a command, in sequence order
+	 * @param seq The command's sequence number
+	 * @param payload The command in either of CommandCodec's forms, from its position to
+	 *                its limit. Left unchanged.
+	 */
+	public synchronized void apply(long seq, ByteBuffer payload) {
+		this.sequence = seq;
+		if (!this.keepCommands) return;
+
+		if (CommandCodec.parseMove(payload, this.moved)) {
+			if (this.move == null) this.move = this.relative(MOVE, "", 2);
+			this.move.totals[0] += this.moved[0];
+			this.move.totals[1] += this.moved[1];
+			return;
+		}
+
+		byte[] cmd = new byte[payload.remaining()];
+		payload.duplicate().get(cmd);
+		String[] words = CommandCodec.unstamped(CommandCodec.decode(cmd)).trim().split("\\s+");
+		String verb;
+
+		if ((verb = find(RELATIVE, words[0])) != null) {
+			// The numbers at the end add up, the words before them name the target
+			int first = words.length;
+			while (first > 1 && isInt(words[first - 1])) first--;
+			if (first < words.length) {
+				StringBuilder target = new StringBuilder();
+				for (int i = 1; i < first; i++) {
+					if (i > 1) target.append(' ');
+					target.append(words[i]);
+				}
+				Entry entry = this.relative(verb, target.toString(), words.length - first);
+				for (int i = first; i < words.length; i++) {
+					entry.totals[i - first] += Long.parseLong(words[i]);
+				}
+				return;
+			}
+		} else if ((verb = find(SETTERS, words[0])) != null) {
+			Entry entry = this.entries.get(verb);
+			if (entry == null) {
+				entry = new Entry();
+				entry.verb = verb;
+				this.put(verb, entry, 0);
+			}
+			entry.cmd = cmd;
+			this.resize(entry, cmd.length);
+			return;
+		}
+
+		Entry entry = new Entry();
+		entry.cmd = cmd;
+		this.put(seq, entry, cmd.length);
+	}
+
+	/**
+	 * Take a snapshot of the state, decoded once the state's lock is let go
+	 * @param commands Where to add the commands which rebuild the state, in order
+	 * @return The sequence number of the last command the snapshot covers
+	 */
+	public long snapshot(List<String> commands) {
+		List<byte[]> encoded = new ArrayList<byte[]>();
+		long last = this.snapshotEncoded(encoded);
+		decode(encoded, commands);
+		return last;
+	}
+
+	/**
+	 * Take a snapshot of the state without decoding it, for a caller which holds the
+	 * state's lock while it takes one
+	 * @param commands Where to add the commands which rebuild the state, in order and as
+	 *                 they were encoded, see decode
+	 * @return The sequence number of the last command the snapshot covers
+	 */
+	public synchronized long snapshotEncoded(List<byte[]> commands) {
+		for (Entry entry: this.entries.values()) {
+			if (!entry.isNothing()) commands.add(entry.encode());
+		}
+		return this.sequence;
+	}
+
+	/**
+	 * @param encoded Commands from snapshotEncoded
+	 * @param commands Where to add their text, without any stamps
+	 */
+	public static void decode(List<byte[]> encoded, List<String> commands) {
+		for (byte[] cmd: encoded) {
+			commands.add(CommandCodec.unstamped(CommandCodec.decode(cmd)));
+		}
+	}
+
+	/**
+	 * @return The target's entry for a RELATIVE verb with that many numbers, added if new
+	 */
+	private Entry relative(String verb, String target, int count) {
+		String key = verb + ' ' + count + ' ' + target;
+		Entry entry = this.entries.get(key);
+		if (entry != null) return entry;
+
+		entry = new Entry();
+		entry.verb = verb;
+		entry.target = target;
+		entry.totals = new long[count];
+
+		// A total's text is at most a few times as long as a single command's
+		this.put(key, entry, key.length() + 8 * count);
+		return entry;
+	}
+
+	private void put(Object key, Entry entry, int bytes) {
+		this.entries.put(key, entry);
+		this.resize(entry, bytes);
+	}
+
+	/**
+	 * Count an entry as a new number of bytes, dropping the oldest entries if the state no
+	 * longer fits
+	 */
+	private void resize(Entry entry, int bytes) {
+		this.bytes += bytes - entry.bytes;
+		entry.bytes = bytes;
+		if (this.bytes <= MAX_BYTES) return;
+
+		if (!this.overflowed) {
+			System.err.println("Simulation state passed " + MAX_BYTES + " bytes, dropping its oldest commands, clients which join from now on start out of sync");
+			this.overflowed = true;
+		}
+
+		// Commands kept as they are first, they are the only part which grows with the session
+		this.trim(false, entry);
+		this.trim(true, entry);
+	}
+
+	/**
+	 * @param objects False to only drop commands kept as they are
+	 * @param keep The entry being added, which is never dropped
+	 */
+	private void trim(boolean objects, Entry keep) {
+		Iterator<Entry> it = this.entries.values().iterator();
+		while (this.bytes > MAX_BYTES && it.hasNext()) {
+			Entry entry = it.next();
+			if (entry == keep || (!objects && entry.verb != null)) continue;
+
+			it.remove();
+			this.bytes -= entry.bytes;
+			if (entry == this.move) this.move = null;
+		}
+	}
+
+	/**
+	 * @return The verb in verbs which word is, in any case, or null
+	 */
+	private static String find(String[] verbs, String word) {
+		for (String verb: verbs) {
+			if (verb.equalsIgnoreCase(word)) return verb;
+		}
+		return null;
+	}
+
+	private static boolean isInt(String word) {
+		try {
+			Integer.parseInt(word);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package gipc_sims.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands commands from a client's reader to its handler thread through a fixed ring of
+ * reusable buffers, one per slot. The reader copies each command straight into the next
+ * free slot and the handler gives the slot back once it has run the command, so nothing
+ * is allocated per command once every slot has grown to the largest command it has held.
+ *
+ * There must only be one producer and one consumer. The producer may move from thread
+ * to thread, as AsyncClient's completion handlers do, as long as each hands over to the
+ * next. A side which has to wait parks, and the other side unparks it once there is
+ * something for it.
+ */
+public class SlotRing {
+	private final ByteBuffer[] slots;
+	private final int mask;
+
+	// A flag the producer passes along with each slot's command, see offer
+	private final boolean[] flags;
+
+	// The number of slots taken by the consumer and filled by the producer, each only
+	// written by its own side
+	private final AtomicLong head = new AtomicLong(0);
+	private final AtomicLong tail = new AtomicLong(0);
+
+	// The producer's last look at head, so it only reads the consumer's counter when the
+	// ring looks full
+	private long headSeen = 0;
+
+	// The thread parked on each side, or null
+	private volatile Thread consumer;
+	private volatile Thread producer;
+
+	/**
+	 * @param slots The number of slots, rounded up to a power of two
+	 * @param slotSize The bytes each slot starts out with, a slot grows to fit a larger command
+	 */
+	public SlotRing(int slots, int slotSize) {
+		int size = (slots <= 1) ? 1 : Integer.highestOneBit(slots - 1) << 1;
+		this.slots = new ByteBuffer[size];
+		for (int i = 0; i < size; i++) {
+			this.slots[i] = ByteBuffer.allocate(slotSize);
+		}
+		this.flags = new boolean[size];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Copy a command into the next free slot, called by the producer
+	 * @param payload The command, from its position to its limit. Left unchanged.
+	 * @return False if every slot is taken
+	 */
+	public boolean offer(ByteBuffer payload) {
+		return this.offer(payload, false);
+	}
+
+	/**
+	 * Copy a command into the next free slot along with a flag, called by the producer
+	 * @param payload The command, from its position to its limit. Left unchanged.
+	 * @param flag Handed to the consumer with the command, see isFlagged
+	 * @return False if every slot is taken
+	 */
+	public boolean offer(ByteBuffer payload, boolean flag) {
+		long t = this.tail.get();
+		if (t - this.headSeen >= this.slots.length) {
+			this.headSeen = this.head.get();
+			if (t - this.headSeen >= this.slots.length) return false;
+		}
+
+		int i = (int) t & this.mask;
+		ByteBuffer slot = this.slots[i];
+		if (slot.capacity() < payload.remaining()) {
+			slot = ByteBuffer.allocate(Math.max(payload.remaining(), slot.capacity() * 2));
+			this.slots[i] = slot;
+		}
+		slot.clear();
+		slot.put(payload.duplicate());
+		slot.flip();
+		this.flags[i] = flag;
+
+		// A full write, so the consumer can't be missed between checking tail and parking
+		this.tail.set(t + 1);
+		Thread waiting = this.consumer;
+		if (waiting != null) LockSupport.unpark(waiting);
+		return true;
+	}
+
+	/**
+	 * Copy a command into the next free slot, waiting for one. Called by the producer.
+	 * @param payload The command, from its position to its limit. Left unchanged.
+	 * @throws InterruptedException If interrupted while waiting, nothing is copied
+	 */
+	public void put(ByteBuffer payload) throws InterruptedException {
+		while (!this.offer(payload)) {
+			this.producer = Thread.currentThread();
+			if (this.tail.get() - this.head.get() >= this.slots.length) LockSupport.park(this);
+			this.producer = null;
+			if (Thread.interrupted()) throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Wait for the oldest command, called by the consumer
+	 * @return The slot holding the command, from its position to its limit. Only valid
+	 *         until release.
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public ByteBuffer take() throws InterruptedException {
+		long h = this.head.get();
+		while (this.tail.get() == h) {
+			this.consumer = Thread.currentThread();
+			if (this.tail.get() == h) LockSupport.park(this);
+			this.consumer = null;
+			if (Thread.interrupted()) throw new InterruptedException();
+		}
+		return this.slots[(int) h & this.mask];
+	}
+
+	/**
+	 * @return The flag offered along with the command from take, called by the consumer
+	 *         before release
+	 */
+	public boolean isFlagged() {
+		return this.flags[(int) this.head.get() & this.mask];
+	}
+
+	/**
+	 * Give back the slot from take, called by the consumer
+	 */
+	public void release() {
+		this.head.set(this.head.get() + 1);
+		Thread waiting = this.producer;
+		if (waiting != null) LockSupport.unpark(waiting);
+	}
+}
@@ -0,0 +1,166 @@
+package gipc_sims.nio;
+
+/**
+ * A hashed timer wheel for the timeouts of a selector thread's connections. Time is cut
+ * into ticks and a timeout goes in the bucket of the tick it is due in, modulo the size
+ * of the wheel, so scheduling and cancelling are a few pointer writes whatever the number
+ * of timeouts. The selector thread selects no longer than the next tick, see
+ * selectTimeout, and calls advance after every select to fire whatever is due.
+ *
+ * Timeouts fire up to a tick late, never early. The wheel belongs to one thread, which
+ * must be the only one to schedule, cancel and advance.
+ */
+public class TimerWheel {
+	/**
+	 * Something to do once a deadline passes. A timeout is its own node in its bucket's
+	 * list, so scheduling it allocates nothing and it may be scheduled again and again.
+	 */
+	public abstract static class Timeout {
+		private TimerWheel wheel;
+		private long deadline;
+		private Timeout prev;
+		private Timeout next;
+
+		/**
+		 * Called by the wheel's thread once the deadline has passed. The timeout is no
+		 * longer scheduled, so it may schedule itself again.
+		 */
+		protected abstract void expire();
+
+		public boolean isScheduled() {
+			return this.wheel != null;
+		}
+	}
+
+	// The tick and number of buckets of the selector threads' wheels, which covers about
+	// a minute in one turn
+	public static long TICK_MS = 100;
+	public static int BUCKETS = 512;
+
+	private final Timeout[] buckets;
+	private final int mask;
+	private final long tickNanos;
+	private final long start = System.nanoTime();
+
+	// The last tick whose bucket has been fired
+	private long tick = 0;
+
+	// The number of timeouts scheduled
+	private int size = 0;
+
+	// Timeouts which are due, linked like a bucket, while advance fires them. Their
+	// deadline is FIRING.
+	private Timeout firing;
+	private static final long FIRING = -1;
+
+	/**
+	 * @param tickMs How long a tick is
+	 * @param buckets The number of buckets, rounded up to a power of two. Timeouts further
+	 *                away than a full turn of the wheel share buckets with nearer ones,
+	 *                which only costs a look at them on every turn.
+	 */
+	public TimerWheel(long tickMs, int buckets) {
+		int size = (buckets <= 1) ? 1 : Integer.highestOneBit(buckets - 1) << 1;
+		this.buckets = new Timeout[size];
+		this.mask = size - 1;
+		this.tickNanos = Math.max(1, tickMs) * 1000000;
+	}
+
+	/**
+	 * Schedule a timeout, moving it if it is already scheduled
+	 * @param timeout The timeout
+	 * @param delayMs How long from now it is due
+	 */
+	public void schedule(Timeout timeout, long delayMs) {
+		if (timeout.wheel != null) this.cancel(timeout);
+
+		// Rounded up, so it never fires early
+		long elapsed = System.nanoTime() - this.start + Math.max(0, delayMs) * 1000000;
+		long deadline = Math.max(this.tick + 1, (elapsed + this.tickNanos - 1) / this.tickNanos);
+
+		int i = (int) deadline & this.mask;
+		timeout.wheel = this;
+		timeout.deadline = deadline;
+		timeout.prev = null;
+		timeout.next = this.buckets[i];
+		if (timeout.next != null) timeout.next.prev = timeout;
+		this.buckets[i] = timeout;
+		this.size += 1;
+	}
+
+	/**
+	 * Take a timeout off the wheel, if it is scheduled
+	 */
+	public void cancel(Timeout timeout) {
+		if (timeout.wheel != this) return;
+
+		this.unlink(timeout);
+		timeout.wheel = null;
+		this.size -= 1;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev != null) timeout.prev.next = timeout.next;
+		else if (timeout.deadline == FIRING) this.firing = timeout.next;
+		else this.buckets[(int) timeout.deadline & this.mask] = timeout.next;
+		if (timeout.next != null) timeout.next.prev = timeout.prev;
+
+		timeout.prev = null;
+		timeout.next = null;
+	}
+
+	/**
+	 * Fire every timeout which is due
+	 * @param now The current System.nanoTime()
+	 */
+	public void advance(long now) {
+		long to = (now - this.start) / this.tickNanos;
+		if (to <= this.tick) return;
+
+		// After a long gap every bucket is looked at once, not once per tick missed
+		long from = this.tick;
+		long last = Math.min(to, from + this.buckets.length);
+		this.tick = to;
+		for (long t = from + 1; t <= last; t++) {
+			Timeout timeout = this.buckets[(int) t & this.mask];
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.deadline <= to) {
+					// Moved aside first, as firing one timeout may schedule or cancel others
+					this.unlink(timeout);
+					timeout.deadline = FIRING;
+					timeout.next = this.firing;
+					if (this.firing != null) this.firing.prev = timeout;
+					this.firing = timeout;
+				}
+				timeout = next;
+			}
+		}
+
+		while (this.firing != null) {
+			Timeout timeout = this.firing;
+			this.cancel(timeout);
+			timeout.expire();
+		}
+	}
+
+	/**
+	 * @param timeout How long the caller would select for otherwise, 0 for no limit
+	 * @return How long to select for so neither that nor the next tick is missed, 0 for
+	 *         no limit
+	 */
+	public long selectTimeout(long timeout) {
+		if (this.size == 0) return timeout;
+
+		long untilTick = ((this.tick + 1) * this.tickNanos - (System.nanoTime() - this.start) + 999999) / 1000000;
+		untilTick = Math.max(1, untilTick);
+		return (timeout == 0) ? untilTick : Math.min(timeout, untilTick);
+	}
+
+	/**
+	 * @return The number of timeouts scheduled
+	 */
+	public int size() {
+		return this.size;
+	}
+}
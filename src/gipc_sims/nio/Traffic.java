@@ -0,0 +1,48 @@
+package gipc_sims.nio;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bytes and frames through one connection, or the sum of many, for JMX. The counters are
+ * striped, so counting never makes threads wait on each other.
+ */
+public class Traffic {
+	final LongAdder bytesRead = new LongAdder();
+	final LongAdder framesRead = new LongAdder();
+	final LongAdder bytesWritten = new LongAdder();
+	final LongAdder framesWritten = new LongAdder();
+
+	// Writes which left part of what was offered queued, because the socket's buffer was full
+	final LongAdder partialWrites = new LongAdder();
+
+	/**
+	 * Add another connection's counts to these
+	 */
+	void add(Traffic other) {
+		this.bytesRead.add(other.bytesRead.sum());
+		this.framesRead.add(other.framesRead.sum());
+		this.bytesWritten.add(other.bytesWritten.sum());
+		this.framesWritten.add(other.framesWritten.sum());
+		this.partialWrites.add(other.partialWrites.sum());
+	}
+
+	public long getBytesRead() {
+		return this.bytesRead.sum();
+	}
+
+	public long getFramesRead() {
+		return this.framesRead.sum();
+	}
+
+	public long getBytesWritten() {
+		return this.bytesWritten.sum();
+	}
+
+	public long getFramesWritten() {
+		return this.framesWritten.sum();
+	}
+
+	public long getPartialWrites() {
+		return this.partialWrites.sum();
+	}
+}
@@ -0,0 +1,57 @@
+package gipc_sims.nio;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Starts virtual threads where the JVM has them. Looked up by reflection so the rest of
+ * the code still builds and runs on JVMs from before virtual threads, which get daemon
+ * platform threads instead.
+ */
+public class VirtualThreads {
+	// Thread.startVirtualThread, or null if the JVM doesn't have it or it is a disabled preview
+	private static Method startVirtualThread = find();
+
+	private static Method find() {
+		try {
+			return Thread.class.getMethod("startVirtualThread", Runnable.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return True if start hands out virtual threads
+	 */
+	public static boolean isAvailable() {
+		return startVirtualThread != null;
+	}
+
+	/**
+	 * Run a task on a new thread, virtual if possible
+	 * @param name The name of the thread
+	 * @param task The task
+	 * @return The started thread
+	 */
+	public static Thread start(String name, Runnable task) {
+		if (startVirtualThread != null) {
+			try {
+				Thread thread = (Thread) startVirtualThread.invoke(null, task);
+				thread.setName(name);
+				return thread;
+			} catch (InvocationTargetException e) {
+				// A preview JVM without --enable-preview, don't try again
+				System.err.println("Virtual threads unavailable, using platform threads: " + e.getCause());
+				startVirtualThread = null;
+			} catch (IllegalAccessException e) {
+				startVirtualThread = null;
+			}
+		}
+
+		Thread thread = new Thread(task);
+		thread.setName(name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+}
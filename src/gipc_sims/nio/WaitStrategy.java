@@ -0,0 +1,41 @@
+package gipc_sims.nio;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread polling a MappedRing waits while there is nothing to read, or no room to
+ * write. There is nobody to wake it across processes, so every strategy polls again
+ * sooner or later, they only differ in what they give up in between.
+ */
+public enum WaitStrategy {
+	// Busy-waits, the lowest latency for a core per waiting thread
+	SPIN,
+	// Gives up the processor between polls, for when there are more waiting threads than cores
+	YIELD,
+	// Spins briefly, then sleeps PARK_NANOS between polls. Idle threads cost next to
+	// nothing but a command can wait out a whole park.
+	PARK;
+
+	// How long PARK sleeps between polls once it has spun for SPIN_TRIES polls
+	public static long PARK_NANOS = 50000;
+	public static int SPIN_TRIES = 100;
+
+	/**
+	 * Wait before polling again
+	 * @param idle How many polls in a row have found nothing, from 0
+	 */
+	public void idle(int idle) {
+		switch (this) {
+		case SPIN:
+			Thread.onSpinWait();
+			break;
+		case YIELD:
+			Thread.yield();
+			break;
+		case PARK:
+			if (idle < SPIN_TRIES) Thread.onSpinWait();
+			else LockSupport.parkNanos(PARK_NANOS);
+			break;
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package nio_sims;
+
+/**
+ * What the server does when a client's outbound backlog goes over its frame or byte
+ * limit, usually because the client stopped reading. Whatever the policy, the client is
+ * counted as lagging until its backlog has been written out.
+ */
+public enum BackpressurePolicy {
+	// The producer waits for the backlog to shrink, for up to BLOCK_TIMEOUT_MS before
+	// the client is disconnected. A selector thread broadcasting inline never waits, the
+	// client is disconnected straight away.
+	BLOCK,
+	// The oldest frames not yet being written are dropped
+	DROP_OLDEST,
+	// Older frames with the same coalescing key as a newer frame are dropped, then the
+	// oldest frames if that wasn't enough
+	COALESCE,
+	// The client is disconnected
+	DISCONNECT;
+
+	// The longest a producer waits under BLOCK
+	public static long BLOCK_TIMEOUT_MS = 1000;
+}
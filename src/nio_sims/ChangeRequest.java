@@ -8,12 +8,18 @@ public class ChangeRequest {
 	public SocketChannel socket;
 	public int type;
 	public int ops;
+	public Object attachment;
 	
 	public ChangeRequest(SocketChannel socket, int type, int ops) {
 		this.socket = socket;
 		this.type = type;
 		this.ops = ops;
 	}
+	
+	public ChangeRequest(SocketChannel socket, int type, int ops, Object attachment) {
+		this(socket, type, ops);
+		this.attachment = attachment;
+	}
 }
 
 
@@ -0,0 +1,549 @@
+package nio_sims;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import com.hahn.doteditdistance.utils.logger.Logger;
+
+/**
+ * Per-channel state, attached to the channel's SelectionKey. Producers hand frames
+ * over through a lock-free queue, so they never contend with each other or with
+ * the selector thread. Only the selector thread touches the outbound queue.
+ */
+public class ChannelState implements ChannelStateMBean {
+	private SocketChannel channel;
+	private SelectionKey key;
+	
+	// Frames handed over by producers, not yet seen by the selector thread
+	private MpscQueue<SharedFrame> queued = new MpscQueue<SharedFrame>();
+	
+	// Frames the selector thread is writing
+	private OutboundQueue outbound = new OutboundQueue();
+	
+	// Frames queued but not yet fully written
+	private AtomicInteger pending = new AtomicInteger(0);
+	
+	// Set while the channel is waiting in a DirtySet to be switched to write mode
+	private AtomicBoolean writeDirty = new AtomicBoolean(false);
+	ChannelState nextDirty;
+	
+	private volatile boolean closed = false;
+	
+	// How frames are encoded for this channel, only touched by the selector thread
+	private Framing framing = Framing.SEPARATOR;
+	
+	// Splits what is read from the channel into frames
+	private FrameDecoder decoder = new FrameDecoder();
+	
+	// The commands the peer has room for, or -1 if it never gave credit and takes whatever
+	// is sent. Only touched by the selector thread.
+	private long credit = -1;
+	private boolean outOfCredit = false;
+	
+	// Limits on the backlog, unbounded unless a policy is set
+	private BackpressurePolicy policy = null;
+	private int maxFrames = Integer.MAX_VALUE;
+	private long maxBytes = Long.MAX_VALUE;
+	
+	// Bytes of the messages producers have queued, and a copy of the outbound
+	// queue's byte count kept for producers to read
+	private AtomicLong queuedBytes = new AtomicLong(0);
+	private volatile long outboundBytes = 0;
+	
+	// Producers waiting under BLOCK for the backlog to shrink
+	private Object room = new Object();
+	private volatile int blocked = 0;
+	
+	// When the backlog last went from empty to non-empty, or last shrank
+	private volatile long lastProgress = System.nanoTime();
+	
+	// When anything was last read from and written to the channel, and if the peer sends
+	// heartbeats. Only touched by the selector thread.
+	private long lastRead = System.nanoTime();
+	private long lastWritten = System.nanoTime();
+	private boolean heartbeats = false;
+	
+	// Set from when the backlog first goes over a limit until it has all been written
+	private volatile boolean lagging = false;
+
+	// If the client was ever reported lagging, only used by the selector thread
+	private boolean reported = false;
+	private volatile boolean disconnecting = false;
+	
+	// Backpressure counters, for spotting lagging clients
+	private AtomicLong limitHits = new AtomicLong(0);
+	private AtomicLong blockedNanos = new AtomicLong(0);
+	private volatile long droppedFrames = 0;
+	private volatile long coalescedFrames = 0;
+	
+	// How many times writing stopped to wait for the peer's credit
+	private volatile long creditStalls = 0;
+	
+	// What went through the channel, the most frames which waited at once and the
+	// channel's MBean, or null
+	private Traffic traffic = new Traffic();
+	private AtomicInteger pendingHighWater = new AtomicInteger(0);
+	private ObjectName objectName;
+	
+	public ChannelState(SocketChannel channel) {
+		this.channel = channel;
+	}
+	
+	/**
+	 * Called before the channel is registered to bound its backlog
+	 * @param policy What to do once the backlog goes over a limit
+	 * @param maxFrames The most frames which may wait to be written
+	 * @param maxBytes The most bytes of messages which may wait to be written
+	 */
+	public void setLimits(BackpressurePolicy policy, int maxFrames, long maxBytes) {
+		this.policy = policy;
+		this.maxFrames = maxFrames;
+		this.maxBytes = maxBytes;
+	}
+	
+	public SocketChannel getChannel() {
+		return this.channel;
+	}
+	
+	/**
+	 * Called by the selector thread once the channel is registered
+	 */
+	public void setKey(SelectionKey key) {
+		this.key = key;
+	}
+	
+	public SelectionKey getKey() {
+		return this.key;
+	}
+	
+	boolean markWriteDirty() {
+		return this.writeDirty.compareAndSet(false, true);
+	}
+	
+	/**
+	 * Called by the selector thread while walking a DirtySet. Clears this channel's
+	 * dirty flag, after which producers may mark it dirty again.
+	 * @return The next dirty channel, or null
+	 */
+	public ChannelState takeNextDirty() {
+		ChannelState next = this.nextDirty;
+		this.nextDirty = null;
+		this.writeDirty.set(false);
+		return next;
+	}
+	
+	/**
+	 * Called by the selector thread, or before the channel is registered, to change how
+	 * frames are encoded from now on. Frames already in the outbound queue keep their
+	 * old encoding.
+	 * @param framing The new framing
+	 * @param hello If HELLO should be written ahead of the first frame in the new framing
+	 */
+	public void setFraming(Framing framing, boolean hello) {
+		this.drain();
+		this.framing = framing;
+		
+		if (hello) {
+			this.pending.incrementAndGet();
+			this.outbound.add(Framing.hello());
+		}
+	}
+	
+	public Framing getFraming() {
+		return this.framing;
+	}
+	
+	/**
+	 * Called by the selector thread to split what it read from the channel into frames
+	 * @param in The data read, from its position to its limit
+	 * @param listener Told about every complete frame
+	 * @throws IOException If the data is not a valid stream of frames
+	 */
+	public void decode(ByteBuffer in, FrameListener listener) throws IOException {
+		this.lastRead = System.nanoTime();
+		this.traffic.bytesRead.add(in.remaining());
+		this.traffic.framesRead.add(this.decoder.decode(in, this, listener));
+	}
+	
+	/**
+	 * Called by any thread to queue a frame to be written. Takes a new reference to the frame
+	 * if it is queued. If the backlog is over its limits the policy decides what happens,
+	 * BLOCK waits here for room.
+	 * @param frame The frame to write
+	 * @return True if the selector thread needs to look at the channel, because the frame
+	 *         was queued or the channel is to be disconnected
+	 */
+	public boolean offer(SharedFrame frame) {
+		return this.offer(frame, true);
+	}
+	
+	/**
+	 * @param frame The frame to write
+	 * @param mayBlock False when called by a selector thread, which can't wait for itself
+	 *                 or another loop to make room. BLOCK then disconnects straight away.
+	 * @return True if the selector thread needs to look at the channel
+	 */
+	public boolean offer(SharedFrame frame, boolean mayBlock) {
+		if (this.closed || this.disconnecting) return false;
+		
+		int length = frame.length();
+		if (this.policy != null && this.isOverLimit(length)) {
+			this.markLagging();
+			
+			if (this.policy == BackpressurePolicy.DISCONNECT || 
+					(this.policy == BackpressurePolicy.BLOCK && (!mayBlock || !this.awaitRoom(length)))) {
+				// The selector thread closes the channel once it sees the channel is dirty
+				this.disconnecting = true;
+				return true;
+			}
+			
+			// DROP_OLDEST and COALESCE make room on the selector thread when it drains the queue
+		}
+		
+		int pending = this.pending.incrementAndGet();
+		if (pending == 1) this.lastProgress = System.nanoTime();
+		
+		// Only spins while other producers are raising the high-water mark too
+		int highWater;
+		while (pending > (highWater = this.pendingHighWater.get()) && !this.pendingHighWater.compareAndSet(highWater, pending));
+		
+		this.queuedBytes.addAndGet(length);
+		this.queued.offer(frame.retain());
+		return true;
+	}
+	
+	/**
+	 * Called by producers, so it only counts, see reportLagging
+	 */
+	private void markLagging() {
+		this.lagging = true;
+		this.limitHits.incrementAndGet();
+	}
+	
+	/**
+	 * Called by the selector thread to print that the client is lagging, the first time
+	 * it is found to be
+	 */
+	void reportLagging() {
+		if (!this.lagging || this.reported) return;
+		this.reported = true;
+		System.out.println("Client " + this.channel + " is lagging, " + this.pending.get() + " frames waiting");
+	}
+	
+	private boolean isOverLimit(int length) {
+		return this.pending.get() + 1 > this.maxFrames || 
+				this.queuedBytes.get() + this.outboundBytes + length > this.maxBytes;
+	}
+	
+	/**
+	 * Called by a producer under BLOCK to wait for the selector thread to write enough
+	 * of the backlog
+	 * @return False if there was still no room after BLOCK_TIMEOUT_MS
+	 */
+	private boolean awaitRoom(int length) {
+		long start = System.nanoTime();
+		long deadline = start + BackpressurePolicy.BLOCK_TIMEOUT_MS * 1000000;
+		
+		synchronized (this.room) {
+			this.blocked += 1;
+			try {
+				while (this.isOverLimit(length) && !this.closed) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) return false;
+					
+					try {
+						this.room.wait(remaining / 1000000, (int) (remaining % 1000000));
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+				return !this.closed;
+			} finally {
+				this.blocked -= 1;
+				this.blockedNanos.addAndGet(System.nanoTime() - start);
+			}
+		}
+	}
+	
+	/**
+	 * Called by the selector thread to move everything producers have queued into
+	 * the outbound queue
+	 * @return The outbound queue
+	 */
+	public OutboundQueue drain() {
+		SharedFrame frame;
+		while ((frame = this.queued.poll()) != null) {
+			this.queuedBytes.addAndGet(-frame.length());
+			this.outbound.add(Logger.get().prepareSend(this.channel, frame.view(this.framing)), frame, this.framing);
+		}
+		
+		this.trim();
+		this.outboundBytes = this.outbound.bytes();
+		return this.outbound;
+	}
+	
+	/**
+	 * Called by the selector thread when the peer sends TYPE_CREDIT. From then on commands
+	 * are only written while the peer has credit left, a peer which stays out of credit
+	 * is found stalled just like one which stopped reading.
+	 * @param count The number of commands more the peer has room for
+	 */
+	public void addCredit(long count) {
+		if (this.credit < 0) this.credit = 0;
+		this.credit += count;
+		this.outOfCredit = false;
+	}
+	
+	/**
+	 * Called by the selector thread to write as much as the channel, and the peer's
+	 * credit, will take
+	 * @return The number of bytes written
+	 * @throws IOException If the write failed
+	 */
+	public long write() throws IOException {
+		OutboundQueue outbound = this.drain();
+		
+		int before = outbound.size();
+		int count = before;
+		if (this.credit >= 0) {
+			count = outbound.countWithin(this.credit);
+			if (count < before && !this.outOfCredit) {
+				this.outOfCredit = true;
+				this.creditStalls += 1;
+			}
+		}
+		
+		long commands = outbound.commands();
+		long written = outbound.write(this.channel, count);
+		if (this.credit >= 0) this.credit -= commands - outbound.commands();
+		this.pending.addAndGet(outbound.size() - before);
+		
+		// The socket's buffer filled up before everything offered was written
+		int sent = before - outbound.size();
+		this.traffic.bytesWritten.add(written);
+		this.traffic.framesWritten.add(sent);
+		if (sent < count) this.traffic.partialWrites.increment();
+		this.outboundBytes = outbound.bytes();
+		
+		if (written > 0) {
+			this.lastProgress = System.nanoTime();
+			this.lastWritten = this.lastProgress;
+		}
+		if (this.pending.get() == 0) this.lagging = false;
+		if (this.blocked > 0) {
+			synchronized (this.room) {
+				this.room.notifyAll();
+			}
+		}
+		
+		return written;
+	}
+	
+	/**
+	 * Called by the selector thread to check if the client has stopped reading. A client
+	 * that is stuck in the middle of a frame may never go over a limit, for instance when
+	 * the next broadcast waits for the last one to be written.
+	 * @param now The current System.nanoTime()
+	 * @param maxStallNanos How long the backlog may go without shrinking
+	 * @return True if the client has just been found lagging and the policy is to
+	 *         disconnect it, the caller should then close the channel
+	 */
+	public boolean checkStalled(long now, long maxStallNanos) {
+		if (this.policy == null || this.lagging || this.pending.get() == 0) return false;
+		if (now - this.lastProgress <= maxStallNanos) return false;
+		
+		this.markLagging();
+		return this.policy == BackpressurePolicy.DISCONNECT || this.policy == BackpressurePolicy.BLOCK;
+	}
+	
+	/**
+	 * Called by the selector thread to bring the backlog back under its limits, by
+	 * dropping or coalescing frames if the policy allows it
+	 */
+	private void trim() {
+		if (this.policy != BackpressurePolicy.DROP_OLDEST && this.policy != BackpressurePolicy.COALESCE) return;
+		
+		OutboundQueue outbound = this.outbound;
+		if (outbound.size() <= this.maxFrames && outbound.bytes() <= this.maxBytes) return;
+		
+		int dropped = 0;
+		if (this.policy == BackpressurePolicy.COALESCE) {
+			int coalesced = outbound.coalesce();
+			this.coalescedFrames += coalesced;
+			dropped += coalesced;
+		}
+		
+		while ((outbound.size() > this.maxFrames || outbound.bytes() > this.maxBytes) && outbound.dropOldest()) {
+			this.droppedFrames += 1;
+			dropped += 1;
+		}
+		
+		this.pending.addAndGet(-dropped);
+	}
+	
+	/**
+	 * Called by the selector thread when the peer sends TYPE_HEARTBEAT, from then on it
+	 * is expected to keep doing so
+	 */
+	public void markHeartbeats() {
+		this.heartbeats = true;
+	}
+	
+	/**
+	 * @return True if the peer has sent a heartbeat, and so may be taken for dead once it
+	 *         goes silent
+	 */
+	public boolean sendsHeartbeats() {
+		return this.heartbeats;
+	}
+	
+	public long getLastRead() {
+		return this.lastRead;
+	}
+	
+	public long getLastWritten() {
+		return this.lastWritten;
+	}
+	
+	/**
+	 * @return True if some frame has been queued but not yet fully written
+	 */
+	public boolean hasPending() {
+		return this.pending.get() > 0;
+	}
+	
+	/**
+	 * Called by the selector thread after write
+	 * @return True if some of the backlog could be written now, false if there is none or
+	 *         it is all waiting for the peer's credit
+	 */
+	public boolean canWrite() {
+		if (this.credit < 0) return this.hasPending();
+		return this.outbound.countWithin(this.credit) > 0;
+	}
+	
+	/**
+	 * Called by the selector thread to release every frame still waiting. A producer racing
+	 * with close may still queue a frame, which is then left for the garbage collector.
+	 */
+	public void close() {
+		this.closed = true;
+		this.drain().clear();
+		this.decoder.close();
+		this.pending.set(0);
+		this.outboundBytes = 0;
+		
+		synchronized (this.room) {
+			this.room.notifyAll();
+		}
+	}
+	
+	public boolean isClosed() {
+		return this.closed;
+	}
+	
+	/**
+	 * @return True if a producer found the backlog over its limits and the policy
+	 *         is to disconnect, the selector thread should close the channel
+	 */
+	public boolean isDisconnecting() {
+		return this.disconnecting;
+	}
+	
+	/**
+	 * @return True if the backlog went over a limit and hasn't been written out since
+	 */
+	public boolean isLagging() {
+		return this.lagging;
+	}
+	
+	/**
+	 * @return True if the backlog is limited, the selector thread then drains
+	 *         the channel whenever it is dirty so frames can be dropped early
+	 */
+	public boolean isBounded() {
+		return this.policy != null;
+	}
+	
+	public int getPendingFrames() {
+		return this.pending.get();
+	}
+	
+	/**
+	 * @return How many more frames may be queued before the frame limit is hit
+	 */
+	public int getFrameRoom() {
+		return Math.max(0, this.maxFrames - this.pending.get());
+	}
+	
+	public long getPendingBytes() {
+		return this.queuedBytes.get() + this.outboundBytes;
+	}
+	
+	public long getLimitHits() {
+		return this.limitHits.get();
+	}
+	
+	public long getBlockedNanos() {
+		return this.blockedNanos.get();
+	}
+	
+	public long getDroppedFrames() {
+		return this.droppedFrames;
+	}
+	
+	public long getCoalescedFrames() {
+		return this.coalescedFrames;
+	}
+	
+	public long getCreditStalls() {
+		return this.creditStalls;
+	}
+	
+	public int getPendingFramesHighWater() {
+		return this.pendingHighWater.get();
+	}
+	
+	public long getBytesRead() {
+		return this.traffic.getBytesRead();
+	}
+	
+	public long getFramesRead() {
+		return this.traffic.getFramesRead();
+	}
+	
+	public long getBytesWritten() {
+		return this.traffic.getBytesWritten();
+	}
+	
+	public long getFramesWritten() {
+		return this.traffic.getFramesWritten();
+	}
+	
+	public long getPartialWrites() {
+		return this.traffic.getPartialWrites();
+	}
+	
+	Traffic getTraffic() {
+		return this.traffic;
+	}
+	
+	/**
+	 * Called by the selector thread once the channel's MBean is registered, see Jmx
+	 */
+	void setObjectName(ObjectName objectName) {
+		this.objectName = objectName;
+	}
+	
+	ObjectName getObjectName() {
+		return this.objectName;
+	}
+}
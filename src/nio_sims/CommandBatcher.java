@@ -0,0 +1,169 @@
+package nio_sims;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Packs commands which arrive close together into Framing.TYPE_BATCH frames, so a burst
+ * costs one frame, one queue entry and one selector wakeup per batch instead of per
+ * command.
+ *
+ * A batch is sent once it holds MAX_COMMANDS commands or MAX_BYTES bytes, or WINDOW_US
+ * after its first command arrived. The window adapts to how fast commands arrive: while
+ * fewer than MIN_DEPTH commands are expected within a full window, each command is sent
+ * as soon as it arrives, so a quiet connection sees no extra latency.
+ */
+public abstract class CommandBatcher implements Runnable {
+	// The longest a command waits for others to join its batch
+	public static long WINDOW_US = 200;
+
+	// Caps on a single batch
+	public static int MAX_COMMANDS = 256;
+	public static int MAX_BYTES = 16 * 1024;
+
+	// The fewest commands expected within a window for batching to be worth the wait
+	public static int MIN_DEPTH = 4;
+
+	// Smoothed gap between commands, a quiet connection starts out unbatched
+	private long gap = Long.MAX_VALUE;
+	private long lastArrival = System.nanoTime();
+
+	// The batch being filled. A lone command is kept as it is, so it can be sent without
+	// a batch header if nothing joins it.
+	private SharedFrame first;
+	private ByteBuffer batch;
+	private long batchSequence;
+	private int count = 0;
+	private Object group;
+	private long deadline;
+
+	private volatile Thread flusher;
+
+	/**
+	 * Send a frame, called with this batcher's lock held
+	 * @param frame A command or batch frame, the callee owns the reference
+	 * @param group The group passed to add for every command in the frame
+	 */
+	protected abstract void send(SharedFrame frame, Object group);
+
+	/**
+	 * Start the thread which sends batches whose window has run out
+	 * @param name The name of the thread
+	 */
+	public void start(String name) {
+		Thread thread = new Thread(this);
+		thread.setName(name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Add a command to the current batch, or send it straight away if batching isn't
+	 * worth it. Commands must be added in sequence order.
+	 * @param frame The command, the caller's reference is taken over
+	 * @param group Only commands with the same group are batched together, may be null
+	 */
+	public void add(SharedFrame frame, Object group) {
+		boolean opened = false;
+		synchronized (this) {
+			long window = WINDOW_US * 1000;
+			long threshold = window / MIN_DEPTH;
+
+			// Gaps are capped so the average takes a dozen or two commands to drop below
+			// the threshold, while a single idle gap is enough to take it back over
+			long now = System.nanoTime();
+			long cap = 16 * threshold;
+			this.gap = Math.min(this.gap, cap);
+			this.gap += (Math.min(now - this.lastArrival, cap) - this.gap) >> 3;
+			this.lastArrival = now;
+
+			int entry = Framing.varintSize(frame.length()) + frame.length();
+			if (this.count > 0 && (group != this.group || this.size() + entry > MAX_BYTES)) {
+				this.flush();
+			}
+
+			if (this.count == 0 && (this.gap > threshold || entry > MAX_BYTES)) {
+				// Too few commands expected to be worth waiting for
+				this.send(frame, group);
+				return;
+			}
+
+			if (this.count == 0) {
+				this.first = frame;
+				this.group = group;
+				this.deadline = now + window;
+				opened = true;
+			} else {
+				if (this.first != null) {
+					this.batch = BufferPool.acquire(MAX_BYTES);
+					this.append(this.first);
+					this.first = null;
+				}
+				this.append(frame);
+			}
+			this.count += 1;
+
+			if (this.count >= MAX_COMMANDS) this.flush();
+		}
+
+		// Let the flusher know about the new deadline
+		if (opened) LockSupport.unpark(this.flusher);
+	}
+
+	/**
+	 * Send the current batch now, if there is one
+	 */
+	public synchronized void flush() {
+		if (this.count == 0) return;
+
+		SharedFrame frame;
+		if (this.first != null) {
+			frame = this.first;
+			this.first = null;
+		} else {
+			this.batch.flip();
+			frame = SharedFrame.batch(this.batch, this.count);
+			frame.setSequence(this.batchSequence);
+			this.batch = null;
+		}
+		this.count = 0;
+		this.send(frame, this.group);
+		this.group = null;
+	}
+
+	/**
+	 * The flusher thread, sends every batch whose window runs out before it fills up
+	 */
+	public void run() {
+		this.flusher = Thread.currentThread();
+		while (true) {
+			long wait;
+			synchronized (this) {
+				if (this.count == 0) {
+					wait = 0;
+				} else {
+					wait = this.deadline - System.nanoTime();
+					if (wait <= 0) {
+						this.flush();
+						continue;
+					}
+				}
+			}
+
+			// An unpark between here and the park is remembered, so no deadline is missed
+			if (wait == 0) LockSupport.park(this);
+			else LockSupport.parkNanos(this, wait);
+		}
+	}
+
+	private int size() {
+		return (this.first != null) ? Framing.varintSize(this.first.length()) + this.first.length() : this.batch.position();
+	}
+
+	private void append(SharedFrame frame) {
+		if (this.batch.position() == 0) this.batchSequence = frame.getSequence();
+		Framing.putVarint(this.batch, frame.length());
+		this.batch.put(frame.payload());
+		frame.release();
+	}
+}
@@ -0,0 +1,444 @@
+package nio_sims;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A compact binary form of commands, made once by the client a command comes from instead
+ * of sending its text. A binary command is
+ *   [opcode][argument]...
+ * where the opcode is one plus the verb's index in WORDS and every argument is a varint
+ * whose two low bits tell what it is:
+ *   ARG_INT   a zigzagged int, `move 1 0` is three bytes
+ *   ARG_WORD  the index of a word in WORDS
+ *   ARG_TEXT  the number of bytes of text which follow, for any other word
+ *   ARG_NAME  the index of an object's name in NAMES, `move arthur 1 0` is four bytes
+ *
+ * This is the one codec every stack uses, NIO, GIPC and RMI alike, so a command encoded by
+ * any of them decodes the same everywhere.
+ *
+ * Opcodes are below the first printable character, which no typed command starts with, so
+ * text commands still go as they are and both can be told apart by their first byte.
+ * Commands which have no binary form, with a verb not in WORDS, anything but single spaces
+ * between words or anything but ASCII, are sent as their text. Decoding either form gives back exactly the command encoded.
+ *
+ * A binary command may contain NioClient.SEPERATOR, so SEPARATOR framing turns commands
+ * back into text, see toText, and only clients which use LENGTH_PREFIXED encode them.
+ *
+ * A command may carry a stamp, see stamp, whose text is written before the command's and
+ * whose binary form is the opcode STAMP followed by the stamp's three numbers as varints
+ * and the command in either form. The stamp goes wherever the command goes, on every
+ * stack and through every server, which leaves it in place.
+ */
+public class CommandCodec {
+	// Words with an index, which is their opcode when they are a command's verb. Every
+	// process must agree on them, so words are only ever added at the end. These are the
+	// Halloween simulation's verbs.
+	private static final String[] WORDS = { "move", "say", "approach", "pass", "fail", "undo", "redo",
+			"rotateLeftArm", "rotateRightArm", "repeat", "define", "call", "thread", "wait", "proceed", "sleep" };
+
+	// The names of the simulation's objects, interned the same way as WORDS
+	private static final String[] NAMES = { "arthur", "galahad", "lancelot", "robin", "guard",
+			"Arthur", "Galahad", "Lancelot", "Robin", "Guard" };
+
+	public static final int MAX_OPCODE = 0x1F;
+
+	// The opcode of a stamped command, which is never a verb's
+	private static final int STAMP = MAX_OPCODE;
+
+	// The opcode of move, WORDS[0]
+	private static final int MOVE = 1;
+
+	// Starts the text of a stamped command, "#tag:id@time command"
+	public static final char STAMP_MARK = '#';
+
+	// Keeps a stamp's tag to a single byte
+	public static final int MAX_STAMP_TAG = 0x7F;
+
+	// The low bits of an argument
+	private static final int ARG_INT = 0;
+	private static final int ARG_WORD = 1;
+	private static final int ARG_TEXT = 2;
+	private static final int ARG_NAME = 3;
+
+	/**
+	 * @param cmd The command
+	 * @return The binary form of cmd, or its UTF-8 text if it has none
+	 */
+	public static byte[] encode(String cmd) {
+		int stamp = stampLength(cmd);
+		if (stamp > 0) return encodeStamped(cmd, stamp);
+
+		byte[] encoded = encodeBinary(cmd);
+		return (encoded != null) ? encoded : cmd.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] encodeBinary(String cmd) {
+		int end = cmd.indexOf(' ');
+		if (end < 0) end = cmd.length();
+		int opcode = indexOf(WORDS, cmd, 0, end) + 1;
+		if (opcode == 0 || opcode > MAX_OPCODE) return null;
+
+		// No argument takes more bytes than its text and the space before it, but for
+		// the varint of a long ARG_TEXT
+		ByteBuffer buf = ByteBuffer.allocate(cmd.length() + 8);
+		buf.put((byte) opcode);
+		while (end < cmd.length()) {
+			int start = end + 1;
+			end = cmd.indexOf(' ', start);
+			if (end < 0) end = cmd.length();
+			if (start == end) return null;
+
+			long value = parseInt(cmd, start, end);
+			int word;
+			if (value != Long.MIN_VALUE) {
+				int arg = (int) value;
+				putVarint(buf, ((long) ((arg << 1) ^ (arg >> 31)) & 0xFFFFFFFFL) << 2 | ARG_INT);
+			} else if ((word = indexOf(WORDS, cmd, start, end)) >= 0) {
+				putVarint(buf, (long) word << 2 | ARG_WORD);
+			} else if ((word = indexOf(NAMES, cmd, start, end)) >= 0) {
+				putVarint(buf, (long) word << 2 | ARG_NAME);
+			} else {
+				if (buf.remaining() < 5 + end - start) return null;
+				putVarint(buf, (long) (end - start) << 2 | ARG_TEXT);
+				for (int i = start; i < end; i++) {
+					char c = cmd.charAt(i);
+					if (c <= ' ' || c > '~') return null;
+					buf.put((byte) c);
+				}
+			}
+		}
+		return Arrays.copyOf(buf.array(), buf.position());
+	}
+
+	private static byte[] encodeStamped(String cmd, int length) {
+		long[] stamp = parseStamp(cmd);
+		byte[] rest = encode(cmd.substring(length));
+
+		ByteBuffer buf = ByteBuffer.allocate(1 + 3 * 10 + rest.length);
+		buf.put((byte) STAMP);
+		for (long value: stamp) {
+			putVarint(buf, value);
+		}
+		buf.put(rest);
+		return Arrays.copyOf(buf.array(), buf.position());
+	}
+
+	/**
+	 * @param cmd The command
+	 * @param tag What the command went over, or any other small number
+	 * @param id The command's number at the process it comes from
+	 * @param time When the command was sent
+	 * @return cmd with a stamp in front of it. The tag is at most MAX_STAMP_TAG and none
+	 *         of the numbers may be negative.
+	 */
+	public static String stamp(String cmd, int tag, long id, long time) {
+		return new StringBuilder(cmd.length() + 40).append(STAMP_MARK).append(tag).append(':').append(id)
+				.append('@').append(time).append(' ').append(cmd).toString();
+	}
+
+	/**
+	 * @param cmd A command's text
+	 * @return The tag, id and time of cmd's stamp, or null if it has none
+	 */
+	public static long[] parseStamp(String cmd) {
+		int length = stampLength(cmd);
+		if (length == 0) return null;
+
+		int colon = cmd.indexOf(':');
+		int at = cmd.indexOf('@', colon);
+		return new long[] { parseNumber(cmd, 1, colon), parseNumber(cmd, colon + 1, at), parseNumber(cmd, at + 1, length - 1) };
+	}
+
+	/**
+	 * @param cmd A command's text
+	 * @return cmd without its stamp, or cmd itself if it has none
+	 */
+	public static String unstamped(String cmd) {
+		int length = stampLength(cmd);
+		return (length == 0) ? cmd : cmd.substring(length);
+	}
+
+	/**
+	 * @return The length of cmd's stamp with the space after it, or 0 if it has none. Only
+	 *         a stamp written the way stamp writes it counts, so decoding gives it back exactly.
+	 */
+	private static int stampLength(String cmd) {
+		if (cmd.isEmpty() || cmd.charAt(0) != STAMP_MARK) return 0;
+
+		int colon = cmd.indexOf(':');
+		if (colon < 0) return 0;
+		int at = cmd.indexOf('@', colon);
+		if (at < 0) return 0;
+		int space = cmd.indexOf(' ', at);
+		if (space < 0) return 0;
+
+		long tag = parseNumber(cmd, 1, colon);
+		if (tag < 0 || tag > MAX_STAMP_TAG || parseNumber(cmd, colon + 1, at) < 0 || parseNumber(cmd, at + 1, space) < 0) return 0;
+		return space + 1;
+	}
+
+	/**
+	 * @return The number written from start to end as Long.toString writes it, or -1 if it
+	 *         is negative or written any other way
+	 */
+	private static long parseNumber(String cmd, int start, int end) {
+		if (start == end || end - start > 19) return -1;
+		if (cmd.charAt(start) == '0' && end - start > 1) return -1;
+
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			char c = cmd.charAt(i);
+			if (c < '0' || c > '9' || value > (Long.MAX_VALUE - (c - '0')) / 10) return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * @return The index in words of cmd's characters from start to end, or -1
+	 */
+	private static int indexOf(String[] words, String cmd, int start, int end) {
+		for (int i = 0; i < words.length; i++) {
+			String word = words[i];
+			if (word.length() == end - start && cmd.regionMatches(start, word, 0, word.length())) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The int written from start to end as Integer.toString writes it, or
+	 *         Long.MIN_VALUE if it is written any other way
+	 */
+	private static long parseInt(String cmd, int start, int end) {
+		boolean negative = cmd.charAt(start) == '-';
+		int i = negative ? start + 1 : start;
+		if (i == end || end - i > 10) return Long.MIN_VALUE;
+		if (cmd.charAt(i) == '0' && (end - i > 1 || negative)) return Long.MIN_VALUE;
+
+		long value = 0;
+		for (; i < end; i++) {
+			char c = cmd.charAt(i);
+			if (c < '0' || c > '9') return Long.MIN_VALUE;
+			value = value * 10 + (c - '0');
+		}
+		if (negative) value = -value;
+		return (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) ? Long.MIN_VALUE : value;
+	}
+
+	/**
+	 * @param payload A command, from its position to its limit. Left unchanged.
+	 * @return True if the command is in binary form
+	 */
+	public static boolean isBinary(ByteBuffer payload) {
+		if (!payload.hasRemaining()) return false;
+		int first = payload.get(payload.position()) & 0xFF;
+		return first > 0 && first <= MAX_OPCODE;
+	}
+
+	/**
+	 * Append the text of a command, in either form, without any strings in between. A
+	 * malformed binary command is cut short where it goes wrong.
+	 * @param payload The command, from its position to its limit. Left unchanged.
+	 * @param out Where to append the text
+	 */
+	public static void decode(ByteBuffer payload, StringBuilder out) {
+		int pos = payload.position();
+		int limit = payload.limit();
+		if (!isBinary(payload)) {
+			appendText(payload, pos, limit, out);
+			return;
+		}
+
+		int opcode = payload.get(pos++);
+		if (opcode == STAMP) {
+			decodeStamped(payload, pos, out);
+			return;
+		}
+		if (opcode > WORDS.length) return;
+		out.append(WORDS[opcode - 1]);
+
+		while (pos < limit) {
+			// The argument's varint, inline to keep the position
+			long arg = 0;
+			int shift = 0;
+			byte b;
+			do {
+				if (pos == limit || shift > 63) return;
+				b = payload.get(pos++);
+				arg |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+
+			long value = arg >>> 2;
+			switch ((int) arg & 3) {
+			case ARG_INT:
+				out.append(' ').append((int) (value >>> 1) ^ -(int) (value & 1));
+				break;
+			case ARG_WORD:
+				if (value >= WORDS.length) return;
+				out.append(' ').append(WORDS[(int) value]);
+				break;
+			case ARG_TEXT:
+				if (value > limit - pos) return;
+				out.append(' ');
+				appendText(payload, pos, pos + (int) value, out);
+				pos += (int) value;
+				break;
+			case ARG_NAME:
+				if (value >= NAMES.length) return;
+				out.append(' ').append(NAMES[(int) value]);
+				break;
+			default:
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Append the text of the stamp from pos on, then the command which follows it
+	 */
+	private static void decodeStamped(ByteBuffer payload, int pos, StringBuilder out) {
+		ByteBuffer rest = payload.duplicate();
+		rest.position(pos);
+		try {
+			long tag = Framing.readVarint(rest);
+			long id = Framing.readVarint(rest);
+			long time = Framing.readVarint(rest);
+			out.append(STAMP_MARK).append(tag).append(':').append(id).append('@').append(time).append(' ');
+		} catch (IOException e) {
+			return;
+		}
+		decode(rest, out);
+	}
+
+	/**
+	 * @param payload A command, from its position to its limit. Left unchanged.
+	 * @return The command's text
+	 */
+	public static String decode(ByteBuffer payload) {
+		StringBuilder out = new StringBuilder(payload.remaining() + 16);
+		decode(payload, out);
+		return out.toString();
+	}
+
+	/**
+	 * @param cmd A command, in either form
+	 * @return The command's text
+	 */
+	public static String decode(byte[] cmd) {
+		return decode(ByteBuffer.wrap(cmd));
+	}
+
+	/**
+	 * Read a move and leave any other command, without decoding binary commands
+	 * @param payload A command in either form, from its position to its limit, with or
+	 *                without a stamp. Left unchanged.
+	 * @param move Where to put the move's x and y
+	 * @return False if the command isn't a move
+	 */
+	public static boolean parseMove(ByteBuffer payload, int[] move) {
+		int pos = payload.position();
+		int limit = payload.limit();
+		if (pos < limit && (payload.get(pos) & 0xFF) == STAMP) {
+			// Pass over the stamp's three numbers
+			pos++;
+			for (int i = 0; i < 3; i++) {
+				do {
+					if (pos == limit) return false;
+				} while ((payload.get(pos++) & 0x80) != 0);
+			}
+		}
+		if (pos == limit) return false;
+
+		int opcode = payload.get(pos) & 0xFF;
+		if (opcode == 0 || opcode > MAX_OPCODE) {
+			// Text, as sent by separator clients
+			ByteBuffer text = payload.duplicate();
+			text.position(pos);
+			return parseMove(unstamped(decode(text)), move);
+		}
+		if (opcode != MOVE) return false;
+
+		pos++;
+		for (int i = 0; i < 2; i++) {
+			long arg = 0;
+			int shift = 0;
+			byte b;
+			do {
+				if (pos == limit || shift > 63) return false;
+				b = payload.get(pos++);
+				arg |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			if (((int) arg & 3) != ARG_INT) return false;
+
+			long value = arg >>> 2;
+			move[i] = (int) (value >>> 1) ^ -(int) (value & 1);
+		}
+		return pos == limit;
+	}
+
+	/**
+	 * @return False if cmd isn't a move, any whitespace may come between its words
+	 */
+	private static boolean parseMove(String cmd, int[] move) {
+		int word = 0;
+		int end = 0;
+		while (true) {
+			int start = end;
+			while (start < cmd.length() && Character.isWhitespace(cmd.charAt(start))) start++;
+			if (start == cmd.length()) return word == 3;
+			end = start;
+			while (end < cmd.length() && !Character.isWhitespace(cmd.charAt(end))) end++;
+
+			if (word == 0) {
+				if (end - start != WORDS[0].length() || !cmd.regionMatches(true, start, WORDS[0], 0, end - start)) return false;
+			} else if (word < 3) {
+				try {
+					move[word - 1] = Integer.parseInt(cmd.substring(start, end));
+				} catch (NumberFormatException e) {
+					return false;
+				}
+			} else {
+				return false;
+			}
+			word++;
+		}
+	}
+
+	/**
+	 * @param payload A command, from its position to its limit. Left unchanged.
+	 * @return The payload itself if it is text, otherwise a new buffer with its text
+	 */
+	public static ByteBuffer toText(ByteBuffer payload) {
+		if (!isBinary(payload)) return payload;
+		return ByteBuffer.wrap(decode(payload).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Append UTF-8 text, a char per byte for as long as it is ASCII
+	 */
+	private static void appendText(ByteBuffer payload, int pos, int limit, StringBuilder out) {
+		for (; pos < limit; pos++) {
+			byte b = payload.get(pos);
+			if (b < 0) break;
+			out.append((char) b);
+		}
+		if (pos == limit) return;
+
+		ByteBuffer rest = payload.duplicate();
+		rest.limit(limit).position(pos);
+		out.append(StandardCharsets.UTF_8.decode(rest));
+	}
+
+	private static void putVarint(ByteBuffer buf, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buf.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte) value);
+	}
+}
@@ -0,0 +1,386 @@
+package nio_sims;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of broadcast commands, kept in a directory of segment files which
+ * are memory mapped as they are created. Appending copies the command into the mapping,
+ * so it costs no system call. A flusher thread forces whatever was appended since its
+ * last pass out to disk every FLUSH_INTERVAL_MS, so one fsync commits a whole group of
+ * commands, and callers who need a command on disk can wait for it with awaitDurable.
+ *
+ * Every record is
+ *   [int payload length][long sequence number][int CRC32][payload]
+ * and a zero sequence number marks the end of a segment's records. A segment is named
+ * after the first sequence number in it, and a new one is started once the current one
+ * is full. Only the newest RETAINED_SEGMENTS segments are kept.
+ *
+ * Each segment has a sparse index in memory, one entry per INDEX_INTERVAL bytes, so a
+ * replay from a given sequence number only scans a little of one segment to find its
+ * start. Opening a log checks every record, rebuilds the indexes and cuts the log off
+ * at the first torn or corrupt record.
+ */
+public class CommandLog implements Runnable {
+	// The size of a new segment file, a larger command gets a segment of its own size
+	public static int SEGMENT_SIZE = 16 << 20;
+
+	// The number of segment files kept, older ones are deleted
+	public static int RETAINED_SEGMENTS = 8;
+
+	// Bytes of records between two entries of a segment's index
+	public static int INDEX_INTERVAL = 4096;
+
+	// How often appended commands are forced out to disk
+	public static long FLUSH_INTERVAL_MS = 10;
+
+	private static final int HEADER_LENGTH = 16;
+	private static final String SUFFIX = ".log";
+
+	private File dir;
+
+	// Oldest first, the last is the one appended to
+	private List<Segment> segments = new ArrayList<Segment>();
+
+	private long lastSequence = 0;
+
+	// Segments which are full but may still hold data which hasn't been forced to disk
+	private List<Segment> unforced = new ArrayList<Segment>();
+
+	// The last sequence number known to be on disk, guarded by its own monitor
+	private final Object durableLock = new Object();
+	private long durableSequence = 0;
+
+	private CRC32 crc = new CRC32();
+	private volatile boolean closed = false;
+
+	/**
+	 * Open the log in a directory, creating it if needed, and recover whatever it holds
+	 * @param dir The directory
+	 * @throws IOException If the directory or its segments can't be opened
+	 */
+	public CommandLog(File dir) throws IOException {
+		this.dir = dir;
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Can't create log directory " + dir);
+		this.recover();
+		this.durableSequence = this.lastSequence;
+	}
+
+	/**
+	 * Start the flusher thread
+	 */
+	public void start() {
+		Thread thread = new Thread(this);
+		thread.setName("log-flusher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Add a command to the end of the log. It is only on disk once the flusher has been by.
+	 * @param seq The command's sequence number, higher than any already in the log
+	 * @param payload The command, from its position to its limit. Left unchanged.
+	 * @throws IOException If a new segment can't be created
+	 */
+	public synchronized void append(long seq, ByteBuffer payload) throws IOException {
+		if (seq <= this.lastSequence) {
+			throw new IllegalArgumentException("Sequence number " + seq + " is not after " + this.lastSequence);
+		}
+
+		int length = payload.remaining();
+		Segment segment = this.segments.isEmpty() ? null : this.segments.get(this.segments.size() - 1);
+		if (segment == null || segment.remaining() < HEADER_LENGTH + length) {
+			segment = this.roll(seq, HEADER_LENGTH + length);
+		}
+
+		MappedByteBuffer map = segment.map;
+		int pos = segment.writePosition;
+		map.putInt(pos, length);
+		map.putInt(pos + 12, this.checksum(seq, payload));
+		ByteBuffer body = map.duplicate();
+		body.position(pos + HEADER_LENGTH);
+		body.put(payload.duplicate());
+
+		// The sequence number goes in last, it is what makes the record visible
+		map.putLong(pos + 4, seq);
+
+		segment.add(seq, pos, HEADER_LENGTH + length);
+		this.lastSequence = seq;
+	}
+
+	/**
+	 * Read back every command from a sequence number on, as far as the end of the log
+	 * when this is called
+	 * @param fromSeq The first sequence number wanted
+	 * @param listener Told about each command, in order
+	 */
+	public void replay(long fromSeq, ReplayListener listener) {
+		List<Segment> segments = new ArrayList<Segment>();
+		List<Integer> starts = new ArrayList<Integer>();
+		long last;
+		synchronized (this) {
+			for (Segment segment: this.segments) {
+				if (segment.lastSequence < fromSeq) continue;
+				segments.add(segment);
+				starts.add(segment.floor(fromSeq));
+			}
+			last = this.lastSequence;
+		}
+
+		for (int i = 0; i < segments.size(); i++) {
+			ByteBuffer buf = segments.get(i).map.duplicate();
+			int pos = starts.get(i);
+			while (pos + HEADER_LENGTH <= buf.capacity()) {
+				long seq = buf.getLong(pos + 4);
+				if (seq > last) return;
+				
+				// The end of this segment's records, the rest are in the next one
+				if (seq == 0) break;
+
+				int length = buf.getInt(pos);
+				if (seq >= fromSeq) {
+					buf.limit(pos + HEADER_LENGTH + length);
+					buf.position(pos + HEADER_LENGTH);
+					listener.onCommand(seq, buf);
+					buf.limit(buf.capacity());
+				}
+				pos += HEADER_LENGTH + length;
+			}
+		}
+	}
+
+	public synchronized long getFirstSequence() {
+		return this.segments.isEmpty() ? 0 : this.segments.get(0).baseSequence;
+	}
+
+	public synchronized long getLastSequence() {
+		return this.lastSequence;
+	}
+
+	public long getDurableSequence() {
+		synchronized (this.durableLock) {
+			return this.durableSequence;
+		}
+	}
+
+	/**
+	 * Wait until a command has been forced out to disk
+	 * @param seq The command's sequence number
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public void awaitDurable(long seq) throws InterruptedException {
+		synchronized (this.durableLock) {
+			while (this.durableSequence < seq && !this.closed) this.durableLock.wait();
+		}
+	}
+
+	/**
+	 * Force everything appended so far out to disk
+	 */
+	public void flush() {
+		List<Segment> toForce;
+		long seq;
+		synchronized (this) {
+			seq = this.lastSequence;
+			if (seq == this.getDurableSequence()) return;
+
+			toForce = new ArrayList<Segment>(this.unforced);
+			this.unforced.clear();
+			if (!this.segments.isEmpty()) toForce.add(this.segments.get(this.segments.size() - 1));
+		}
+
+		// Outside the lock, appends carry on while the pages are written
+		for (Segment segment: toForce) {
+			segment.map.force();
+		}
+
+		synchronized (this.durableLock) {
+			this.durableSequence = Math.max(this.durableSequence, seq);
+			this.durableLock.notifyAll();
+		}
+	}
+
+	/**
+	 * The flusher thread, commits whatever was appended every FLUSH_INTERVAL_MS
+	 */
+	public void run() {
+		while (!this.closed) {
+			try {
+				Thread.sleep(FLUSH_INTERVAL_MS);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			this.flush();
+		}
+	}
+
+	/**
+	 * Flush and close every segment
+	 */
+	public synchronized void close() throws IOException {
+		this.flush();
+		this.closed = true;
+		for (Segment segment: this.segments) {
+			segment.channel.close();
+		}
+		synchronized (this.durableLock) {
+			this.durableLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Start a new segment, and delete the oldest ones beyond RETAINED_SEGMENTS
+	 */
+	private Segment roll(long baseSeq, int needed) throws IOException {
+		if (!this.segments.isEmpty()) this.unforced.add(this.segments.get(this.segments.size() - 1));
+
+		File file = new File(this.dir, String.format("%020d%s", baseSeq, SUFFIX));
+		Segment segment = new Segment(file, baseSeq, Math.max(SEGMENT_SIZE, needed));
+		this.segments.add(segment);
+
+		while (this.segments.size() > Math.max(1, RETAINED_SEGMENTS)) {
+			Segment oldest = this.segments.remove(0);
+			this.unforced.remove(oldest);
+
+			// The mapping stays valid until it is collected, so replays still reading it are fine
+			oldest.channel.close();
+			if (!oldest.file.delete()) System.err.println("Couldn't delete old log segment " + oldest.file);
+		}
+		return segment;
+	}
+
+	/**
+	 * Check every record of every segment, rebuilding the indexes, and cut the log off
+	 * at the first record which is torn or corrupt
+	 */
+	private void recover() throws IOException {
+		File[] files = this.dir.listFiles();
+		if (files == null) throw new IOException("Can't list log directory " + this.dir);
+		Arrays.sort(files);
+
+		boolean cut = false;
+		for (File file: files) {
+			if (!file.getName().endsWith(SUFFIX)) continue;
+			if (cut) {
+				// Past a corrupt record nothing can be trusted to follow on
+				System.err.println("Deleting log segment " + file + " after a corrupt record");
+				file.delete();
+				continue;
+			}
+
+			long baseSeq = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+			Segment segment = new Segment(file, baseSeq, (int) Math.max(file.length(), HEADER_LENGTH));
+			MappedByteBuffer map = segment.map;
+			int pos = 0;
+			while (pos + HEADER_LENGTH <= map.capacity()) {
+				long seq = map.getLong(pos + 4);
+				if (seq == 0) break;
+
+				int length = map.getInt(pos);
+				boolean valid = seq > this.lastSequence && length >= 0
+						&& length <= map.capacity() - pos - HEADER_LENGTH;
+				if (valid) {
+					ByteBuffer payload = map.duplicate();
+					payload.limit(pos + HEADER_LENGTH + length);
+					payload.position(pos + HEADER_LENGTH);
+					valid = map.getInt(pos + 12) == this.checksum(seq, payload);
+				}
+				if (!valid) {
+					System.err.println("Log " + file + " cut off at a corrupt record at " + pos);
+					cut = true;
+
+					// Clear the rest so nothing stale is read as a record later
+					for (int i = pos; i < map.capacity(); i++) map.put(i, (byte) 0);
+					map.force();
+					break;
+				}
+
+				segment.add(seq, pos, HEADER_LENGTH + length);
+				this.lastSequence = seq;
+				pos += HEADER_LENGTH + length;
+			}
+
+			if (segment.lastSequence == 0) {
+				// Nothing in it, the next append rolls a new segment if there's none before
+				segment.channel.close();
+				file.delete();
+				continue;
+			}
+			this.segments.add(segment);
+		}
+	}
+
+	private int checksum(long seq, ByteBuffer payload) {
+		this.crc.reset();
+		for (int i = 0; i < 8; i++) {
+			this.crc.update((int) (seq >>> (8 * i)));
+		}
+		this.crc.update(payload.duplicate());
+		return (int) this.crc.getValue();
+	}
+
+	/**
+	 * One mapped segment file and its sparse index
+	 */
+	private static class Segment {
+		final File file;
+		final FileChannel channel;
+		final MappedByteBuffer map;
+		final long baseSequence;
+		long lastSequence = 0;
+		int writePosition = 0;
+
+		// Sequence numbers and positions of every INDEX_INTERVAL'th byte of records
+		private long[] indexSequences = new long[16];
+		private int[] indexPositions = new int[16];
+		private int indexCount = 0;
+		private int nextIndexPosition = 0;
+
+		Segment(File file, long baseSequence, int size) throws IOException {
+			this.file = file;
+			this.baseSequence = baseSequence;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			this.channel = raf.getChannel();
+			this.map = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+
+		int remaining() {
+			return this.map.capacity() - this.writePosition;
+		}
+
+		/**
+		 * Note a record written at pos
+		 */
+		void add(long seq, int pos, int length) {
+			if (pos >= this.nextIndexPosition) {
+				if (this.indexCount == this.indexSequences.length) {
+					this.indexSequences = Arrays.copyOf(this.indexSequences, this.indexCount * 2);
+					this.indexPositions = Arrays.copyOf(this.indexPositions, this.indexCount * 2);
+				}
+				this.indexSequences[this.indexCount] = seq;
+				this.indexPositions[this.indexCount] = pos;
+				this.indexCount += 1;
+				this.nextIndexPosition = pos + INDEX_INTERVAL;
+			}
+			this.lastSequence = seq;
+			this.writePosition = pos + length;
+		}
+
+		/**
+		 * @return The position of the last indexed record at or before seq
+		 */
+		int floor(long seq) {
+			int i = Arrays.binarySearch(this.indexSequences, 0, this.indexCount, seq);
+			if (i < 0) i = -i - 2;
+			return (i < 0) ? 0 : this.indexPositions[i];
+		}
+	}
+}
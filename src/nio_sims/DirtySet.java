@@ -0,0 +1,37 @@
+package nio_sims;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free set of channels waiting to be switched to write mode. A channel is only
+ * pushed when its dirty flag goes from clear to set, so it is in the set at most once
+ * per selector cycle and the channel itself is the link, no node is allocated.
+ */
+public class DirtySet {
+	private AtomicReference<ChannelState> head = new AtomicReference<ChannelState>();
+	
+	/**
+	 * Called by any thread to mark the channel dirty for write
+	 * @param state The channel
+	 * @return True if the channel was not dirty before, and the selector needs waking
+	 */
+	public boolean add(ChannelState state) {
+		if (!state.markWriteDirty()) return false;
+		
+		ChannelState first;
+		do {
+			first = this.head.get();
+			state.nextDirty = first;
+		} while (!this.head.compareAndSet(first, state));
+		return true;
+	}
+	
+	/**
+	 * Called by the selector thread to take every dirty channel at once. Walk the result
+	 * with ChannelState.takeNextDirty, which also clears each channel's flag.
+	 * @return The first dirty channel, or null if there are none
+	 */
+	public ChannelState takeAll() {
+		return this.head.getAndSet(null);
+	}
+}
@@ -9,7 +9,6 @@ import com.hahn.doteditdistance.utils.logger.Logger;
 import StringProcessors.HalloweenCommandProcessor;
 import main.BeauAndersonFinalProject;
 import nio_sims.NioClient.NioSender;
-import port.trace.nio.LocalCommandObserved;
 import util.trace.TraceableInfo;
 import util.trace.Tracer;
 
@@ -46,6 +45,24 @@ public class DistroHalloweenSimulation implements PropertyChangeListener {
 		// TODO make special processor to set this up
 		if (args.length > 0) Logger.get().enable(args[0], args);
 		
+		// Optionally fall back to the old separator framing
+		NioClient.FRAMING = Framing.valueOf(System.getProperty("nio.framing", NioClient.FRAMING.name()).toUpperCase());
+		NioClient.BATCHING = Boolean.getBoolean("nio.batching");
+		NioClient.FLOW_CONTROL = Boolean.parseBoolean(System.getProperty("nio.flowControl", "true"));
+		
+		// Optionally reach a server on the same host over a Unix domain socket
+		NioClient.UNIX_SOCKET = System.getProperty("nio.unixSocket", NioClient.UNIX_SOCKET);
+		
+		// How often an idle connection is kept alive, and how long until a silent server is given up on
+		Heartbeat.INTERVAL_MS = Long.getLong("nio.heartbeatMs", Heartbeat.INTERVAL_MS);
+		Heartbeat.DEAD_PEER_MS = Long.getLong("nio.deadPeerMs", Heartbeat.DEAD_PEER_MS);
+		
+		// If the client's metrics are published as MBeans
+		Jmx.ENABLED = Boolean.parseBoolean(System.getProperty("nio.jmx", "true"));
+		
+		// Which events of the hot paths are traced, see Trace.configure
+		Trace.configure(System.getProperty("nio.trace"));
+		
 		HalloweenCommandProcessor cp = BeauAndersonFinalProject.createSimulation(
 				SIMULATION1_PREFIX, 0, SIMULATION_COMMAND_Y_OFFSET, SIMULATION_WIDTH, SIMULATION_HEIGHT, 100, 100);
 		
@@ -113,7 +130,7 @@ public class DistroHalloweenSimulation implements PropertyChangeListener {
 		if (!anEvent.getPropertyName().equals("InputString")) return;
 		
 		String newCommand = (String) anEvent.getNewValue();
-		LocalCommandObserved.newCase(this, newCommand);
+		if (Trace.on(Trace.LOCAL_COMMAND)) Trace.localCommand(this, newCommand);
 		
 		// Only send if not local
 		if (DistroHalloweenSimulation.MODE != SimuMode.ATOMIC) {
@@ -126,6 +143,8 @@ public class DistroHalloweenSimulation implements PropertyChangeListener {
 		
 		if (DistroHalloweenSimulation.MODE != SimuMode.LOCAL) {
 			if (this.sender == null) System.err.println("Null sender!");
+			// Binary commands can't be told apart from the separators around them
+			else if (NioClient.FRAMING == Framing.LENGTH_PREFIXED) this.sender.send(CommandCodec.encode(newCommand));
 			else this.sender.send(newCommand.getBytes());
 		}
 	}
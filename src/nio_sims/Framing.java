@@ -0,0 +1,185 @@
+package nio_sims;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How messages are delimited on a channel.
+ *
+ * SEPARATOR ends every message with NioClient.SEPERATOR, so a message can't contain it.
+ * Commands in CommandCodec's binary form go out as their text.
+ *
+ * LENGTH_PREFIXED sends every message as
+ *   [varint length][type][varint sequence number][payload]
+ * where length counts every byte after itself. Lengths and sequence numbers are unsigned
+ * LEB128 varints, so a short command costs three bytes of header.
+ *
+ * Every channel starts in SEPARATOR mode. A peer switches its side of a channel to
+ * LENGTH_PREFIXED by sending HELLO, a zero byte followed by VERSION, between two
+ * messages. No separated message starts with a zero byte and no length-prefixed message
+ * has length zero, so HELLO can't be mistaken for either. A client which wants
+ * LENGTH_PREFIXED sends HELLO first, the server answers with HELLO before the first
+ * length-prefixed message it sends back. Clients which never send HELLO keep the old
+ * separator framing in both directions.
+ */
+public enum Framing {
+	SEPARATOR, LENGTH_PREFIXED;
+
+	public static final byte HELLO = 0;
+	public static final byte VERSION = 1;
+	public static final int HELLO_LENGTH = 2;
+
+	// Message types
+	public static final int TYPE_COMMAND = 1;
+	// A batch of commands, each as [varint length][command]. The commands are numbered
+	// consecutively from the batch's sequence number. Receivers see each command on its own.
+	public static final int TYPE_BATCH = 2;
+	// Sequence numbers the client won't be sent, with the number of them as a varint
+	// payload. Sent to the source of a command which isn't echoed back to it.
+	public static final int TYPE_SKIP = 3;
+	// Asks the server to send a range of broadcasts again, from the sequence number with
+	// the number of them as a varint payload
+	public static final int TYPE_RETRANSMIT = 4;
+	// Broadcasts the server can no longer send again, laid out like TYPE_SKIP
+	public static final int TYPE_LOST = 5;
+	// The state of the simulation for a client which just switched to LENGTH_PREFIXED, as
+	// commands laid out like TYPE_BATCH. The sequence number is that of the first broadcast
+	// not in the snapshot, the client passes over any before it.
+	public static final int TYPE_SNAPSHOT = 6;
+	// Sent by a client, the number of commands more it has room for as a varint payload.
+	// Once a client has sent any, the server only writes commands to it while it has credit
+	// left. TYPE_COMMAND costs one, TYPE_BATCH one per command, every other frame is free,
+	// as are commands sent without a sequence number. Credit goes ahead of any commands the
+	// client has queued, see OutboundQueue.
+	public static final int TYPE_CREDIT = 7;
+	// Sent both ways with no payload when a connection has been idle for a while, see
+	// Heartbeat. A peer which has sent any is given up on once it goes silent.
+	public static final int TYPE_HEARTBEAT = 8;
+
+	// Frames longer than this are treated as a corrupt stream
+	public static int MAX_FRAME_LENGTH = 1 << 20;
+
+	/**
+	 * @return A new buffer holding HELLO, ready to be written
+	 */
+	public static ByteBuffer hello() {
+		ByteBuffer buf = ByteBuffer.allocate(HELLO_LENGTH);
+		buf.put(HELLO).put(VERSION);
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Encode a message in this framing
+	 * @param type The message type, dropped by SEPARATOR
+	 * @param seq The sequence number, dropped by SEPARATOR
+	 * @param payload The message, from its position to its limit. Left unchanged.
+	 * @return A buffer from the BufferPool holding the encoded frame, ready to be written
+	 */
+	public ByteBuffer encode(int type, long seq, ByteBuffer payload) {
+		// Separated batches go out as their separated commands, one after another
+		if (this == SEPARATOR && type == TYPE_BATCH) return encodeSeparatedBatch(payload);
+		if (this == SEPARATOR && type == TYPE_COMMAND) payload = CommandCodec.toText(payload);
+
+		int length = payload.remaining();
+
+		int size;
+		if (this == SEPARATOR) {
+			size = length + 1;
+		} else {
+			int body = 1 + varintSize(seq) + length;
+			size = varintSize(body) + body;
+		}
+
+		ByteBuffer buf = BufferPool.acquire(size);
+		if (this == SEPARATOR) {
+			buf.put(payload.duplicate());
+			buf.put((byte) NioClient.SEPERATOR);
+		} else {
+			putVarint(buf, 1 + varintSize(seq) + length);
+			buf.put((byte) type);
+			putVarint(buf, seq);
+			buf.put(payload.duplicate());
+		}
+		buf.flip();
+		return buf;
+	}
+
+	private static ByteBuffer encodeSeparatedBatch(ByteBuffer batch) {
+		// Every varint length gives way to a single separator
+		List<ByteBuffer> commands = new ArrayList<ByteBuffer>();
+		int size = 0;
+		int pos = batch.position();
+		while (pos < batch.limit()) {
+			int length = getVarint(batch, pos);
+			pos += varintSize(length);
+			ByteBuffer command = batch.duplicate();
+			command.limit(pos + length).position(pos);
+			command = CommandCodec.toText(command);
+			commands.add(command);
+			size += command.remaining() + 1;
+			pos += length;
+		}
+
+		ByteBuffer buf = BufferPool.acquire(size);
+		for (ByteBuffer command: commands) {
+			buf.put(command);
+			buf.put((byte) NioClient.SEPERATOR);
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Read a varint written by putVarint, without any checks
+	 * @param buf The buffer, left unchanged
+	 * @param pos Where the varint starts
+	 * @return The value, which must fit in an int
+	 */
+	static int getVarint(ByteBuffer buf, int pos) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buf.get(pos++);
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	/**
+	 * Read a varint sent by a peer
+	 * @param buf The buffer, read from its position which is moved past the varint
+	 * @return The value
+	 * @throws IOException If the varint is malformed or runs past the limit
+	 */
+	static long readVarint(ByteBuffer buf) throws IOException {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			if (!buf.hasRemaining() || shift > 63) throw new IOException("Malformed varint");
+			b = buf.get();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	static int varintSize(long value) {
+		int size = 1;
+		while ((value >>>= 7) != 0) size += 1;
+		return size;
+	}
+
+	static void putVarint(ByteBuffer buf, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buf.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte) value);
+	}
+}
@@ -0,0 +1,86 @@
+package nio_sims;
+
+/**
+ * Keeps an idle length-prefixed connection alive and notices when its peer is gone, on
+ * the TimerWheel of the connection's selector thread. A peer which vanished without
+ * closing its end, a crashed host or a pulled cable, is otherwise only noticed once a
+ * write fails, which may be never, while everything sent to it piles up.
+ *
+ * Once nothing has been written to the channel for INTERVAL_MS a TYPE_HEARTBEAT goes out.
+ * A peer which sends heartbeats itself and hasn't been heard from for DEAD_PEER_MS is
+ * taken for dead. Peers which never sent one, such as separator clients, may just have
+ * nothing to say and are never given up on for being silent.
+ *
+ * While a backlog is being written no heartbeat is added to it, the backlog is what keeps
+ * the connection busy. Under a BACKPRESSURE policy the server's stall check gives up on a
+ * peer which stops taking it. A backlog held back because the peer gave no credit is
+ * written by nobody, so heartbeats still go out, ahead of it, and the peer doesn't take a
+ * connection it is itself stalling for a silent one.
+ */
+public abstract class Heartbeat extends TimerWheel.Timeout {
+	// How long a connection may go without anything written to it, 0 for no heartbeats
+	public static long INTERVAL_MS = 1000;
+
+	// How long a peer which sends heartbeats may go silent, 0 to never give up on it
+	public static long DEAD_PEER_MS = 5000;
+
+	private TimerWheel wheel;
+	private ChannelState state;
+
+	/**
+	 * @param wheel The wheel of the channel's selector thread
+	 * @param state The channel
+	 */
+	public Heartbeat(TimerWheel wheel, ChannelState state) {
+		this.wheel = wheel;
+		this.state = state;
+	}
+
+	/**
+	 * Called by the selector thread once the channel is connected
+	 */
+	public void start() {
+		if (INTERVAL_MS > 0) this.wheel.schedule(this, INTERVAL_MS);
+	}
+
+	@Override
+	protected void expire() {
+		// Stops with the channel
+		if (this.state.isClosed() || !this.state.getChannel().isOpen()) return;
+
+		long now = System.nanoTime();
+		long silent = (now - this.state.getLastRead()) / 1000000;
+		if (DEAD_PEER_MS > 0 && this.state.sendsHeartbeats() && silent > DEAD_PEER_MS) {
+			this.dead(silent);
+			return;
+		}
+
+		long idle = (now - this.state.getLastWritten()) / 1000000;
+		long wait = INTERVAL_MS - idle;
+		if (wait <= 0) {
+			if (this.state.getFraming() == Framing.LENGTH_PREFIXED && !this.state.canWrite()) {
+				SharedFrame frame = SharedFrame.heartbeat();
+				this.send(this.state, frame);
+				frame.release();
+			}
+			wait = INTERVAL_MS;
+		}
+
+		// Look again when the next heartbeat is due, or the peer's time runs out
+		if (DEAD_PEER_MS > 0 && this.state.sendsHeartbeats()) wait = Math.min(wait, DEAD_PEER_MS - silent + 1);
+		this.wheel.schedule(this, wait);
+	}
+
+	/**
+	 * Called by the selector thread to queue a heartbeat
+	 * @param state The channel
+	 * @param frame The heartbeat, the queued view takes its own reference
+	 */
+	protected abstract void send(ChannelState state, SharedFrame frame);
+
+	/**
+	 * Called by the selector thread once the peer is taken for dead, to close the channel
+	 * @param silent How long the peer has been silent, in milliseconds
+	 */
+	protected abstract void dead(long silent);
+}
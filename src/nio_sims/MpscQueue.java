@@ -0,0 +1,64 @@
+package nio_sims;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free multi-producer/single-consumer queue. Any thread may offer, only the
+ * thread which owns the queue may poll.
+ */
+public class MpscQueue<E> {
+	private static class Node<E> {
+		private E value;
+		private volatile Node<E> next;
+		
+		Node(E value) {
+			this.value = value;
+		}
+	}
+	
+	// Producers swap themselves in at the tail
+	private AtomicReference<Node<E>> tail;
+	
+	// Only touched by the consumer, always points at an already consumed node
+	private Node<E> head;
+	
+	public MpscQueue() {
+		Node<E> stub = new Node<E>(null);
+		this.head = stub;
+		this.tail = new AtomicReference<Node<E>>(stub);
+	}
+	
+	/**
+	 * Called by any thread to add to the queue
+	 * @param value The value to add
+	 */
+	public void offer(E value) {
+		Node<E> node = new Node<E>(value);
+		Node<E> prev = this.tail.getAndSet(node);
+		
+		// Between the swap and this link the consumer sees the queue as
+		// ending at prev, so the value shows up on its next poll
+		prev.next = node;
+	}
+	
+	/**
+	 * Called by the consumer to take from the queue
+	 * @return The oldest value, or null if there is none
+	 */
+	public E poll() {
+		Node<E> next = this.head.next;
+		if (next == null) return null;
+		
+		E value = next.value;
+		next.value = null;
+		this.head = next;
+		return value;
+	}
+	
+	/**
+	 * Called by the consumer to check if there is anything to poll
+	 */
+	public boolean isEmpty() {
+		return this.head.next == null;
+	}
+}
@@ -0,0 +1,36 @@
+package nio_sims;
+
+/**
+ * What JMX sees of the broadcast server as a whole, every connection also has its own
+ * ChannelStateMBean. Traffic counts include clients which have since disconnected.
+ */
+public interface NioBroadcastServerMBean {
+	int getClients();
+
+	int getLaggingClientCount();
+
+	long getBroadcasts();
+
+	long getBytesRead();
+
+	long getFramesRead();
+
+	long getBytesWritten();
+
+	long getFramesWritten();
+
+	long getPartialWrites();
+
+	/**
+	 * @return Passes of the selector loops, and the time they spent on them
+	 */
+	long getSelectorIterations();
+
+	long getSelectorBusyNanos();
+
+	long getSelectorMaxIterationNanos();
+
+	long getWakeupRequests();
+
+	long getWakeups();
+}
@@ -9,51 +9,131 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.hahn.doteditdistance.utils.logger.Logger;
 import com.hahn.doteditdistance.utils.logger.LoggerEvents;
 
 import port.trace.nio.SocketChannelConnectFinished;
 import port.trace.nio.SocketChannelConnectInitiated;
-import port.trace.nio.SocketChannelInterestOp;
-import port.trace.nio.SocketChannelRead;
 import port.trace.nio.SocketChannelRegistered;
-import port.trace.nio.SocketChannelWritten;
 
-public class NioClient implements Runnable {
+public class NioClient implements Runnable, FrameListener, NioClientMBean {
 	private static final byte[] EMPTY_BYTES = new byte[0];
+	public static final int NIO_PORT = 9090;
 	public static final char SEPERATOR = '|';
 	
-	// The host:port combination to connect to
-	private InetAddress hostAddress;
-	private int port;
+	// The framing new connections ask the server for
+	public static Framing FRAMING = Framing.LENGTH_PREFIXED;
+	
+	// If commands sent close together are packed into batch frames, see CommandBatcher
+	public static boolean BATCHING = false;
+	
+	// If length-prefixed connections give the server credit, so it holds back commands
+	// the handler has no room for, see Framing.TYPE_CREDIT
+	public static boolean FLOW_CONTROL = true;
+	
+	// The path of a Unix domain socket the server listens on and clients connect to in
+	// place of the TCP port, for deployments with every process on the same host, or null
+	public static String UNIX_SOCKET = null;
+	
+	// Where to connect, a host:port combination or a Unix domain socket, see UnixSockets
+	private SocketAddress address;
 
-	// The selector we'll be monitoring
+	// The selector we'll be monitoring, and how producers wake it
 	private Selector selector;
+	private SelectorWakeup waker;
 
-	// The buffer into which we'll read data when it's available
-	private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+	// The buffer into which we'll read data when it's available, a direct
+	// buffer borrowed from the pool for as long as this selector runs
+	private ByteBuffer readBuffer = BufferPool.acquire(8192);
 
-	// A list of PendingChange instances
-	private List<ChangeRequest> pendingChanges = new LinkedList();
+	// Channels waiting to be registered with the selector, low volume
+	private Queue<ChangeRequest> pendingRegistrations = new ConcurrentLinkedQueue<ChangeRequest>();
 
-	// Maps a SocketChannel to a list of ByteBuffer instances
-	private Map<SocketChannel, List<ByteBuffer>> pendingData = new HashMap();
+	// Channels with newly queued data, waiting to be switched to write mode
+	private DirtySet dirty = new DirtySet();
+
+	// Puts each length-prefixed connection's broadcasts back in order, only used
+	// by the selector thread once the connection is registered
+	private Map<SocketChannel, SequenceTracker> trackers = Collections.synchronizedMap(new HashMap<SocketChannel, SequenceTracker>());
+	
+	// How often held back commands are retried while a tracker is waiting
+	private static final long TRACKER_TICK_MS = 10;
+	
+	// Every connection's Heartbeat, only touched by the selector thread
+	private TimerWheel timers = new TimerWheel(TimerWheel.TICK_MS, TimerWheel.BUCKETS);
+	
+	// How long each pass of the selector loop takes
+	private SelectorStats stats = new SelectorStats();
 	
+	// Numbers the clients in this process, to tell their MBeans apart
+	private static final AtomicInteger CLIENTS = new AtomicInteger(0);
+
 	// Maps a SocketChannel to a RspHandler
 	private Map<SocketChannel, RspHandler> rspHandlers = Collections.synchronizedMap(new HashMap());
 	
 	public NioClient(InetAddress hostAddress, int port) throws IOException {
-		this.hostAddress = hostAddress;
-		this.port = port;
+		this(new InetSocketAddress(hostAddress, port));
+	}
+	
+	/**
+	 * @param address Where to connect, a host:port combination or a Unix domain socket
+	 *                from UnixSockets.address
+	 */
+	public NioClient(SocketAddress address) throws IOException {
+		this.address = address;
 		this.selector = this.initSelector();
+		this.waker = new SelectorWakeup(this.selector);
+		Jmx.register(this, "NioClient", address + " #" + CLIENTS.incrementAndGet());
+	}
+	
+	/**
+	 * @param host The server's host, or null for the wildcard address when listening
+	 * @return Where this deployment's server listens, UNIX_SOCKET if it is set and
+	 *         otherwise NIO_PORT on the host
+	 * @throws IOException If UNIX_SOCKET is set but the JVM doesn't have Unix domain sockets
+	 */
+	public static SocketAddress endpoint(InetAddress host) throws IOException {
+		if (UNIX_SOCKET != null) return UnixSockets.address(UNIX_SOCKET);
+		return new InetSocketAddress(host, NIO_PORT);
+	}
+	
+	public int getConnections() {
+		return this.rspHandlers.size();
+	}
+	
+	public long getSelectorIterations() {
+		return this.stats.getIterations();
+	}
+	
+	public long getSelectorBusyNanos() {
+		return this.stats.getBusyNanos();
+	}
+	
+	public long getSelectorMaxIterationNanos() {
+		return this.stats.getMaxNanos();
+	}
+	
+	/**
+	 * @return How many times senders asked the selector thread to wake up
+	 */
+	public long getWakeupRequests() {
+		return this.waker.getRequests();
+	}
+	
+	/**
+	 * @return How many of those requests woke the selector, the rest found it awake already
+	 */
+	public long getWakeups() {
+		return this.waker.getWakeups();
 	}
 	
 	/**
@@ -73,51 +153,48 @@ public class NioClient implements Runnable {
 	 * @throws IOException If the socket fails to open
 	 */
 	protected NioSender connect(RspHandler handler) throws IOException {
-		// Start a new connection
-		SocketChannel socket = this.initiateConnection();
+		// Start a new connection, its (empty) pending data queue
+		// is attached to its key once registered
+		ChannelState state = this.initiateConnection();
+		SocketChannel socket = state.getChannel();
 		
 		// Register the response handler
 		this.rspHandlers.put(socket, handler);
-		
-		// Initialize pending data queue (empty)
-		synchronized (this.pendingData) {
-			List<ByteBuffer> queue = this.pendingData.get(socket);
-			if (queue == null) {
-				queue = new ArrayList();
-				this.pendingData.put(socket, queue);
-			}
-		}
+		if (FRAMING == Framing.LENGTH_PREFIXED) this.trackers.put(socket, this.newTracker(state, handler));
+		if (FRAMING == Framing.LENGTH_PREFIXED && FLOW_CONTROL) this.giveCredit(state, handler);
 
 		// Finally, wake up our selecting thread so it can make the required changes
-		this.selector.wakeup();
+		this.waker.wakeup();
 		
-		return new NioSender(this, socket);
+		return new NioSender(this, state);
 	}
 	
 	/**
 	 * Called from connect in the main thread to start a new connection
-	 * @return The requested socket
+	 * @return The state of the requested socket
 	 * @throws IOException If the socket fails to open
 	 */
-	private SocketChannel initiateConnection() throws IOException {
-		// Create a non-blocking socket channel
-		SocketChannel socketChannel = SocketChannel.open();
+	private ChannelState initiateConnection() throws IOException {
+		// Create a non-blocking socket channel of the address's family
+		SocketChannel socketChannel = UnixSockets.open(this.address);
 		socketChannel.configureBlocking(false);
 	
 		// Kick off connection establishment
-		SocketAddress addr = new InetSocketAddress(this.hostAddress, this.port);
-		socketChannel.connect(addr);
-		SocketChannelConnectInitiated.newCase(this, socketChannel, addr);
+		socketChannel.connect(this.address);
+		SocketChannelConnectInitiated.newCase(this, socketChannel, this.address);
 	
 		// Queue a channel registration since the caller is not the 
 		// selecting thread. As part of the registration we'll register
 		// an interest in connection events. These are raised when a channel
 		// is ready to complete connection establishment.
-		synchronized(this.pendingChanges) {
-			this.pendingChanges.add(new ChangeRequest(socketChannel, ChangeRequest.REGISTER, SelectionKey.OP_CONNECT));
+		ChannelState state = new ChannelState(socketChannel);
+		if (FRAMING == Framing.LENGTH_PREFIXED) {
+			// HELLO goes out ahead of every command
+			state.setFraming(Framing.LENGTH_PREFIXED, true);
 		}
+		this.pendingRegistrations.add(new ChangeRequest(socketChannel, ChangeRequest.REGISTER, SelectionKey.OP_CONNECT, state));
 		
-		return socketChannel;
+		return state;
 	}
 
 	/**
@@ -126,28 +203,15 @@ public class NioClient implements Runnable {
 	public void run() {
 		while (true) {
 			try {
-				// Process any pending changes
-				synchronized (this.pendingChanges) {
-					Iterator<ChangeRequest> changes = this.pendingChanges.iterator();
-					while (changes.hasNext()) {
-						ChangeRequest change = changes.next();
-						switch (change.type) {
-						case ChangeRequest.CHANGEOPS:
-							SelectionKey key = change.socket.keyFor(this.selector);
-							key.interestOps(change.ops);
-							SocketChannelInterestOp.newCase(this, key, change.ops);
-							break;
-						case ChangeRequest.REGISTER:
-							change.socket.register(this.selector, change.ops);
-							SocketChannelRegistered.newCase(this, change.socket, this.selector, change.ops);
-							break;
-						}
-					}
-					this.pendingChanges.clear();
-				}
+				// Process any pending changes, anything queued from here on wakes the selector
+				this.waker.prepareToSelect();
+				this.processChanges();
 
-				// Wait for an event one of the registered channels
-				this.selector.select();
+				// Wait for an event one of the registered channels, or until
+				// held back commands should be retried or the timers tick
+				this.selector.select(this.timers.selectTimeout(this.tickTrackers() ? TRACKER_TICK_MS : 0));
+				this.waker.selected();
+				long start = System.nanoTime();
 
 				// Iterate over the set of keys for which events are available
 				Iterator selectedKeys = this.selector.selectedKeys().iterator();
@@ -162,18 +226,54 @@ public class NioClient implements Runnable {
 					// Check what event is available and deal with it
 					if (key.isConnectable()) {
 						this.finishConnection(key);
-					} else if (key.isReadable()) {
-						this.read(key);
-					} else if (key.isWritable()) {
-						this.write(key);
+					} else {
+						// Keep reading while a backlog is written, or a peer which is
+						// also writing could fill both sockets' buffers and stall
+						if (key.isReadable()) this.read(key);
+						if (key.isValid() && key.isWritable()) this.write(key);
 					}
 				}
+
+				this.timers.advance(System.nanoTime());
+				this.stats.record(System.nanoTime() - start);
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
 		}
 	}
 
+	/**
+	 * Called by the selector thread to apply registrations and interest changes
+	 * requested by other threads
+	 * @throws IOException Failed to register a channel
+	 */
+	private void processChanges() throws IOException {
+		ChangeRequest change;
+		while ((change = this.pendingRegistrations.poll()) != null) {
+			ChannelState state = (ChannelState) change.attachment;
+			state.setKey(change.socket.register(this.selector, change.ops, state));
+			SocketChannelRegistered.newCase(this, change.socket, this.selector, change.ops);
+			
+			// A Unix domain socket usually connects at once, and is then never connectable
+			if (change.ops == SelectionKey.OP_CONNECT && change.socket.isConnected()) this.finishConnection(state.getKey());
+		}
+
+		// Switch every channel with newly queued data to write mode,
+		// once no matter how many frames were queued
+		ChannelState state = this.dirty.takeAll();
+		while (state != null) {
+			SelectionKey key = state.getKey();
+			ChannelState next = state.takeNextDirty();
+			
+			// Still connecting, finishConnection checks for queued data
+			if (key != null && key.isValid() && (key.interestOps() & SelectionKey.OP_CONNECT) == 0) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				if (Trace.on(Trace.INTEREST_OP)) Trace.interestOp(this, key, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+			state = next;
+		}
+	}
+
 	/**
 	 * Called by the selector thread to read from itself
 	 * @param key Where it is reading from
@@ -181,6 +281,7 @@ public class NioClient implements Runnable {
 	 */
 	private void read(SelectionKey key) throws IOException {
 		SocketChannel socketChannel = (SocketChannel) key.channel();
+		ChannelState state = (ChannelState) key.attachment();
 
 		// Clear out our read buffer so it's ready for new data
 		this.readBuffer.clear();
@@ -190,12 +291,13 @@ public class NioClient implements Runnable {
 		try {
 			numRead = socketChannel.read(this.readBuffer);
 			readBuffer = Logger.get().prepareReceive(socketChannel, readBuffer);
-			SocketChannelRead.newCase(this, socketChannel, readBuffer);
+			if (Trace.on(Trace.READ)) Trace.read(this, socketChannel, this.readBuffer);
 		} catch (IOException e) {
 			// The remote forcibly closed the connection, cancel
 			// the selection key and close the channel.
 			key.cancel();
 			socketChannel.close();
+			this.closed(state);
 			return;
 		}
 
@@ -204,37 +306,154 @@ public class NioClient implements Runnable {
 			// same from our end and cancel the channel.
 			key.channel().close();
 			key.cancel();
+			this.closed(state);
 			return;
 		}
 
-		// Handle the response
-		this.handleResponse(socketChannel, this.readBuffer.array(), this.readBuffer.limit());
+		// Split the data into frames, which are passed to the RspHandler
+		try {
+			state.decode(this.readBuffer, this);
+		} catch (IOException e) {
+			System.out.println("Closed connection receiving malformed frames: " + e.getMessage());
+			key.cancel();
+			socketChannel.close();
+			this.closed(state);
+		}
 	}
 
 	/**
-	 * Called by selector read thread to pass data to RspHandler
-	 * @param socketChannel The socket which the data came from
-	 * @param data The data itself
-	 * @param numRead The length of the data
+	 * Called while decoding once the server has switched to length-prefixed framing
+	 * @param state The server's channel
+	 */
+	@Override
+	public void onHello(ChannelState state) {
+		// The decoder has already switched, every frame we send was length-prefixed from the start
+	}
+
+	/**
+	 * Called by the selector thread for every complete frame to pass it to the RspHandler
+	 * @param state The channel which the frame came from
+	 * @param type The type of the frame
+	 * @param seq The server's sequence number for the frame
+	 * @param payload The frame's payload, only valid until this returns
 	 * @throws IOException Needed to close socket, but failed to do so
 	 */
-	private void handleResponse(SocketChannel socketChannel, byte[] data, int numRead) throws IOException {
-		// Make a correctly sized copy of the data before handing it
-		// to the client
-		byte[] rspData = new byte[numRead];
-		System.arraycopy(data, 0, rspData, 0, numRead);
+	@Override
+	public void onFrame(ChannelState state, int type, long seq, ByteBuffer payload) throws IOException {
+		SocketChannel socketChannel = state.getChannel();
+		if (type == Framing.TYPE_HEARTBEAT) {
+			state.markHeartbeats();
+			return;
+		}
+		
+		// Only length-prefixed frames carry the server's sequence numbers
+		SequenceTracker tracker = this.trackers.get(socketChannel);
+		if (tracker != null && seq != 0) {
+			if (type == Framing.TYPE_COMMAND) {
+				tracker.onCommand(seq, payload);
+			} else if (type == Framing.TYPE_SKIP || type == Framing.TYPE_LOST) {
+				tracker.onSkip(seq, Framing.readVarint(payload), type == Framing.TYPE_LOST);
+			} else if (type == Framing.TYPE_SNAPSHOT) {
+				tracker.onSnapshot(seq, payload);
+			}
+			return;
+		}
+		if (type != Framing.TYPE_COMMAND) return;
+		
+		// Sent before the server saw HELLO, so already part of the snapshot on its way. The
+		// server doesn't charge for commands sent without a sequence number, see OutboundQueue.
+		if (tracker != null && tracker.getExpected() == 0) return;
 		
 		// Look up the handler for this channel
 		RspHandler handler = (RspHandler) this.rspHandlers.get(socketChannel);
 		
-		// And pass the response to it
-		if (handler.handleResponse(rspData)) {
+		// And pass the response to it, which copies it straight out of the read buffer
+		if (handler.handleResponse(payload)) {
 			// The custom handler has seen enough, close the connection
 			socketChannel.close();
-			socketChannel.keyFor(this.selector).cancel();
+			state.getKey().cancel();
+			this.closed(state);
 		}
 	}
 
+	/**
+	 * @return A tracker which hands commands to the handler in the server's order, and
+	 *         asks the server for any it missed over the given connection
+	 */
+	private SequenceTracker newTracker(final ChannelState state, final RspHandler handler) {
+		return new SequenceTracker() {
+			@Override
+			protected boolean deliver(ByteBuffer payload, boolean charged) {
+				return handler.offer(payload, charged);
+			}
+			
+			@Override
+			protected void passedOver(int count) {
+				handler.passedOver(count);
+			}
+			
+			@Override
+			protected void requestRetransmit(long from, long count) {
+				// Already on the selector thread, the next cycle picks it up
+				SharedFrame request = SharedFrame.range(Framing.TYPE_RETRANSMIT, from, count);
+				if (state.offer(request)) dirty.add(state);
+				request.release();
+			}
+		};
+	}
+	
+	/**
+	 * Give the server credit for as many commands as the handler has room for, and more
+	 * as the handler runs them or the tracker passes over them. Commands the handler can't
+	 * take yet then wait at the server rather than being dropped or piling up in the tracker.
+	 */
+	private void giveCredit(final ChannelState state, final RspHandler handler) {
+		this.sendCredit(state, RspHandler.SLOTS);
+		handler.setCreditListener(new Runnable() {
+			@Override
+			public void run() {
+				// The handler and the selector thread may both get here, only one takes the credit
+				int count = handler.takeCredit();
+				if (count > 0) sendCredit(state, count);
+			}
+		});
+	}
+	
+	/**
+	 * Called by any thread to queue a TYPE_CREDIT frame
+	 */
+	private void sendCredit(ChannelState state, int count) {
+		SharedFrame credit = SharedFrame.range(Framing.TYPE_CREDIT, 0, count);
+		if (state.offer(credit) && this.dirty.add(state)) this.waker.wakeup();
+		credit.release();
+	}
+	
+	/**
+	 * Called by the selector thread every cycle to retry what trackers are holding back
+	 * @return True if some tracker is still waiting
+	 */
+	private boolean tickTrackers() {
+		boolean waiting = false;
+		synchronized (this.trackers) {
+			for (SequenceTracker tracker: this.trackers.values()) {
+				if (!tracker.isWaiting()) continue;
+				tracker.tick();
+				waiting |= tracker.isWaiting();
+			}
+		}
+		return waiting;
+	}
+	
+	/**
+	 * Called by the selector thread once a connection is closed
+	 */
+	private void closed(ChannelState state) {
+		SequenceTracker tracker = this.trackers.remove(state.getChannel());
+		if (tracker != null) tracker.close();
+		this.rspHandlers.remove(state.getChannel());
+		Jmx.unregister(state.getObjectName());
+	}
+
 	/**
 	 * Called by the selector thread when it sees a SelectionKey is in write mode
 	 * @param key The SelectionKey which is in write mode
@@ -242,29 +461,25 @@ public class NioClient implements Runnable {
 	 */
 	private void write(SelectionKey key) throws IOException {
 		SocketChannel socketChannel = (SocketChannel) key.channel();
+		ChannelState state = (ChannelState) key.attachment();
 
-		synchronized (this.pendingData) {
-			List<ByteBuffer> queue = this.pendingData.get(socketChannel);
-
-			// Write until there's not more data ...
-			while (!queue.isEmpty()) {
-				ByteBuffer buf = queue.get(0);
-				buf = Logger.get().prepareSend(socketChannel, buf);
-				SocketChannelWritten.newCase(this, socketChannel, buf);
-				socketChannel.write(buf);
-				if (buf.remaining() > 0) {
-					// ... or the socket's buffer fills up
-					break;
-				}
-				queue.remove(0);
+		OutboundQueue queue = state.drain();
+		// A frame longer than Trace.DATA_BYTES, like a large snapshot, is traced cut short
+		if (Trace.on(Trace.WRITTEN)) {
+			for (int i = 0; i < queue.size(); i++) {
+				Trace.written(this, socketChannel, queue.get(i));
 			}
+		}
 
-			if (queue.isEmpty()) {
-				// We wrote away all data, so we're no longer interested
-				// in writing on this socket. Switch back to waiting for
-				// data.
-				key.interestOps(SelectionKey.OP_READ);
-			}
+		// Write the whole backlog in one gathering write, whatever
+		// the socket's buffer could not take stays queued
+		state.write();
+
+		if (!state.hasPending()) {
+			// We wrote away all data, so we're no longer interested
+			// in writing on this socket. Switch back to waiting for
+			// data.
+			key.interestOps(SelectionKey.OP_READ);
 		}
 	}
 
@@ -291,11 +506,39 @@ public class NioClient implements Runnable {
 		}
 	
 		// Register an interest depending if there is data available
-		synchronized (this.pendingData) {
-			List<ByteBuffer> queue = this.pendingData.get(socketChannel);
-			if (queue == null || queue.isEmpty()) key.interestOps(SelectionKey.OP_READ);
-			else key.interestOps(SelectionKey.OP_WRITE);
-		}
+		ChannelState state = (ChannelState) key.attachment();
+		if (!state.hasPending()) key.interestOps(SelectionKey.OP_READ);
+		else key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		
+		state.setObjectName(Jmx.register(state, "Connection", Jmx.connectionName(socketChannel)));
+		this.startHeartbeat(state);
+	}
+	
+	/**
+	 * Keep a newly connected channel alive, and close it if the server goes silent
+	 */
+	private void startHeartbeat(final ChannelState state) {
+		new Heartbeat(this.timers, state) {
+			@Override
+			protected void send(ChannelState state, SharedFrame frame) {
+				// Already on the selector thread, the next cycle picks it up
+				if (state.offer(frame, false)) dirty.add(state);
+			}
+			
+			@Override
+			protected void dead(long silent) {
+				System.out.println("Lost the server, silent for " + silent + " ms");
+				SocketChannel socketChannel = state.getChannel();
+				state.getKey().cancel();
+				try {
+					socketChannel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				closed(state);
+				state.close();
+			}
+		}.start();
 	}
 
 	/**
@@ -307,7 +550,7 @@ public class NioClient implements Runnable {
 		NioSender sender = null;
 		try {
 			// Start client listening in another thread
-			NioClient client = new NioClient(InetAddress.getByName("localhost"), 9090);
+			NioClient client = new NioClient(endpoint(InetAddress.getByName("localhost")));
 			Thread t = new Thread(client);
 			t.setName("selector");
 			t.setDaemon(true);
@@ -333,12 +576,28 @@ public class NioClient implements Runnable {
     }
 	
 	public class NioSender {
-		private SocketChannel socket;
+		private ChannelState state;
 		private NioClient client;
 		
-		NioSender(NioClient client, SocketChannel socket) {
+		// Numbers the frames sent on this connection
+		private AtomicLong sequence = new AtomicLong(0);
+		
+		// Packs commands into batches if BATCHING is on, or null
+		private CommandBatcher batcher;
+		
+		NioSender(NioClient client, ChannelState state) {
 			this.client = client;
-			this.socket = socket;
+			this.state = state;
+			
+			if (BATCHING) {
+				this.batcher = new CommandBatcher() {
+					@Override
+					protected void send(SharedFrame frame, Object group) {
+						queue(frame);
+					}
+				};
+				this.batcher.start("batcher");
+			}
 		}
 		
 		/**
@@ -349,26 +608,35 @@ public class NioClient implements Runnable {
 		public void send(byte[] data) throws RuntimeException {
 			if (data == null || data.length == 0) return;
 			
-			// Queue the data we want written
-			synchronized (this.client.pendingChanges) {
-				this.client.pendingChanges.add(new ChangeRequest(socket, ChangeRequest.CHANGEOPS, SelectionKey.OP_WRITE));
-				
-				// Add seperator
-				byte[] arr = new byte[data.length + 1];
-				System.arraycopy(data, 0, arr, 0, data.length);
-				arr[arr.length - 1] = (byte) SEPERATOR;
-				ByteBuffer bb_data = ByteBuffer.wrap(arr);
-				
-				// ByteBuffer bb_data = ByteBuffer.wrap(data);
-				synchronized (this.client.pendingData) {
-					List<ByteBuffer> queue = this.client.pendingData.get(socket);
-					if (queue == null) throw new RuntimeException("Pending data queue was not initialized in connect!");
-					queue.add(bb_data);
+			SharedFrame frame = SharedFrame.wrap(data);
+			if (this.batcher != null) {
+				// Numbered under the batcher's lock, so batched commands are numbered in order
+				synchronized (this.batcher) {
+					frame.setSequence(this.sequence.incrementAndGet());
+					this.batcher.add(frame, null);
 				}
+			} else {
+				frame.setSequence(this.sequence.incrementAndGet());
+				this.queue(frame);
+			}
+		}
+		
+		/**
+		 * Queue a command or batch frame and make sure the selector will write it
+		 * @param frame The frame, the caller's reference is released once it is queued
+		 */
+		private void queue(SharedFrame frame) {
+			// Queue the data we want written, without taking any lock. The
+			// separator or length prefix is added as the frame is written.
+			boolean queued = this.state.offer(frame);
+			frame.release();
+			
+			// Indicate we want the interest ops set changed, unless the
+			// selector has yet to see an earlier request
+			if (queued && this.client.dirty.add(this.state)) {
+				// Finally, wake up our selecting thread so it can make the required changes
+				this.client.waker.wakeup();
 			}
-
-			// Finally, wake up our selecting thread so it can make the required changes
-			this.client.selector.wakeup();
 		}
 	}
 }
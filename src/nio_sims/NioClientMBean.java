@@ -0,0 +1,19 @@
+package nio_sims;
+
+/**
+ * What JMX sees of a client's selector thread, every connection also has its own
+ * ChannelStateMBean
+ */
+public interface NioClientMBean {
+	int getConnections();
+
+	long getSelectorIterations();
+
+	long getSelectorBusyNanos();
+
+	long getSelectorMaxIterationNanos();
+
+	long getWakeupRequests();
+
+	long getWakeups();
+}
@@ -0,0 +1,14 @@
+package nio_sims;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Told about every command read back from a CommandLog, in sequence order.
+ */
+public interface ReplayListener {
+	/**
+	 * @param seq The command's sequence number
+	 * @param payload The command, only valid until this returns
+	 */
+	void onCommand(long seq, ByteBuffer payload);
+}
@@ -0,0 +1,37 @@
+package nio_sims;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How long a selector thread spends on each pass of its loop, from select returning to
+ * the next select, for JMX. A loop which takes long passes delays every channel on it.
+ */
+public class SelectorStats {
+	private final LongAdder iterations = new LongAdder();
+	private final LongAdder busyNanos = new LongAdder();
+
+	// The longest pass, only written by the selector thread
+	private volatile long maxNanos = 0;
+
+	/**
+	 * Called by the selector thread at the end of every pass
+	 * @param nanos How long the pass took
+	 */
+	void record(long nanos) {
+		this.iterations.increment();
+		this.busyNanos.add(nanos);
+		if (nanos > this.maxNanos) this.maxNanos = nanos;
+	}
+
+	public long getIterations() {
+		return this.iterations.sum();
+	}
+
+	public long getBusyNanos() {
+		return this.busyNanos.sum();
+	}
+
+	public long getMaxNanos() {
+		return this.maxNanos;
+	}
+}
@@ -0,0 +1,68 @@
+package nio_sims;
+
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wakes a selector thread for producers, at most once each time the thread goes to
+ * select. Selector.wakeup writes to a pipe or eventfd whether or not the thread is
+ * blocked, so a burst of sends which each woke the selector cost a syscall apiece.
+ *
+ * The flag is set while the selector thread is awake, or once a producer has woken it,
+ * and only the selector thread clears it, right before it takes what producers queued.
+ * Anything queued after that wakes the selector, anything queued before is taken, so no
+ * wakeup is lost and a burst of N sends costs one wakeup instead of N.
+ */
+public class SelectorWakeup {
+	// Off to wake the selector on every request, for comparison
+	public static boolean COALESCE = true;
+
+	private final Selector selector;
+
+	// Set while the selector thread is awake or a wakeup is on its way
+	private final AtomicBoolean awake = new AtomicBoolean(true);
+
+	// Requests from producers, and the Selector.wakeup calls they came to
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder wakeups = new LongAdder();
+
+	public SelectorWakeup(Selector selector) {
+		this.selector = selector;
+	}
+
+	/**
+	 * Called by a producer after queueing something the selector thread has to see
+	 */
+	public void wakeup() {
+		this.requests.increment();
+		if (COALESCE && (this.awake.get() || !this.awake.compareAndSet(false, true))) return;
+
+		this.wakeups.increment();
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Called by the selector thread before it takes what producers queued and selects,
+	 * from then on a producer which queues anything wakes it
+	 */
+	public void prepareToSelect() {
+		this.awake.set(false);
+	}
+
+	/**
+	 * Called by the selector thread once select returns, producers leave it be until the
+	 * next prepareToSelect
+	 */
+	public void selected() {
+		this.awake.lazySet(true);
+	}
+
+	public long getRequests() {
+		return this.requests.sum();
+	}
+
+	public long getWakeups() {
+		return this.wakeups.sum();
+	}
+}
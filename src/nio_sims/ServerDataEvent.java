@@ -5,11 +5,11 @@ import java.nio.channels.SocketChannel;
 public class ServerDataEvent {
 	public NioBroadcastServer server;
 	public SocketChannel socket;
-	public byte[] data;
+	public SharedFrame frame;
 	
-	public ServerDataEvent(NioBroadcastServer server, SocketChannel socket, byte[] data) {
+	public ServerDataEvent(NioBroadcastServer server, SocketChannel socket, SharedFrame frame) {
 		this.server = server;
 		this.socket = socket;
-		this.data = data;
+		this.frame = frame;
 	}
 }
@@ -0,0 +1,385 @@
+package nio_sims;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import port.trace.nio.LocalCommandObserved;
+import port.trace.nio.RemoteCommandExecuted;
+import port.trace.nio.SocketChannelInterestOp;
+import port.trace.nio.SocketChannelRead;
+import port.trace.nio.SocketChannelWritten;
+
+/**
+ * Traces the events of the hot paths, every read, write and command, off the threads
+ * they happen on. Announcing a TraceableInfo builds its message and prints it right
+ * away, which took longer than the reads and writes it was about and skewed every timing.
+ *
+ * A thread which traces an event only copies it into a fixed size record of its own ring:
+ * the kind, a number, the data's length, the first DATA_BYTES of the data or command and
+ * ids for the source and the channel or key. Nothing is built or allocated and no lock is
+ * taken once a thread's source and channel have ids, and an event which finds the ring
+ * full is dropped rather than waited for. A drainer thread takes the records from every
+ * ring and announces them as the same TraceableInfo events as before, so whatever watches
+ * for those still sees them, each thread's in order and a little later. The data and
+ * commands they carry are cut at DATA_BYTES.
+ *
+ * Only commands are traced unless configured otherwise, see configure, reads, writes and
+ * interest ops are turned on when they are looked into. A call site checks on(kind)
+ * first, so a kind which is off costs a read of ENABLED and copies nothing.
+ */
+public class Trace {
+	// The kinds of event
+	public static final int READ = 0;
+	public static final int WRITTEN = 1;
+	public static final int INTEREST_OP = 2;
+	public static final int LOCAL_COMMAND = 3;
+	public static final int REMOTE_COMMAND = 4;
+	private static final String[] NAMES = { "read", "written", "interest", "local", "remote" };
+
+	// A bit for every kind which is traced, 0 traces nothing
+	public static final int COMMANDS = (1 << LOCAL_COMMAND) | (1 << REMOTE_COMMAND);
+	public static int ENABLED = COMMANDS;
+
+	// Only one in SAMPLE[kind] events of each kind is traced
+	public static final int[] SAMPLE = { 1, 1, 1, 1, 1 };
+
+	// The records in each thread's ring, rounded up to a power of two, and the bytes of
+	// data or command each record keeps, enough for the header and most commands. A ring
+	// is about RING_SIZE * (DATA_BYTES + 20) bytes, allocated once.
+	public static int RING_SIZE = 1024;
+	public static int DATA_BYTES = 64;
+
+	// How long the drainer sleeps once every ring is empty
+	public static long DRAIN_MS = 10;
+
+	/**
+	 * A thread's records. Only the thread writes them and only the drainer reads them,
+	 * each record is published by moving head past it and freed by moving tail past it.
+	 */
+	private static class Ring {
+		private final Thread owner = Thread.currentThread();
+		private final int mask;
+		private final int dataBytes = DATA_BYTES;
+
+		private final int[] kinds;
+		private final int[] args;
+		private final int[] lengths;
+		private final int[] sources;
+		private final int[] subjects;
+
+		// Record i's data is at i * dataBytes
+		private final byte[] data;
+
+		private final AtomicLong head = new AtomicLong(0);
+		private final AtomicLong tail = new AtomicLong(0);
+
+		// Events of each kind passed over since the last one sampled, only used by the owner
+		private final int[] skipped = new int[NAMES.length];
+
+		// The last source and subject given an id, only used by the owner
+		private Object source, subject;
+		private int sourceId, subjectId;
+
+		Ring(int size) {
+			int records = (size <= 1) ? 1 : Integer.highestOneBit(size - 1) << 1;
+			this.mask = records - 1;
+			this.kinds = new int[records];
+			this.args = new int[records];
+			this.lengths = new int[records];
+			this.sources = new int[records];
+			this.subjects = new int[records];
+			this.data = new byte[records * this.dataBytes];
+		}
+	}
+
+	// The ids of sources, channels and keys, by id - 1, held weakly so a closed channel
+	// and its key can still be collected
+	private static final Map<Object, Integer> ids = new WeakHashMap<Object, Integer>();
+	private static final List<WeakReference<Object>> objects = new ArrayList<WeakReference<Object>>();
+
+	private static final ThreadLocal<Ring> rings = new ThreadLocal<Ring>();
+	private static final List<Ring> all = new CopyOnWriteArrayList<Ring>();
+	private static Thread drainer;
+
+	// Events dropped because their thread's ring was full
+	private static final LongAdder dropped = new LongAdder();
+
+	/**
+	 * @param spec The kinds to trace by name, comma separated, each optionally followed by
+	 *             ":N" to trace one in N of them, or "all". Null traces commands only,
+	 *             empty or "none" traces nothing.
+	 */
+	public static void configure(String spec) {
+		if (spec == null) {
+			ENABLED = COMMANDS;
+			return;
+		}
+
+		int enabled = 0;
+		for (String part: spec.split(",")) {
+			part = part.trim();
+			if (part.isEmpty()) continue;
+
+			int colon = part.indexOf(':');
+			String name = (colon < 0) ? part : part.substring(0, colon);
+			int sample = (colon < 0) ? 1 : Math.max(1, Integer.parseInt(part.substring(colon + 1)));
+			for (int kind = 0; kind < NAMES.length; kind++) {
+				if (!name.equalsIgnoreCase("all") && !name.equalsIgnoreCase(NAMES[kind])) continue;
+
+				enabled |= 1 << kind;
+				SAMPLE[kind] = sample;
+			}
+		}
+		ENABLED = enabled;
+	}
+
+	/**
+	 * @return True if events of kind are traced
+	 */
+	public static boolean on(int kind) {
+		return (ENABLED & (1 << kind)) != 0;
+	}
+
+	/**
+	 * Called once a channel has been read into data
+	 * @param data What was read, from its position to its limit. Left unchanged, only the
+	 *             first DATA_BYTES are kept.
+	 */
+	public static void read(Object source, SocketChannel channel, ByteBuffer data) {
+		record(READ, source, channel, 0, data, null);
+	}
+
+	/**
+	 * Called as data is about to be written to a channel
+	 * @param data What will be written, from its position to its limit. Left unchanged,
+	 *             only the first DATA_BYTES are kept.
+	 */
+	public static void written(Object source, SocketChannel channel, ByteBuffer data) {
+		record(WRITTEN, source, channel, 0, data, null);
+	}
+
+	public static void interestOp(Object source, SelectionKey key, int ops) {
+		record(INTEREST_OP, source, key, ops, null, null);
+	}
+
+	/**
+	 * @param cmd Only the first DATA_BYTES characters are kept, each as its low byte, which
+	 *            holds the ASCII of the simulation's commands
+	 */
+	public static void localCommand(Object source, String cmd) {
+		record(LOCAL_COMMAND, source, null, 0, null, cmd);
+	}
+
+	public static void remoteCommand(Object source, String cmd) {
+		record(REMOTE_COMMAND, source, null, 0, null, cmd);
+	}
+
+	/**
+	 * Keep an event in the calling thread's ring
+	 * @param subject The channel or key, or null for a command
+	 * @param data The data, or null
+	 * @param cmd The command, or null
+	 */
+	private static void record(int kind, Object source, Object subject, int arg, ByteBuffer data, String cmd) {
+		Ring ring = rings.get();
+		if (ring == null) ring = register();
+
+		if (SAMPLE[kind] > 1) {
+			if (++ring.skipped[kind] < SAMPLE[kind]) return;
+			ring.skipped[kind] = 0;
+		}
+
+		long head = ring.head.get();
+		if (head - ring.tail.get() > ring.mask) {
+			dropped.increment();
+			return;
+		}
+
+		int i = (int) head & ring.mask;
+		int at = i * ring.dataBytes;
+		int length = 0;
+		if (data != null) {
+			length = data.remaining();
+			int kept = Math.min(length, ring.dataBytes);
+			if (data.hasArray()) {
+				System.arraycopy(data.array(), data.arrayOffset() + data.position(), ring.data, at, kept);
+			} else {
+				for (int j = 0; j < kept; j++) {
+					ring.data[at + j] = data.get(data.position() + j);
+				}
+			}
+		} else if (cmd != null) {
+			length = cmd.length();
+			int kept = Math.min(length, ring.dataBytes);
+			for (int j = 0; j < kept; j++) {
+				ring.data[at + j] = (byte) cmd.charAt(j);
+			}
+		}
+
+		if (source != ring.source) {
+			ring.source = source;
+			ring.sourceId = id(source);
+		}
+		if (subject != null && subject != ring.subject) {
+			ring.subject = subject;
+			ring.subjectId = id(subject);
+		}
+
+		ring.kinds[i] = kind;
+		ring.args[i] = arg;
+		ring.lengths[i] = length;
+		ring.sources[i] = ring.sourceId;
+		ring.subjects[i] = (subject == null) ? 0 : ring.subjectId;
+		ring.head.lazySet(head + 1);
+	}
+
+	/**
+	 * @return The id of o, given one if it has none, 0 for null
+	 */
+	private static int id(Object o) {
+		if (o == null) return 0;
+		synchronized (ids) {
+			Integer id = ids.get(o);
+			if (id == null) {
+				objects.add(new WeakReference<Object>(o));
+				id = objects.size();
+				ids.put(o, id);
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * @return What has id, or null if it has been collected
+	 */
+	private static Object object(int id) {
+		if (id == 0) return null;
+		synchronized (ids) {
+			return objects.get(id - 1).get();
+		}
+	}
+
+	/**
+	 * Give the calling thread a ring, and start the drainer if this is the first
+	 */
+	private static Ring register() {
+		Ring ring = new Ring(RING_SIZE);
+		rings.set(ring);
+		all.add(ring);
+
+		synchronized (Trace.class) {
+			if (drainer == null) {
+				drainer = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						drain();
+					}
+				});
+				drainer.setName("trace-drainer");
+				drainer.setDaemon(true);
+				drainer.start();
+			}
+		}
+		return ring;
+	}
+
+	/**
+	 * The drainer thread
+	 */
+	private static void drain() {
+		while (true) {
+			boolean idle = true;
+			for (Ring ring: all) {
+				long tail = ring.tail.get();
+				long head = ring.head.get();
+				if (tail == head) {
+					// Its thread is gone and nothing is left
+					if (!ring.owner.isAlive() && ring.head.get() == tail) all.remove(ring);
+					continue;
+				}
+
+				idle = false;
+				for (; tail < head; tail++) {
+					int i = (int) tail & ring.mask;
+					try {
+						announce(ring, i);
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+					ring.tail.lazySet(tail + 1);
+				}
+			}
+
+			if (idle) {
+				try {
+					Thread.sleep(DRAIN_MS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Announce record i as the TraceableInfo it stands for
+	 */
+	private static void announce(Ring ring, int i) {
+		Object source = object(ring.sources[i]);
+		Object subject = object(ring.subjects[i]);
+		switch (ring.kinds[i]) {
+		case READ:
+			SocketChannelRead.newCase(source, (SocketChannel) subject, data(ring, i));
+			break;
+		case WRITTEN:
+			SocketChannelWritten.newCase(source, (SocketChannel) subject, data(ring, i));
+			break;
+		case INTEREST_OP:
+			SocketChannelInterestOp.newCase(source, (SelectionKey) subject, ring.args[i]);
+			break;
+		case LOCAL_COMMAND:
+			LocalCommandObserved.newCase(source, command(ring, i));
+			break;
+		case REMOTE_COMMAND:
+			RemoteCommandExecuted.newCase(source, command(ring, i));
+			break;
+		}
+	}
+
+	/**
+	 * @return A copy of the data kept by record i
+	 */
+	private static ByteBuffer data(Ring ring, int i) {
+		int at = i * ring.dataBytes;
+		return ByteBuffer.wrap(Arrays.copyOfRange(ring.data, at, at + Math.min(ring.lengths[i], ring.dataBytes)));
+	}
+
+	/**
+	 * @return The command kept by record i
+	 */
+	private static String command(Ring ring, int i) {
+		int kept = Math.min(ring.lengths[i], ring.dataBytes);
+		char[] cmd = new char[kept];
+		int at = i * ring.dataBytes;
+		for (int j = 0; j < kept; j++) {
+			cmd[j] = (char) (ring.data[at + j] & 0xff);
+		}
+		return new String(cmd);
+	}
+
+	/**
+	 * @return How many events were dropped because their thread's ring was full
+	 */
+	public static long getDropped() {
+		return dropped.sum();
+	}
+}
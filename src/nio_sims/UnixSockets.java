@@ -0,0 +1,114 @@
+package nio_sims;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Unix domain socket endpoints, for a server and clients on the same host. Their traffic
+ * is copied between the processes by the kernel and never goes through TCP, so there is no
+ * segmenting, checksumming or Nagle to pay for. Looked up by reflection so the rest of
+ * the code still builds and runs on JVMs from before 16, which only have TCP.
+ *
+ * The channels are the same SocketChannels and ServerSocketChannels as over TCP, so the
+ * selector loops don't need to know which they have. Only socket() and the TCP options
+ * aren't supported on them.
+ */
+public class UnixSockets {
+	// UnixDomainSocketAddress.of(String), or null if the JVM doesn't have it
+	private static Method of;
+
+	// SocketChannel.open(ProtocolFamily) and ServerSocketChannel.open(ProtocolFamily)
+	private static Method openChannel;
+	private static Method openServerChannel;
+
+	private static ProtocolFamily unix;
+
+	static {
+		try {
+			of = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+			openChannel = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+			openServerChannel = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+			unix = StandardProtocolFamily.valueOf("UNIX");
+		} catch (ClassNotFoundException | NoSuchMethodException | IllegalArgumentException e) {
+			of = null;
+		}
+	}
+
+	/**
+	 * @return True if the JVM has Unix domain socket channels
+	 */
+	public static boolean isAvailable() {
+		return of != null;
+	}
+
+	/**
+	 * @param path The path of the socket file
+	 * @return The address of the socket
+	 * @throws IOException If the JVM doesn't have Unix domain socket channels
+	 */
+	public static SocketAddress address(String path) throws IOException {
+		if (of == null) throw new IOException("Unix domain sockets need Java 16 or later, can't use " + path);
+		return (SocketAddress) invoke(of, path);
+	}
+
+	/**
+	 * @param address An address from address, or an InetSocketAddress
+	 * @return True if the address is a Unix domain socket's
+	 */
+	public static boolean isUnix(SocketAddress address) {
+		return !(address instanceof InetSocketAddress);
+	}
+
+	/**
+	 * Open an unconnected channel of the address's family
+	 * @param address Where the channel is going to connect
+	 * @return The channel
+	 * @throws IOException If the channel can't be opened
+	 */
+	public static SocketChannel open(SocketAddress address) throws IOException {
+		if (!isUnix(address)) return SocketChannel.open();
+		return (SocketChannel) invoke(openChannel, unix);
+	}
+
+	/**
+	 * Open a server channel of the address's family and bind it. A socket file left behind
+	 * by an earlier server is replaced, the new one is deleted when the JVM exits.
+	 * @param address Where to listen
+	 * @return The bound channel
+	 * @throws IOException If the channel can't be opened or bound
+	 */
+	public static ServerSocketChannel openServer(SocketAddress address) throws IOException {
+		if (!isUnix(address)) {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			channel.socket().bind(address);
+			return channel;
+		}
+
+		File file = new File(address.toString());
+		if (file.exists() && !file.delete()) throw new IOException("Can't replace " + file);
+
+		ServerSocketChannel channel = (ServerSocketChannel) invoke(openServerChannel, unix);
+		channel.bind(address);
+		file.deleteOnExit();
+		return channel;
+	}
+
+	private static Object invoke(Method method, Object arg) throws IOException {
+		try {
+			return method.invoke(null, arg);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package nio_sims.test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nio_sims.CommandCodec;
+import nio_sims.Framing;
+import nio_sims.OutboundQueue;
+import nio_sims.RspHandler;
+import nio_sims.SequenceTracker;
+import nio_sims.SharedFrame;
+
+/**
+ * Checks that a client gives back exactly the credit the server took, see
+ * Framing.TYPE_CREDIT, by feeding a tracker and its handler what a late joiner sees:
+ * broadcasts from before its snapshot, more of them than the tracker holds, the snapshot
+ * itself, the retransmission of what was dropped and a retransmitted duplicate. Every
+ * command the server sent is charged apart from the snapshot's, any credit lost stalls
+ * the client for good and any extra lets the server overrun it.
+ *
+ * Commands queued for the joiner before the server saw its HELLO go out without sequence
+ * numbers and are dropped by the client, so the server's queue mustn't charge for them.
+ */
+public class CreditAccounting {
+	public static void main(String[] args) throws InterruptedException {
+		// Give credit back for every command, so none is left waiting in the handler
+		RspHandler.CREDIT_BATCH = 1;
+		SequenceTracker.MAX_HELD = 4;
+
+		final AtomicInteger returned = new AtomicInteger(0);
+		CountDownLatch ran = new CountDownLatch(8);
+		final RspHandler handler = new RspHandler(new WakeupCoalescing.Counter(ran));
+		handler.setCreditListener(new Runnable() {
+			@Override
+			public void run() {
+				returned.addAndGet(handler.takeCredit());
+			}
+		});
+		Thread handlerThread = new Thread(handler);
+		handlerThread.setName("rsphandler");
+		handlerThread.setDaemon(true);
+		handlerThread.start();
+
+		SequenceTracker tracker = new SequenceTracker() {
+			@Override
+			protected boolean deliver(ByteBuffer payload, boolean charged) {
+				return handler.offer(payload, charged);
+			}
+
+			@Override
+			protected void passedOver(int count) {
+				handler.passedOver(count);
+			}
+
+			@Override
+			protected void requestRetransmit(long from, long count) {
+				System.out.println("Asked for " + count + " from " + from);
+			}
+		};
+
+		// Broadcasts 1 and 2 are queued before HELLO, 3 and 4 after it
+		OutboundQueue outbound = new OutboundQueue();
+		for (long seq = 1; seq <= 4; seq++) {
+			SharedFrame frame = SharedFrame.wrap(CommandCodec.encode("move " + seq + " 0"));
+			frame.setSequence(seq);
+			outbound.add(frame, seq <= 2 ? Framing.SEPARATOR : Framing.LENGTH_PREFIXED);
+			frame.release();
+		}
+		long queued = outbound.commands();
+		outbound.clear();
+
+		int charged = 0;
+
+		// Broadcasts 5 to 10 arrive ahead of the snapshot, the two newest are dropped
+		for (long seq = 5; seq <= 10; seq++) {
+			tracker.onCommand(seq, move(seq));
+			charged += 1;
+		}
+
+		// The snapshot covers up to 6, three free commands
+		ByteBuffer snapshot = ByteBuffer.allocate(256);
+		for (int i = 0; i < 3; i++) {
+			byte[] cmd = CommandCodec.encode("move 1 0");
+			// Short enough for a one byte varint
+			snapshot.put((byte) cmd.length);
+			snapshot.put(cmd);
+		}
+		snapshot.flip();
+		tracker.onSnapshot(7, snapshot);
+
+		// The dropped ones are sent again, then 8 a second time and then 11
+		for (long seq: new long[] { 9, 10, 8, 11 }) {
+			tracker.onCommand(seq, move(seq));
+			charged += 1;
+		}
+
+		boolean done = ran.await(10, TimeUnit.SECONDS);
+		Thread.sleep(100);
+		System.out.println(String.format("ran %s, charged %d, returned %d, duplicates %d, charged before HELLO %d",
+				done ? "all" : "some", charged, returned.get(), tracker.getDuplicates(), queued - 2));
+		System.out.println("ok=" + (done && returned.get() == charged && queued == 2));
+		System.exit(0);
+	}
+
+	static ByteBuffer move(long seq) {
+		return ByteBuffer.wrap(CommandCodec.encode("move " + seq + " 0"));
+	}
+}
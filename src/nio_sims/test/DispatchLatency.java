@@ -0,0 +1,82 @@
+package nio_sims.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+
+import nio_sims.DispatchMode;
+import nio_sims.EchoWorker;
+import nio_sims.NioBroadcastServer;
+
+/**
+ * Measures the time from one client sending a command to another client receiving its
+ * broadcast, with the server handing frames to the worker thread and with the selector
+ * thread broadcasting them inline. One command is in flight at a time, so the numbers
+ * are pure latency rather than throughput.
+ */
+public class DispatchLatency {
+	static final int WARMUP = 5000;
+	static final int ROUNDS = 20000;
+	static final byte[] COMMAND = "move 1 0|".getBytes();
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int port = 9190;
+		for (DispatchMode mode: DispatchMode.values()) {
+			NioBroadcastServer.DISPATCH = mode;
+
+			EchoWorker worker = new EchoWorker();
+			Thread workerThread = new Thread(worker);
+			workerThread.setName("worker");
+			workerThread.setDaemon(true);
+			workerThread.start();
+			new NioBroadcastServer(null, port, worker).start();
+
+			long[] nanos = run(port);
+			Arrays.sort(nanos);
+			long total = 0;
+			for (long n: nanos) total += n;
+			System.out.println(String.format("%-6s p50 %6.1f us, p99 %6.1f us, p99.9 %6.1f us, mean %6.1f us",
+					mode, percentile(nanos, 0.50), percentile(nanos, 0.99), percentile(nanos, 0.999),
+					total / (double) nanos.length / 1000));
+			port += 1;
+		}
+		System.exit(0);
+	}
+
+	static long[] run(int port) throws IOException, InterruptedException {
+		Socket sender = connect(port);
+		Socket receiver = connect(port);
+		// Let the server register both channels before the first command
+		Thread.sleep(200);
+
+		OutputStream out = sender.getOutputStream();
+		InputStream in = receiver.getInputStream();
+		long[] nanos = new long[ROUNDS];
+		for (int i = 0; i < WARMUP + ROUNDS; i++) {
+			long start = System.nanoTime();
+			out.write(COMMAND);
+			out.flush();
+			int b;
+			while ((b = in.read()) != '|') {
+				if (b < 0) throw new IOException("Server closed the connection");
+			}
+			if (i >= WARMUP) nanos[i - WARMUP] = System.nanoTime() - start;
+		}
+		sender.close();
+		receiver.close();
+		return nanos;
+	}
+
+	static Socket connect(int port) throws IOException {
+		Socket socket = new Socket("localhost", port);
+		socket.setTcpNoDelay(true);
+		return socket;
+	}
+
+	static double percentile(long[] sorted, double p) {
+		int index = Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1);
+		return sorted[Math.max(0, index)] / 1000.0;
+	}
+}
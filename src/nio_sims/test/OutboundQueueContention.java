@@ -0,0 +1,167 @@
+package nio_sims.test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import nio_sims.ChangeRequest;
+import nio_sims.ChannelState;
+import nio_sims.OutboundQueue;
+import nio_sims.SharedFrame;
+
+/**
+ * Compares producers queueing broadcasts through the old global pendingChanges/pendingData
+ * monitors against the per-channel lock-free queues, with 1, 4 and 16 producer threads.
+ * A single consumer thread stands in for the selector, only the time the producers
+ * take to queue every broadcast is measured.
+ */
+public class OutboundQueueContention {
+	static final int CHANNELS = 16;
+	static final int BROADCASTS = 200000;
+	static final int[] PRODUCERS = new int[] { 1, 4, 16 };
+	static final byte[] COMMAND = "move 1 0|".getBytes();
+
+	public static void main(String[] args) throws InterruptedException {
+		// Warm up both paths before measuring
+		runGlobalLocks(4);
+		runPerChannel(4);
+
+		for (int producers: PRODUCERS) {
+			long global = runGlobalLocks(producers);
+			long perChannel = runPerChannel(producers);
+			System.out.println(String.format("%2d producers: global locks %5d ms, per-channel queues %5d ms",
+					producers, global / 1000000, perChannel / 1000000));
+		}
+	}
+
+	/**
+	 * The path NioBroadcastServer.broadcast used to take
+	 */
+	static long runGlobalLocks(int producers) throws InterruptedException {
+		final List<ChangeRequest> pendingChanges = new LinkedList<ChangeRequest>();
+		final Map<Integer, List<ByteBuffer>> pendingData = new HashMap<Integer, List<ByteBuffer>>();
+		final int perProducer = BROADCASTS / producers;
+		final long expected = (long) perProducer * producers * CHANNELS;
+
+		final AtomicBoolean done = new AtomicBoolean(false);
+		Thread selector = new Thread() {
+			@Override
+			public void run() {
+				long consumed = 0;
+				while (consumed < expected) {
+					synchronized (pendingChanges) {
+						pendingChanges.clear();
+					}
+					synchronized (pendingData) {
+						for (List<ByteBuffer> queue: pendingData.values()) {
+							consumed += queue.size();
+							queue.clear();
+						}
+					}
+				}
+				done.set(true);
+			}
+		};
+
+		return run(producers, selector, done, new Producer() {
+			@Override
+			public void broadcast(byte[] data) {
+				for (int channel = 0; channel < CHANNELS; channel++) {
+					synchronized (pendingChanges) {
+						pendingChanges.add(new ChangeRequest(null, ChangeRequest.CHANGEOPS, 4));
+						synchronized (pendingData) {
+							List<ByteBuffer> queue = pendingData.get(channel);
+							if (queue == null) {
+								queue = new ArrayList<ByteBuffer>();
+								pendingData.put(channel, queue);
+							}
+							queue.add(ByteBuffer.wrap(data));
+						}
+					}
+				}
+			}
+		}, perProducer);
+	}
+
+	/**
+	 * The path through each channel's own lock-free queue
+	 */
+	static long runPerChannel(int producers) throws InterruptedException {
+		final ChannelState[] states = new ChannelState[CHANNELS];
+		for (int i = 0; i < CHANNELS; i++) {
+			states[i] = new ChannelState(null);
+		}
+		final int perProducer = BROADCASTS / producers;
+		final long expected = (long) perProducer * producers * CHANNELS;
+
+		final AtomicBoolean done = new AtomicBoolean(false);
+		Thread selector = new Thread() {
+			@Override
+			public void run() {
+				long consumed = 0;
+				while (consumed < expected) {
+					for (ChannelState state: states) {
+						OutboundQueue queue = state.drain();
+						consumed += queue.size();
+						queue.clear();
+					}
+				}
+				done.set(true);
+			}
+		};
+
+		return run(producers, selector, done, new Producer() {
+			@Override
+			public void broadcast(byte[] data) {
+				SharedFrame frame = SharedFrame.wrap(data);
+				for (ChannelState state: states) {
+					state.offer(frame);
+				}
+				frame.release();
+			}
+		}, perProducer);
+	}
+
+	interface Producer {
+		void broadcast(byte[] data);
+	}
+
+	static long run(int producers, Thread selector, AtomicBoolean done, final Producer producer, final int perProducer) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[producers];
+		for (int i = 0; i < producers; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < perProducer; j++) {
+						producer.broadcast(COMMAND);
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		selector.start();
+		long startTime = System.nanoTime();
+		start.countDown();
+
+		// Only the producers are timed, the selector just has to keep up
+		for (Thread t: threads) t.join();
+		long elapsed = System.nanoTime() - startTime;
+
+		selector.join();
+		if (!done.get()) throw new IllegalStateException("Selector stopped early");
+
+		return elapsed;
+	}
+}
@@ -0,0 +1,134 @@
+package nio_sims.test;
+
+import java.beans.PropertyChangeListener;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import StringProcessors.HalloweenCommandProcessor;
+import nio_sims.BackpressurePolicy;
+import nio_sims.CommandCodec;
+import nio_sims.DispatchMode;
+import nio_sims.EchoWorker;
+import nio_sims.NioBroadcastServer;
+import nio_sims.NioClient;
+import nio_sims.RspHandler;
+import nio_sims.SelectorWakeup;
+
+/**
+ * Counts the Selector.wakeup calls behind the load of the "time" command, one client
+ * sending a burst of moves as fast as it can and another receiving their broadcasts,
+ * with every request waking the selector and with requests coalesced while it is awake.
+ * The server hands frames to the worker thread, so its broadcasts come from off the
+ * selector threads like the client's sends do.
+ */
+public class WakeupCoalescing {
+	static final int MOVES = 20000;
+	static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int moves = args.length > 0 ? Integer.parseInt(args[0]) : MOVES;
+		NioBroadcastServer.DISPATCH = DispatchMode.WORKER;
+
+		// A burst longer than the receiver's backlog limit waits for it, rather than
+		// disconnecting it
+		NioBroadcastServer.BACKPRESSURE = BackpressurePolicy.BLOCK;
+
+		int port = 9290;
+		for (int round = 0; round < ROUNDS; round++) {
+			for (boolean coalesce: new boolean[] { false, true }) {
+				SelectorWakeup.COALESCE = coalesce;
+				run(port++, moves, round == 0);
+			}
+		}
+		System.exit(0);
+	}
+
+	static void run(int port, int moves, boolean warmup) throws IOException, InterruptedException {
+		EchoWorker worker = new EchoWorker();
+		Thread workerThread = new Thread(worker);
+		workerThread.setName("worker");
+		workerThread.setDaemon(true);
+		workerThread.start();
+		NioBroadcastServer server = new NioBroadcastServer(null, port, worker);
+		server.start();
+
+		CountDownLatch received = new CountDownLatch(moves);
+		Client sender = Client.start(port, new CountDownLatch(0));
+		Client.start(port, received);
+
+		// Let the server register both channels before the first command
+		Thread.sleep(300);
+		long serverRequests = server.getWakeupRequests();
+		long serverWakeups = server.getWakeups();
+		long senderRequests = sender.getWakeupRequests();
+		long senderWakeups = sender.getWakeups();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < moves; i++) {
+			sender.sender.send(CommandCodec.encode(String.format("move %d 0", Math.random() >= 0.5 ? 1 : -1)));
+		}
+		boolean done = received.await(60, TimeUnit.SECONDS);
+		long millis = (System.nanoTime() - start) / 1000000;
+		if (warmup) return;
+
+		System.out.println(String.format("%-9s %6d moves in %5d ms%s, sender %6d requests %6d wakeups, server %6d requests %6d wakeups",
+				SelectorWakeup.COALESCE ? "coalesced" : "every", moves, millis, done ? "" : " (incomplete)",
+				sender.getWakeupRequests() - senderRequests, sender.getWakeups() - senderWakeups,
+				server.getWakeupRequests() - serverRequests, server.getWakeups() - serverWakeups));
+	}
+
+	/**
+	 * A client on its own selector thread, with its handler counting commands down
+	 */
+	static class Client extends NioClient {
+		NioSender sender;
+
+		Client(int port) throws IOException {
+			super(new InetSocketAddress(InetAddress.getByName("localhost"), port));
+		}
+
+		static Client start(int port, CountDownLatch received) throws IOException {
+			Client client = new Client(port);
+			Thread selectorThread = new Thread(client);
+			selectorThread.setName("selector");
+			selectorThread.setDaemon(true);
+			selectorThread.start();
+
+			RspHandler handler = new RspHandler(new Counter(received));
+			client.sender = client.connect(handler);
+			Thread handlerThread = new Thread(handler);
+			handlerThread.setName("rsphandler");
+			handlerThread.setDaemon(true);
+			handlerThread.start();
+			return client;
+		}
+	}
+
+	static class Counter implements HalloweenCommandProcessor {
+		private CountDownLatch received;
+
+		Counter(CountDownLatch received) {
+			this.received = received;
+		}
+
+		@Override
+		public void processCommand(String command) {
+			this.received.countDown();
+		}
+
+		@Override
+		public void setInputString(String input) {
+		}
+
+		@Override
+		public void setConnectedToSimulation(boolean connected) {
+		}
+
+		@Override
+		public void addPropertyChangeListener(PropertyChangeListener listener) {
+		}
+	}
+}
@@ -4,6 +4,7 @@ import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 
 import StringProcessors.HalloweenCommandProcessor;
+import nio_sims.CommandCodec;
 import port.trace.nio.RemoteCommandExecuted;
 
 public class RspHandlerImpl extends UnicastRemoteObject implements RspHandlerLocal, RspHandlerRemote {
@@ -23,11 +24,12 @@ public class RspHandlerImpl extends UnicastRemoteObject implements RspHandlerLoc
 	public void handleLocalCommand(String cmd) {
 		try {
 			if (getMode() != SimuMode.ATOMIC) {
-				this.handleRemoteCommand(cmd);
+				this.execute(cmd);
 			}
 			
 			if (getMode() != SimuMode.LOCAL) {
-				this.server.broadcast(cmd, this);
+				// Encoded once here, the server passes the bytes on as they are
+				this.server.broadcast(CommandCodec.encode(cmd), this);
 			} else {
 				updateTimingCount();
 			}
@@ -65,8 +67,12 @@ public class RspHandlerImpl extends UnicastRemoteObject implements RspHandlerLoc
 	}
 	
 	@Override
-	public void handleRemoteCommand(String cmd) {		
+	public void handleRemoteCommand(byte[] cmd) {		
 		// Has a full command
+		this.execute(CommandCodec.decode(cmd));
+	}
+	
+	private void execute(String cmd) {
 		RemoteCommandExecuted.newCase(this, cmd);
 		this.cp.processCommand(cmd);
 		
@@ -4,6 +4,6 @@ import java.rmi.Remote;
 import java.rmi.RemoteException;
 
 public interface RspHandlerRemote extends Remote {
-	void handleRemoteCommand(String cmd) throws RemoteException;
+	void handleRemoteCommand(byte[] cmd) throws RemoteException;
 	void setInstanceMode(SimuMode mode) throws RemoteException;
 }
@@ -51,7 +51,7 @@ public class ServerImpl extends UnicastRemoteObject implements Server {
 	}
 
 	@Override
-	public void broadcast(String msg, RspHandlerRemote src) throws RemoteException {
+	public void broadcast(byte[] msg, RspHandlerRemote src) throws RemoteException {
 		// System.out.println(msg);
 		for (RspHandlerRemote r: this.repository) {
 			if (this.getMode() == SimuMode.ATOMIC || !src.equals(r)) {